@@ -0,0 +1,101 @@
+package ru.mcashesha;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.ivf.NProbeSelector;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 5, timeUnit = SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class ClusterSelectionBenchmarks {
+
+    private static final int DISTANCE_ROWS = 64;
+
+    @Param({"64", "256", "1024", "4096", "16384", "65536"})
+    public int clusterCount;
+
+    @Param({"8", "16", "64"})
+    public int nProbe;
+
+    float[][] distances;
+    int[] selected;
+    NProbeSelector selector;
+    int row;
+
+    private static int[] selectLinearScan(float[] distances, int nProbe) {
+        int clusterCnt = distances.length;
+        nProbe = Math.min(nProbe, clusterCnt);
+
+        int[] result = new int[nProbe];
+        boolean[] used = new boolean[clusterCnt];
+
+        for (int i = 0; i < nProbe; i++) {
+            int bestIdx = -1;
+            float bestDistance = Float.POSITIVE_INFINITY;
+
+            for (int c = 0; c < clusterCnt; c++) {
+                if (used[c])
+                    continue;
+                float d = distances[c];
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    bestIdx = c;
+                }
+            }
+
+            result[i] = bestIdx;
+            used[bestIdx] = true;
+        }
+
+        return result;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+
+        this.distances = new float[DISTANCE_ROWS][clusterCount];
+        for (float[] rowDistances : distances) {
+            for (int c = 0; c < clusterCount; c++)
+                rowDistances[c] = random.nextFloat();
+        }
+
+        this.selected = new int[nProbe];
+        this.selector = new NProbeSelector();
+    }
+
+    private float[] nextRow() {
+        row = (row + 1) % DISTANCE_ROWS;
+        return distances[row];
+    }
+
+    @Benchmark
+    public int[] linearScan() {
+        return selectLinearScan(nextRow(), nProbe);
+    }
+
+    @Benchmark
+    public int[] boundedHeap() {
+        selector.select(nextRow(), nProbe, selected);
+        return selected;
+    }
+}
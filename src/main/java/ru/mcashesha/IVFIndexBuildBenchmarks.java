@@ -2,6 +2,8 @@ package ru.mcashesha;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -14,11 +16,13 @@ import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.annotations.Warmup;
 import ru.mcashesha.data.EmbeddingCsvLoader;
 import ru.mcashesha.ivf.IVFIndex;
 import ru.mcashesha.ivf.IVFIndexFlat;
+import ru.mcashesha.ivf.VectorEncoding;
 import ru.mcashesha.kmeans.KMeans;
 import ru.mcashesha.metrics.Metric;
 
@@ -28,7 +32,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 @OutputTimeUnit(TimeUnit.MILLISECONDS)
 @Warmup(iterations = 1, time = 30, timeUnit = SECONDS)
 @Measurement(iterations = 5, time = 120, timeUnit = SECONDS)
-@Fork(1)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=32g")
 @Threads(1)
 @State(Scope.Thread)
 public class IVFIndexBuildBenchmarks {
@@ -74,7 +78,7 @@ public class IVFIndexBuildBenchmarks {
     public IVFIndex buildLloydIndex(IVFIndexBuildBenchmarks.BuildState state) {
         KMeans<? extends KMeans.ClusteringResult> kMeans =
             createKMeans(KMeans.Type.LLOYD, state.metricType, state.metricEngine);
-        IVFIndex idx = new IVFIndexFlat(kMeans);
+        IVFIndex idx = state.newIndex(kMeans);
         idx.build(state.data);
         return idx;
     }
@@ -83,7 +87,7 @@ public class IVFIndexBuildBenchmarks {
     public IVFIndex buildMiniBatchIndex(IVFIndexBuildBenchmarks.BuildState state) {
         KMeans<? extends KMeans.ClusteringResult> kMeans =
             createKMeans(KMeans.Type.MINI_BATCH, state.metricType, state.metricEngine);
-        IVFIndex idx = new IVFIndexFlat(kMeans);
+        IVFIndex idx = state.newIndex(kMeans);
         idx.build(state.data);
         return idx;
     }
@@ -92,7 +96,7 @@ public class IVFIndexBuildBenchmarks {
     public IVFIndex buildHierarchicalIndex(IVFIndexBuildBenchmarks.BuildState state) {
         KMeans<? extends KMeans.ClusteringResult> kMeans =
             createKMeans(KMeans.Type.HIERARCHICAL, state.metricType, state.metricEngine);
-        IVFIndex idx = new IVFIndexFlat(kMeans);
+        IVFIndex idx = state.newIndex(kMeans);
         idx.build(state.data);
         return idx;
     }
@@ -109,16 +113,36 @@ public class IVFIndexBuildBenchmarks {
         @Param({"SCALAR", "VECTOR_API", "SIMSIMD"})
         public String metricEngineName;
 
+        /** {@code 0} trains on every vector; otherwise centroids are trained on this many and the rest assigned. */
+        @Param({"0", "16384"})
+        public int trainSampleSize;
+
+        /** Threads the assign-all pass of a sampled build runs on. */
+        @Param({"1", "8"})
+        public int assignParallelism;
+
         float[][] data;
 
         Metric.Type metricType;
         Metric.Engine metricEngine;
+        ForkJoinPool assignPool;
 
         @Setup(Level.Trial)
         public void setup() throws IOException {
             this.data = EmbeddingCsvLoader.loadEmbeddings(Paths.get(embeddingsPath));
             this.metricType = Metric.Type.valueOf(metricTypeName);
             this.metricEngine = Metric.Engine.valueOf(metricEngineName);
+            this.assignPool = assignParallelism > 1 ? new ForkJoinPool(assignParallelism) : null;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (assignPool != null)
+                assignPool.shutdown();
+        }
+
+        IVFIndex newIndex(KMeans<? extends KMeans.ClusteringResult> kMeans) {
+            return new IVFIndexFlat(kMeans, assignPool, VectorEncoding.FLOAT32, 0, trainSampleSize, new Random(42));
         }
     }
 }
@@ -0,0 +1,104 @@
+package ru.mcashesha;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.data.EmbeddingCsvLoader;
+import ru.mcashesha.ivf.IVFIndex;
+import ru.mcashesha.ivf.IVFIndexFlat;
+import ru.mcashesha.kmeans.KMeans;
+import ru.mcashesha.metrics.Metric;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 10, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 30, timeUnit = SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=32g")
+@Threads(8)
+public class IVFIndexConcurrentSearchBenchmarks {
+
+    private static final int TOP_K = 100;
+    private static final int NPROBE = 16;
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchShared(SharedIndexState state, QueryState queryState) {
+        float[] query = queryState.nextRandomQuery(state.index.getDimension());
+        return state.index.search(query, TOP_K, NPROBE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<IVFIndex.SearchResult> searchSingleThread(SharedIndexState state, QueryState queryState) {
+        float[] query = queryState.nextRandomQuery(state.index.getDimension());
+        return state.index.search(query, TOP_K, NPROBE);
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedIndexState {
+
+        @Param("embeddings.csv")
+        public String embeddingsPath;
+
+        @Param({"L2SQ_DISTANCE", "DOT_PRODUCT", "COSINE_DISTANCE"})
+        public String metricTypeName;
+
+        @Param({"SCALAR", "VECTOR_API", "SIMSIMD"})
+        public String metricEngineName;
+
+        IVFIndex index;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            float[][] data = EmbeddingCsvLoader.loadEmbeddings(Paths.get(embeddingsPath));
+            Metric.Type metricType = Metric.Type.valueOf(metricTypeName);
+            Metric.Engine metricEngine = Metric.Engine.valueOf(metricEngineName);
+
+            KMeans<? extends KMeans.ClusteringResult> kMeans =
+                KMeans.newBuilder(KMeans.Type.LLOYD, metricType, metricEngine)
+                    .withMaxIterations(100)
+                    .withClusterCount(64)
+                    .withTolerance(1e-3f)
+                    .build();
+
+            this.index = new IVFIndexFlat(kMeans);
+            this.index.build(data);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class QueryState {
+
+        Random queryRandom;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.queryRandom = new Random(Thread.currentThread().getId());
+        }
+
+        float[] nextRandomQuery(int dimension) {
+            float[] vector = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                float v = queryRandom.nextFloat();
+                vector[i] = queryRandom.nextBoolean() ? v : -v;
+            }
+            return vector;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package ru.mcashesha;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -18,9 +20,12 @@ import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
 import ru.mcashesha.data.EmbeddingCsvLoader;
 import ru.mcashesha.ivf.IVFIndex;
 import ru.mcashesha.ivf.IVFIndexFlat;
+import ru.mcashesha.ivf.IVFIndexPQ;
+import ru.mcashesha.ivf.VectorEncoding;
 import ru.mcashesha.kmeans.KMeans;
 import ru.mcashesha.metrics.Metric;
 
@@ -30,7 +35,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
 @Warmup(iterations = 5, time = 10, timeUnit = SECONDS)
 @Measurement(iterations = 10, time = 30, timeUnit = SECONDS)
-@Fork(3)
+@Fork(value = 3, jvmArgsAppend = "-XX:MaxDirectMemorySize=32g")
 @Threads(1)
 @State(Scope.Thread)
 public class IVFIndexSearchBenchmarks {
@@ -39,13 +44,32 @@ public class IVFIndexSearchBenchmarks {
     private static final int NPROBE_LLOYD = 16;
     private static final int NPROBE_MINI_BATCH = 16;
     private static final int NPROBE_HIERARCHICAL = 8;
+    private static final int BEAM_WIDTH_HIERARCHICAL = 16;
+    private static final int BATCH_SIZE = 256;
+    private static final float BALANCED_MAX_CLUSTER_SIZE_RATIO = 1.5f;
+    private static final int PQ_SUBSPACES = 64;
+    private static final int PQ_CODEBOOK_SIZE = 256;
+    private static final int PQ_CODEBOOK_ITERATIONS = 10;
+    private static final int PQ_RERANK_FACTOR = 4;
+    private static final int SQ_RERANK_FACTOR = 2;
+    private static final int BQ_RERANK_FACTOR = 10;
 
     private static KMeans<? extends KMeans.ClusteringResult> createKMeans(
         KMeans.Type type,
         Metric.Type metricType,
         Metric.Engine metricEngine
     ) {
-        KMeans.Builder builder = KMeans.newBuilder(type, metricType, metricEngine);
+        return createKMeans(type, metricType, metricEngine, Float.POSITIVE_INFINITY);
+    }
+
+    private static KMeans<? extends KMeans.ClusteringResult> createKMeans(
+        KMeans.Type type,
+        Metric.Type metricType,
+        Metric.Engine metricEngine,
+        float maxClusterSizeRatio
+    ) {
+        KMeans.Builder builder = KMeans.newBuilder(type, metricType, metricEngine)
+            .withMaxClusterSizeRatio(maxClusterSizeRatio);
 
         switch (type) {
             case HIERARCHICAL:
@@ -89,12 +113,78 @@ public class IVFIndexSearchBenchmarks {
         return state.miniBatchIndex.search(query, TOP_K, NPROBE_MINI_BATCH);
     }
 
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydBalanced(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydBalancedIndex.getDimension());
+        return state.lloydBalancedIndex.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchMiniBatchBalanced(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.miniBatchBalancedIndex.getDimension());
+        return state.miniBatchBalancedIndex.search(query, TOP_K, NPROBE_MINI_BATCH);
+    }
+
     @Benchmark
     public List<IVFIndex.SearchResult> searchHierarchical(IVFIndexSearchBenchmarks.SearchState state) {
         float[] query = state.nextRandomQuery(state.hierarchicalIndex.getDimension());
         return state.hierarchicalIndex.search(query, TOP_K, NPROBE_HIERARCHICAL);
     }
 
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchHierarchicalBeam(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.hierarchicalBeamIndex.getDimension());
+        return state.hierarchicalBeamIndex.search(query, TOP_K, NPROBE_HIERARCHICAL);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydPQ(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydPQIndex.getDimension());
+        return state.lloydPQIndex.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydFloat16(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydFloat16Index.getDimension());
+        return state.lloydFloat16Index.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydInt8(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydInt8Index.getDimension());
+        return state.lloydInt8Index.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydInt8Rerank(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydInt8RerankIndex.getDimension());
+        return state.lloydInt8RerankIndex.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydBinary(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydBinaryIndex.getDimension());
+        return state.lloydBinaryIndex.search(query, TOP_K, NPROBE_LLOYD);
+    }
+
+    @Benchmark
+    public void searchLloydSink(IVFIndexSearchBenchmarks.SearchState state, Blackhole blackhole) {
+        float[] query = state.nextRandomQuery(state.lloydIndex.getDimension());
+        state.lloydIndex.search(query, TOP_K, NPROBE_LLOYD, (id, distance, clusterId) -> blackhole.consume(id));
+    }
+
+    @Benchmark
+    public List<IVFIndex.SearchResult> searchLloydParallel(IVFIndexSearchBenchmarks.SearchState state) {
+        float[] query = state.nextRandomQuery(state.lloydIndex.getDimension());
+        return state.lloydIndex.search(query, TOP_K, NPROBE_LLOYD, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public List<List<IVFIndex.SearchResult>> searchLloydBatch(IVFIndexSearchBenchmarks.SearchState state) {
+        float[][] queries = state.nextRandomQueries(BATCH_SIZE, state.lloydIndex.getDimension());
+        return state.lloydIndex.searchBatch(queries, TOP_K, NPROBE_LLOYD);
+    }
+
     @State(Scope.Benchmark)
     public static class SearchState {
 
@@ -111,9 +201,17 @@ public class IVFIndexSearchBenchmarks {
         Metric.Type metricType;
         Metric.Engine metricEngine;
 
-        IVFIndex lloydIndex;
-        IVFIndex miniBatchIndex;
+        IVFIndexFlat lloydIndex;
+        IVFIndexFlat miniBatchIndex;
+        IVFIndexFlat lloydBalancedIndex;
+        IVFIndexFlat miniBatchBalancedIndex;
         IVFIndex hierarchicalIndex;
+        IVFIndex hierarchicalBeamIndex;
+        IVFIndex lloydPQIndex;
+        IVFIndex lloydFloat16Index;
+        IVFIndex lloydInt8Index;
+        IVFIndex lloydInt8RerankIndex;
+        IVFIndex lloydBinaryIndex;
 
         Random queryRandom;
 
@@ -127,17 +225,93 @@ public class IVFIndexSearchBenchmarks {
 
             this.lloydIndex = buildIndex(KMeans.Type.LLOYD);
             this.miniBatchIndex = buildIndex(KMeans.Type.MINI_BATCH);
+            this.lloydBalancedIndex = buildIndex(KMeans.Type.LLOYD, BALANCED_MAX_CLUSTER_SIZE_RATIO);
+            this.miniBatchBalancedIndex = buildIndex(KMeans.Type.MINI_BATCH, BALANCED_MAX_CLUSTER_SIZE_RATIO);
             this.hierarchicalIndex = buildIndex(KMeans.Type.HIERARCHICAL);
+
+            printListSizes("lloyd", lloydIndex);
+            printListSizes("miniBatch", miniBatchIndex);
+            printListSizes("lloydBalanced", lloydBalancedIndex);
+            printListSizes("miniBatchBalanced", miniBatchBalancedIndex);
+            this.hierarchicalBeamIndex = new IVFIndexFlat(
+                createKMeans(KMeans.Type.HIERARCHICAL, metricType, metricEngine),
+                null,
+                VectorEncoding.FLOAT32,
+                0,
+                0,
+                BEAM_WIDTH_HIERARCHICAL,
+                new Random(42)
+            );
+            this.hierarchicalBeamIndex.build(data);
+
+            this.lloydPQIndex = new IVFIndexPQ(
+                createKMeans(KMeans.Type.LLOYD, metricType, metricEngine),
+                PQ_SUBSPACES,
+                PQ_CODEBOOK_SIZE,
+                PQ_CODEBOOK_ITERATIONS,
+                PQ_RERANK_FACTOR,
+                new Random(42)
+            );
+            this.lloydPQIndex.build(data);
+
+            this.lloydFloat16Index = buildQuantizedIndex(VectorEncoding.FLOAT16, 0);
+            this.lloydInt8Index = buildQuantizedIndex(VectorEncoding.INT8, 0);
+            this.lloydInt8RerankIndex = buildQuantizedIndex(VectorEncoding.INT8, SQ_RERANK_FACTOR);
+            this.lloydBinaryIndex = buildQuantizedIndex(VectorEncoding.BINARY, BQ_RERANK_FACTOR);
         }
 
-        private IVFIndex buildIndex(KMeans.Type type) {
+        private IVFIndexFlat buildQuantizedIndex(VectorEncoding encoding, int rerankFactor) {
             KMeans<? extends KMeans.ClusteringResult> kMeans =
-                createKMeans(type, metricType, metricEngine);
-            IVFIndex index = new IVFIndexFlat(kMeans);
+                createKMeans(KMeans.Type.LLOYD, metricType, metricEngine);
+            IVFIndexFlat index = new IVFIndexFlat(kMeans, null, encoding, rerankFactor);
             index.build(data);
             return index;
         }
 
+        private IVFIndexFlat buildIndex(KMeans.Type type) {
+            return buildIndex(type, Float.POSITIVE_INFINITY);
+        }
+
+        private IVFIndexFlat buildIndex(KMeans.Type type, float maxClusterSizeRatio) {
+            KMeans<? extends KMeans.ClusteringResult> kMeans =
+                createKMeans(type, metricType, metricEngine, maxClusterSizeRatio);
+            IVFIndexFlat index = new IVFIndexFlat(kMeans);
+            index.build(data);
+            return index;
+        }
+
+        /**
+         * Prints the index's list-size percentiles and a power-of-two histogram, since the longest
+         * probed list bounds the per-query scan cost that the latency percentiles measure.
+         */
+        private static void printListSizes(String name, IVFIndexFlat index) {
+            int[] sizes = index.getClusterSizes();
+            Arrays.sort(sizes);
+
+            StringBuilder sb = new StringBuilder()
+                .append("# list sizes [").append(name).append("]: min=").append(sizes[0])
+                .append(" p50=").append(sizes[sizes.length / 2])
+                .append(" p90=").append(sizes[(int)(sizes.length * 0.9)])
+                .append(" p99=").append(sizes[(int)(sizes.length * 0.99)])
+                .append(" max=").append(sizes[sizes.length - 1])
+                .append(System.lineSeparator()).append("#   histogram:");
+
+            int bucketHigh = 1;
+            int cnt = 0;
+            for (int size : sizes) {
+                while (size >= bucketHigh) {
+                    if (cnt > 0)
+                        sb.append(" [").append(bucketHigh / 2).append(',').append(bucketHigh).append(")=").append(cnt);
+                    bucketHigh *= 2;
+                    cnt = 0;
+                }
+                cnt++;
+            }
+            sb.append(" [").append(bucketHigh / 2).append(',').append(bucketHigh).append(")=").append(cnt);
+
+            System.out.println(sb);
+        }
+
         float[] nextRandomQuery(int dimension) {
             float[] vector = new float[dimension];
             for (int i = 0; i < dimension; i++) {
@@ -146,5 +320,12 @@ public class IVFIndexSearchBenchmarks {
             }
             return vector;
         }
+
+        float[][] nextRandomQueries(int count, int dimension) {
+            float[][] queries = new float[count][];
+            for (int i = 0; i < count; i++)
+                queries[i] = nextRandomQuery(dimension);
+            return queries;
+        }
     }
 }
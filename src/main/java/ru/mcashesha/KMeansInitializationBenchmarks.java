@@ -0,0 +1,102 @@
+package ru.mcashesha;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.data.EmbeddingCsvLoader;
+import ru.mcashesha.kmeans.KMeans;
+import ru.mcashesha.metrics.Metric;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compares the k-means initializers. {@code initialize} runs a single Lloyd iteration, so its time
+ * is dominated by seeding; {@code fit} runs a full Lloyd fit. The loss each reached is printed at
+ * the end of the trial, since JMH only reports times.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 30, timeUnit = SECONDS)
+@Measurement(iterations = 3, time = 60, timeUnit = SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class KMeansInitializationBenchmarks {
+
+    @Param("embeddings.csv")
+    public String embeddingsPath;
+
+    @Param({"K_MEANS_PLUS_PLUS", "K_MEANS_PARALLEL", "SAMPLED_K_MEANS_PLUS_PLUS"})
+    public String initializationName;
+
+    @Param({"256", "1024"})
+    public int clusterCount;
+
+    @Param({"1", "8"})
+    public int parallelism;
+
+    @Param("VECTOR_API")
+    public String metricEngineName;
+
+    float[][] data;
+    KMeans.Initialization initialization;
+    Metric.Engine metricEngine;
+
+    float initializeLoss = Float.NaN;
+    float fitLoss = Float.NaN;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.data = EmbeddingCsvLoader.loadEmbeddings(Paths.get(embeddingsPath));
+        this.initialization = KMeans.Initialization.valueOf(initializationName);
+        this.metricEngine = Metric.Engine.valueOf(metricEngineName);
+    }
+
+    @TearDown(Level.Trial)
+    public void printLoss() {
+        System.out.println();
+        System.out.println(initialization + ", k=" + clusterCount + ": loss after 1 iteration " + initializeLoss
+            + ", after fit " + fitLoss);
+    }
+
+    private KMeans.ClusteringResult fit(int maxIterations) {
+        return KMeans.newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, metricEngine)
+            .withClusterCount(clusterCount)
+            .withMaxIterations(maxIterations)
+            .withTolerance(1e-3f)
+            .withInitialization(initialization)
+            .withParallelism(parallelism)
+            .withRandom(new Random(42))
+            .build()
+            .fit(data);
+    }
+
+    @Benchmark
+    public KMeans.ClusteringResult initialize() {
+        KMeans.ClusteringResult result = fit(1);
+        initializeLoss = result.getLoss();
+        return result;
+    }
+
+    @Benchmark
+    public KMeans.ClusteringResult fit() {
+        KMeans.ClusteringResult result = fit(100);
+        fitLoss = result.getLoss();
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mcashesha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.metrics.Metric;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 5, timeUnit = SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class MetricBatchBenchmarks {
+
+    private static final int QUERY_COUNT = 16;
+    private static final int VECTOR_COUNT = 1024;
+
+    @Param({"SCALAR", "VECTOR_API", "SIMSIMD"})
+    public Metric.Engine engine;
+
+    @Param({"L2SQ_DISTANCE", "DOT_PRODUCT", "COSINE_DISTANCE"})
+    public Metric.Type metricType;
+
+    @Param({"128", "768"})
+    public int dimension;
+
+    float[][] queries;
+    float[][] vectors;
+    ByteBuffer contiguousVectors;
+    float[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+
+        this.queries = randomVectors(random, QUERY_COUNT);
+        this.vectors = randomVectors(random, VECTOR_COUNT);
+
+        this.contiguousVectors = ByteBuffer.allocateDirect(VECTOR_COUNT * dimension * Float.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] vector : vectors) {
+            for (float v : vector)
+                contiguousVectors.putFloat(v);
+        }
+
+        this.out = new float[QUERY_COUNT * VECTOR_COUNT];
+    }
+
+    private float[][] randomVectors(Random random, int count) {
+        float[][] result = new float[count][dimension];
+        for (float[] vector : result) {
+            for (int d = 0; d < dimension; d++)
+                vector[d] = random.nextFloat() * 2 - 1;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public float[] oneToManyPairwise() {
+        float[] query = queries[0];
+        int stride = dimension * Float.BYTES;
+        for (int j = 0; j < VECTOR_COUNT; j++)
+            out[j] = metricType.distance(engine, query, contiguousVectors, j * stride);
+        return out;
+    }
+
+    @Benchmark
+    public float[] oneToManyBatch() {
+        metricType.distances(engine, queries[0], contiguousVectors, 0, VECTOR_COUNT, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public float[] matrixPairwise() {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            for (int j = 0; j < VECTOR_COUNT; j++)
+                out[i * VECTOR_COUNT + j] = metricType.distance(engine, queries[i], vectors[j]);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public float[] matrixBatch() {
+        metricType.distanceMatrix(engine, queries, 0, QUERY_COUNT, vectors, out);
+        return out;
+    }
+}
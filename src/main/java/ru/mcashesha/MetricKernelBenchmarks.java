@@ -0,0 +1,113 @@
+package ru.mcashesha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.metrics.Metric;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 5, timeUnit = SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class MetricKernelBenchmarks {
+
+    @Param({"SCALAR", "VECTOR_API", "SIMSIMD"})
+    public Metric.Engine engine;
+
+    @Param({"96", "128", "768", "1536"})
+    public int dimension;
+
+    Metric metric;
+    float[] a;
+    float[] b;
+    ByteBuffer bufferB;
+    byte[] bitsA;
+    byte[] bitsB;
+    ByteBuffer bufferBitsB;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+
+        this.metric = engine.getMetric();
+
+        this.a = new float[dimension];
+        this.b = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            a[d] = random.nextFloat() * 2 - 1;
+            b[d] = random.nextFloat() * 2 - 1;
+        }
+
+        this.bufferB = ByteBuffer.allocateDirect(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (float v : b)
+            bufferB.putFloat(v);
+
+        // One bit per dimension of the float vectors, as in binary-quantized storage.
+        this.bitsA = new byte[dimension / Byte.SIZE];
+        this.bitsB = new byte[dimension / Byte.SIZE];
+        random.nextBytes(bitsA);
+        random.nextBytes(bitsB);
+
+        this.bufferBitsB = ByteBuffer.allocateDirect(bitsB.length);
+        bufferBitsB.put(bitsB);
+    }
+
+    @Benchmark
+    public float l2Distance() {
+        return metric.l2Distance(a, b);
+    }
+
+    @Benchmark
+    public float dotProduct() {
+        return metric.dotProduct(a, b);
+    }
+
+    @Benchmark
+    public float cosineDistance() {
+        return metric.cosineDistance(a, b);
+    }
+
+    @Benchmark
+    public long hammingDistanceB8() {
+        return metric.hammingDistanceB8(bitsA, bitsB);
+    }
+
+    @Benchmark
+    public float l2DistanceBuffer() {
+        return metric.l2Distance(a, bufferB, 0);
+    }
+
+    @Benchmark
+    public float dotProductBuffer() {
+        return metric.dotProduct(a, bufferB, 0);
+    }
+
+    @Benchmark
+    public float cosineDistanceBuffer() {
+        return metric.cosineDistance(a, bufferB, 0);
+    }
+
+    @Benchmark
+    public long hammingDistanceB8Buffer() {
+        return metric.hammingDistanceB8(bitsA, bufferBitsB, 0);
+    }
+}
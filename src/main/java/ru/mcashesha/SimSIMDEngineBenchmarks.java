@@ -0,0 +1,92 @@
+package ru.mcashesha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mcashesha.metrics.Metric;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Call overhead of the JNI ({@code SIMSIMD}) and FFM ({@code SIMSIMD_FFM}) bridges to the same
+ * SimSIMD kernels, from short vectors where the transition dominates to long ones where the
+ * kernel does. The FFM engine needs native access for the unnamed module, hence the fork flag.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 5, timeUnit = SECONDS)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+@Threads(1)
+@State(Scope.Thread)
+public class SimSIMDEngineBenchmarks {
+
+    private static final int VECTOR_COUNT = 256;
+
+    @Param({"SIMSIMD", "SIMSIMD_FFM"})
+    public Metric.Engine engine;
+
+    @Param({"L2SQ_DISTANCE", "DOT_PRODUCT", "COSINE_DISTANCE"})
+    public Metric.Type metricType;
+
+    @Param({"64", "128", "256", "512", "1024", "2048", "4096"})
+    public int dimension;
+
+    float[] query;
+    float[] vector;
+    ByteBuffer contiguousVectors;
+    float[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+
+        this.query = randomVector(random);
+        this.vector = randomVector(random);
+
+        this.contiguousVectors = ByteBuffer.allocateDirect(VECTOR_COUNT * dimension * Float.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < VECTOR_COUNT * dimension; i++)
+            contiguousVectors.putFloat(random.nextFloat() * 2 - 1);
+
+        this.out = new float[VECTOR_COUNT];
+    }
+
+    private float[] randomVector(Random random) {
+        float[] result = new float[dimension];
+        for (int d = 0; d < dimension; d++)
+            result[d] = random.nextFloat() * 2 - 1;
+        return result;
+    }
+
+    @Benchmark
+    public float arrays() {
+        return metricType.distance(engine, query, vector);
+    }
+
+    @Benchmark
+    public float buffer() {
+        return metricType.distance(engine, query, contiguousVectors, 0);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public float[] batch() {
+        metricType.distances(engine, query, contiguousVectors, 0, VECTOR_COUNT, out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,257 @@
+package ru.mcashesha.ivf;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import ru.mcashesha.kmeans.HierarchicalKMeans;
+import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
+
+/**
+ * The node tree of a {@link HierarchicalKMeans} clustering, flattened for coarse search. Probed
+ * leaves are found by a beam search from the root: every level scores the children of the
+ * {@code beamWidth} best internal nodes of the level above, so selecting clusters costs about
+ * {@code branchFactor * depth * beamWidth} distances instead of one per leaf. Every leaf met on
+ * the way competes for the {@code nProbe} result slots, whether or not its parent was the best.
+ * The children of every internal node are packed into one direct buffer, so scoring them is a
+ * single one-to-many kernel call that copies nothing but the query. Maintenance passes patch the
+ * tree with {@link #rebalanced} instead of dropping it.
+ */
+final class CentroidTree {
+    /** Centroids of the children of every internal node, packed, or {@code null} for a leaf. */
+    private final ByteBuffer[] childBlocks;
+    private final float[][] childInverseNorms;
+    private final int[][] children;
+    private final int[] leafIds;
+    private final int maxBranch;
+
+    private CentroidTree(ByteBuffer[] childBlocks,
+        float[][] childInverseNorms,
+        int[][] children,
+        int[] leafIds,
+        int maxBranch) {
+        this.childBlocks = childBlocks;
+        this.childInverseNorms = childInverseNorms;
+        this.children = children;
+        this.leafIds = leafIds;
+        this.maxBranch = maxBranch;
+    }
+
+    /** Flattens the tree in breadth-first order; {@code cosine} caches the inverse norms of the centroids. */
+    static CentroidTree of(HierarchicalKMeans.Node root, boolean cosine) {
+        return flatten(draft(root), cosine);
+    }
+
+    /**
+     * Tree after a maintenance pass has renumbered, split and merged the leaves: leaf {@code c}
+     * becomes leaf {@code newLeafIds[c]}, or is dropped when that is {@code -1}, and a leaf with
+     * {@code splitCentroids[c]} becomes an internal node over two leaves, {@code newLeafIds[c]} and
+     * {@code secondLeafIds[c]}, at those centroids. Internal nodes left without leaves are dropped.
+     *
+     * @return {@code null} if no leaf is left.
+     */
+    CentroidTree rebalanced(int[] newLeafIds, float[][][] splitCentroids, int[] secondLeafIds) {
+        Draft root = redraft(0, null, newLeafIds, splitCentroids, secondLeafIds);
+        return root == null ? null : flatten(root, childInverseNorms != null);
+    }
+
+    private static Draft draft(HierarchicalKMeans.Node node) {
+        if (node.isLeaf()) {
+            if (node.getLeafId() < 0)
+                throw new IllegalStateException("Leaf node has no leafId assigned");
+            return new Draft(node.getCentroid(), node.getLeafId(), null);
+        }
+
+        HierarchicalKMeans.Node[] nodeChildren = node.getChildren();
+        Draft[] children = new Draft[nodeChildren.length];
+        for (int k = 0; k < nodeChildren.length; k++)
+            children[k] = draft(nodeChildren[k]);
+        return new Draft(node.getCentroid(), -1, children);
+    }
+
+    /** Draft of flattened {@code node} with the pass of {@link #rebalanced} applied, or {@code null}. */
+    private Draft redraft(int node, float[] centroid, int[] newLeafIds, float[][][] splitCentroids,
+        int[] secondLeafIds) {
+        int leafId = leafIds[node];
+        if (leafId >= 0) {
+            if (newLeafIds[leafId] < 0)
+                return null;
+            if (splitCentroids[leafId] == null)
+                return new Draft(centroid, newLeafIds[leafId], null);
+
+            return new Draft(centroid, -1, new Draft[] {
+                new Draft(splitCentroids[leafId][0], newLeafIds[leafId], null),
+                new Draft(splitCentroids[leafId][1], secondLeafIds[leafId], null)});
+        }
+
+        int[] nodeChildren = children[node];
+        int dimension = childBlocks[node].capacity() / (nodeChildren.length * Float.BYTES);
+        FloatBuffer block = childBlocks[node].duplicate().order(VectorStorage.BYTE_ORDER).asFloatBuffer();
+
+        List<Draft> kept = new ArrayList<>(nodeChildren.length);
+        for (int k = 0; k < nodeChildren.length; k++) {
+            float[] childCentroid = new float[dimension];
+            block.get(k * dimension, childCentroid);
+
+            Draft child = redraft(nodeChildren[k], childCentroid, newLeafIds, splitCentroids, secondLeafIds);
+            if (child != null)
+                kept.add(child);
+        }
+
+        return kept.isEmpty() ? null : new Draft(centroid, -1, kept.toArray(new Draft[0]));
+    }
+
+    private static CentroidTree flatten(Draft root, boolean cosine) {
+        List<Draft> nodes = new ArrayList<>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            Draft node = nodes.get(i);
+            if (node.children != null)
+                nodes.addAll(Arrays.asList(node.children));
+        }
+
+        int nodeCnt = nodes.size();
+        ByteBuffer[] childBlocks = new ByteBuffer[nodeCnt];
+        float[][] childInverseNorms = cosine ? new float[nodeCnt][] : null;
+        int[][] children = new int[nodeCnt][];
+        int[] leafIds = new int[nodeCnt];
+        int maxBranch = 0;
+
+        int nextChild = 1;
+        for (int i = 0; i < nodeCnt; i++) {
+            Draft node = nodes.get(i);
+            if (node.children == null) {
+                leafIds[i] = node.leafId;
+                continue;
+            }
+
+            leafIds[i] = -1;
+            int branch = node.children.length;
+            maxBranch = Math.max(maxBranch, branch);
+
+            float[][] centroids = new float[branch][];
+            children[i] = new int[branch];
+            for (int k = 0; k < branch; k++) {
+                centroids[k] = node.children[k].centroid;
+                children[i][k] = nextChild++;
+            }
+            childBlocks[i] = VectorStorage.pack(centroids);
+            if (cosine)
+                childInverseNorms[i] = VectorNorms.inverseNorms(centroids);
+        }
+
+        return new CentroidTree(childBlocks, childInverseNorms, children, leafIds, maxBranch);
+    }
+
+    /**
+     * Writes the leaf ids of up to {@code nProbe} leaves closest to {@code qry} to {@code out},
+     * closest first, and returns how many were found.
+     */
+    int select(Metric.Type metricType,
+        Metric.Engine metricEngine,
+        float[] qry,
+        int nProbe,
+        int beamWidth,
+        Search search,
+        int[] out) {
+        if (leafIds[0] >= 0) {
+            out[0] = leafIds[0];
+            return 1;
+        }
+
+        beamWidth = Math.max(beamWidth, nProbe);
+        search.ensureCapacity(beamWidth, maxBranch);
+
+        float qryInverseNorm = childInverseNorms != null ? VectorNorms.inverseNorm(qry) : 0f;
+
+        TopKHeap leaves = search.leaves;
+        leaves.reset(nProbe);
+
+        int[] frontier = search.frontier;
+        frontier[0] = 0;
+        int frontierCnt = 1;
+
+        while (frontierCnt > 0) {
+            int candidateCnt = 0;
+
+            for (int f = 0; f < frontierCnt; f++) {
+                int node = frontier[f];
+                int[] nodeChildren = children[node];
+                float[] distances = search.childDistances;
+                if (childInverseNorms == null)
+                    metricType.distances(metricEngine, qry, childBlocks[node], 0, nodeChildren.length, distances, 0);
+                else {
+                    Metric.Type.DOT_PRODUCT.distances(metricEngine, qry, childBlocks[node], 0, nodeChildren.length,
+                        distances, 0);
+                    VectorNorms.cosineDistances(distances, 0, nodeChildren.length, qryInverseNorm,
+                        childInverseNorms[node], 0);
+                }
+
+                for (int k = 0; k < nodeChildren.length; k++) {
+                    int child = nodeChildren[k];
+                    float d = distances[k];
+                    if (leafIds[child] >= 0) {
+                        if (d < leaves.threshold())
+                            leaves.offer(leafIds[child], d, leafIds[child]);
+                    }
+                    else {
+                        search.candidates[candidateCnt] = child;
+                        search.candidateDistances[candidateCnt++] = d;
+                    }
+                }
+            }
+
+            if (candidateCnt == 0)
+                break;
+
+            frontierCnt = search.selector.select(search.candidateDistances, candidateCnt, beamWidth, search.selected);
+            for (int f = 0; f < frontierCnt; f++)
+                frontier[f] = search.candidates[search.selected[f]];
+        }
+
+        leaves.sortAscending();
+        for (int i = 0; i < leaves.size(); i++)
+            out[i] = leaves.id(i);
+
+        return leaves.size();
+    }
+
+    /** A node before flattening; {@code children} is {@code null} for a leaf. */
+    private static final class Draft {
+        final float[] centroid;
+        final int leafId;
+        final Draft[] children;
+
+        Draft(float[] centroid, int leafId, Draft[] children) {
+            this.centroid = centroid;
+            this.leafId = leafId;
+            this.children = children;
+        }
+    }
+
+    /** Reusable per-thread scratch for {@link #select}. */
+    static final class Search {
+        final NProbeSelector selector = new NProbeSelector();
+        final TopKHeap leaves = new TopKHeap(16);
+        private int[] frontier = new int[0];
+        private int[] selected = new int[0];
+        private int[] candidates = new int[0];
+        private float[] candidateDistances = new float[0];
+        private float[] childDistances = new float[0];
+
+        void ensureCapacity(int beamWidth, int maxBranch) {
+            if (frontier.length < beamWidth) {
+                frontier = new int[beamWidth];
+                selected = new int[beamWidth];
+            }
+            if (candidates.length < beamWidth * maxBranch) {
+                candidates = new int[beamWidth * maxBranch];
+                candidateDistances = new float[beamWidth * maxBranch];
+            }
+            if (childDistances.length < maxBranch)
+                childDistances = new float[maxBranch];
+        }
+    }
+}
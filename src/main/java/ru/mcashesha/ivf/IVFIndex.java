@@ -1,15 +1,48 @@
 package ru.mcashesha.ivf;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import ru.mcashesha.metrics.Metric;
 
 public interface IVFIndex {
+    /** Opens an index saved by {@link #save}, flat or PQ according to the file. */
+    static IVFIndex open(Path path) throws IOException {
+        if (path == null)
+            throw new IllegalArgumentException("path must be non-null");
+
+        IVFIndexFormat.Contents contents = IVFIndexFormat.read(path, 0);
+        return contents.kind == IVFIndexFormat.KIND_PQ ? new IVFIndexPQ(contents) : new IVFIndexFlat(contents);
+    }
+
     void build(float[][] vectors, int[] ids);
 
     void build(float[][] vectors);
 
+    /** Appends {@code vector} to the inverted list of its nearest centroid of the built index. */
+    void add(float[] vector, int id);
+
+    void addBatch(float[][] vectors, int[] ids);
+
+    /**
+     * Removes every vector stored under {@code id}.
+     *
+     * @return whether any vector was removed.
+     */
+    boolean delete(int id);
+
     List<SearchResult> search(float[] query, int topK, int nProbe);
 
+    void search(float[] query, int topK, int nProbe, ResultSink sink);
+
+    List<List<SearchResult>> searchBatch(float[][] queries, int topK, int nProbe);
+
+    /**
+     * Writes the index to a temporary sibling of {@code path}, forces it to disk and atomically
+     * renames it over {@code path}, so an index opened from {@code path} keeps reading its old file.
+     */
+    void save(Path path) throws IOException;
+
     int getDimension();
 
     int getCountClusters();
@@ -18,6 +51,15 @@ public interface IVFIndex {
 
     Metric.Engine getMetricEngine();
 
+    /**
+     * Receives search hits in ascending distance order without materializing {@link SearchResult}
+     * objects. Implementations must not call back into the index from {@code accept}.
+     */
+    @FunctionalInterface
+    interface ResultSink {
+        void accept(int id, float distance, int clusterId);
+    }
+
     final class SearchResult {
         public final int id;
         public final float distance;
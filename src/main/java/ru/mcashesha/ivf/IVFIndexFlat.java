@@ -1,56 +1,217 @@
 package ru.mcashesha.ivf;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import ru.mcashesha.kmeans.HierarchicalKMeans;
 import ru.mcashesha.kmeans.KMeans;
 import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
 
+/**
+ * IVF index over contiguous, cluster-ordered vector storage.
+ *
+ * <p>The stored vectors are kept in direct buffers rather than on the heap. Direct memory is
+ * limited by {@code -XX:MaxDirectMemorySize}, which defaults to {@code -Xmx}, so building an index
+ * whose vectors outgrow the heap limit needs that flag raised; an index opened from a file is
+ * memory-mapped and is not subject to it.
+ *
+ * <p>Thread safety: all searchable state (centroids and inverted lists) lives in an immutable
+ * {@link Snapshot} published through a volatile field. Searches read that field once and run
+ * lock-free against the snapshot they saw, so any number of threads may search concurrently.
+ * {@code build} prepares a complete snapshot off to the side and swaps it in with a single
+ * volatile write; readers observe either the previous index or the fully built new one, never a
+ * mix. Concurrent builds are serialized with each other but never block searches.
+ *
+ * <p>{@code add}, {@code addBatch} and {@code delete} are writers too and follow the same protocol.
+ * An add writes into the spare capacity of the inverted lists it appends to, past the list sizes
+ * of the published snapshot, and only a full list is copied into one of twice the capacity. A
+ * delete marks the vector's position in a per-cluster tombstone bitset that scans skip; once a
+ * quarter of a list is tombstoned, that list is compacted into a fresh copy. Nothing a published
+ * snapshot reads is written in place, so searches keep running against whatever snapshot they
+ * started on.
+ * {@link IVFIndexMaintenance} re-clusters drifting lists the same way.
+ *
+ * <p>With a {@link VectorEncoding#FLOAT16}, {@link VectorEncoding#INT8} or
+ * {@link VectorEncoding#BINARY} encoding the inverted lists are scanned over quantized codes
+ * instead of floats. When {@code rerankFactor > 0} the float vectors are kept as well and the best
+ * {@code topK * rerankFactor} candidates of the scan are re-scored exactly; otherwise the
+ * approximate distances are returned. BINARY codes only rank candidates by Hamming distance and
+ * always require a re-rank.
+ *
+ * <p>With {@code trainSampleSize > 0} and more vectors than that, {@code build} fits the centroids
+ * on a uniform random sample only and then assigns every vector with {@link KMeans#predict}, one
+ * pass over the data in chunks of {@value #ASSIGN_CHUNK} vectors, run on the search pool when
+ * there is one. A {@link KMeans.Builder#withMaxClusterSizeRatio} cap is then applied to those
+ * labels with {@link KMeans#capClusterSizes}, relative to the full vector count.
+ *
+ * <p>With {@code beamWidth > 0} and a {@link KMeans.Type#HIERARCHICAL} clustering, the probed
+ * clusters are picked by a beam search down the clustering tree instead of by scoring every leaf
+ * centroid, see {@link CentroidTree}. The tree is kept across adds and deletes, and maintenance
+ * patches it: a split leaf gets the two halves as children and a merged leaf is dropped. The tree
+ * is not saved, so an index opened from a file scores every centroid; see {@link #usesCentroidTree}.
+ *
+ * <p>For {@link Metric.Type#COSINE_DISTANCE} the inverse norms of the centroids and of the stored
+ * float vectors are cached when the index is built or opened, so every centroid and candidate is
+ * scored with a single dot product.
+ */
 public class IVFIndexFlat implements IVFIndex {
+    private static final int ASSIGN_CHUNK = 1 << 16;
+    /** Rows of {@code addBatch} scored against the centroids per distance matrix. */
+    private static final int ADD_BLOCK = 256;
+    /** A list is compacted once more than {@code 1 / COMPACT_DIVISOR} of its positions are tombstoned. */
+    private static final int COMPACT_DIVISOR = 4;
+    /** Float vectors of a list that {@code searchBatch} scores against all probing queries at a time. */
+    private static final int BATCH_TILE_BYTES = 1 << 16;
+    private static final int MIN_TILE_ROWS = 8;
+    /** Lloyd iterations of the 2-means that splits a list during maintenance. */
+    private static final int SPLIT_ITERATIONS = 20;
+    /** Attempts of a maintenance pass; all but the last fit their splits without the build lock. */
+    private static final int REBALANCE_ATTEMPTS = 3;
+
+    /** Columns of a saved index, see {@link IVFIndexFormat}; absent ones are not written. */
+    private static final int COLUMN_VECTORS = 0;
+    private static final int COLUMN_INVERSE_NORMS = 1;
+    private static final int COLUMN_CODES = 2;
+    private static final int COLUMN_FACTORS = 3;
+    private static final int COLUMN_COUNT = 4;
+
+    private static final ThreadLocal<SearchScratch> SEARCH_SCRATCH = ThreadLocal.withInitial(SearchScratch::new);
+
     private final KMeans<? extends KMeans.ClusteringResult> kMeans;
+    private final Metric.Type metricType;
+    private final Metric.Engine metricEngine;
+    private final ForkJoinPool searchPool;
+    private final VectorEncoding encoding;
+    private final int rerankFactor;
+    private final int trainSampleSize;
+    private final int beamWidth;
+    private final Random random;
+    private final Object buildLock = new Object();
 
-    private float[][] centroids;
-    private List<IntArrayList> invertedLists;
+    private volatile Snapshot snapshot;
 
-    private float[][] data;
-    private int[] ids;
-    private int dimension;
-    private boolean built;
+    /** Locations of the live vectors of {@code snapshot}, built on the first delete; guarded by {@code buildLock}. */
+    private IdLocations idLocations;
 
     public IVFIndexFlat(KMeans<? extends KMeans.ClusteringResult> kMeans) {
+        this(kMeans, null);
+    }
+
+    public IVFIndexFlat(KMeans<? extends KMeans.ClusteringResult> kMeans, ForkJoinPool searchPool) {
+        this(kMeans, searchPool, VectorEncoding.FLOAT32, 0);
+    }
+
+    public IVFIndexFlat(KMeans<? extends KMeans.ClusteringResult> kMeans,
+        ForkJoinPool searchPool,
+        VectorEncoding encoding,
+        int rerankFactor) {
+        this(kMeans, searchPool, encoding, rerankFactor, 0, new Random());
+    }
+
+    public IVFIndexFlat(KMeans<? extends KMeans.ClusteringResult> kMeans,
+        ForkJoinPool searchPool,
+        VectorEncoding encoding,
+        int rerankFactor,
+        int trainSampleSize,
+        Random random) {
+        this(kMeans, searchPool, encoding, rerankFactor, trainSampleSize, 0, random);
+    }
+
+    /**
+     * @param trainSampleSize number of randomly sampled vectors the centroids are trained on, or
+     * {@code 0} to train on all of them.
+     * @param beamWidth internal tree nodes kept per level when descending a hierarchical
+     * clustering, at least {@code nProbe}; {@code 0} scores every leaf centroid.
+     * @param random source of the training sample.
+     */
+    public IVFIndexFlat(KMeans<? extends KMeans.ClusteringResult> kMeans,
+        ForkJoinPool searchPool,
+        VectorEncoding encoding,
+        int rerankFactor,
+        int trainSampleSize,
+        int beamWidth,
+        Random random) {
         if (kMeans == null)
             throw new IllegalArgumentException("kMeans must be non-null");
+        if (encoding == null)
+            throw new IllegalArgumentException("encoding must be non-null");
+        if (rerankFactor < 0)
+            throw new IllegalArgumentException("rerankFactor must be >= 0");
+        if (encoding == VectorEncoding.BINARY && rerankFactor == 0)
+            throw new IllegalArgumentException("BINARY encoding requires rerankFactor > 0");
+        if (trainSampleSize < 0)
+            throw new IllegalArgumentException("trainSampleSize must be >= 0");
+        if (beamWidth < 0)
+            throw new IllegalArgumentException("beamWidth must be >= 0");
+        if (random == null)
+            throw new IllegalArgumentException("random must be non-null");
 
         this.kMeans = kMeans;
+        this.metricType = kMeans.getMetricType();
+        this.metricEngine = kMeans.getMetricEngine();
+        this.searchPool = searchPool;
+        this.encoding = encoding;
+        this.rerankFactor = rerankFactor;
+        this.trainSampleSize = trainSampleSize;
+        this.beamWidth = beamWidth;
+        this.random = random;
     }
 
-    private static int[] selectTopNProbeClusters(float[] distances, int nProbe) {
-        int clusterCnt = distances.length;
-        nProbe = Math.min(nProbe, clusterCnt);
+    IVFIndexFlat(IVFIndexFormat.Contents contents) throws IOException {
+        ByteBuffer[][] columns = contents.columns;
+        if (columns.length != COLUMN_COUNT)
+            throw new IOException("unexpected column count " + columns.length + " (expected " + COLUMN_COUNT + ')');
 
-        int[] result = new int[nProbe];
-        boolean[] used = new boolean[clusterCnt];
+        boolean quantizedColumns = contents.encoding != VectorEncoding.FLOAT32;
+        if ((columns[COLUMN_VECTORS] == null) != (quantizedColumns && contents.rerankFactor == 0)
+            || (columns[COLUMN_INVERSE_NORMS] != null) != (columns[COLUMN_VECTORS] != null
+            && contents.metricType == Metric.Type.COSINE_DISTANCE)
+            || (columns[COLUMN_CODES] != null) != quantizedColumns
+            || (columns[COLUMN_FACTORS] != null) != (contents.encoding == VectorEncoding.INT8))
+            throw new IOException("columns do not match " + contents.encoding + " encoding");
 
-        for (int i = 0; i < nProbe; i++) {
-            int bestIdx = -1;
-            float bestDistance = Float.POSITIVE_INFINITY;
+        int dimension = contents.centroids[0].length;
+        if (columns[COLUMN_VECTORS] != null && contents.recordBytes[COLUMN_VECTORS] != dimension * Float.BYTES
+            || columns[COLUMN_CODES] != null
+            && contents.recordBytes[COLUMN_CODES] != contents.encoding.getBytesPerVector(dimension))
+            throw new IOException("record sizes do not match dimension " + dimension);
 
-            for (int c = 0; c < clusterCnt; c++) {
-                if (used[c])
-                    continue;
-                float d = distances[c];
-                if (d < bestDistance) {
-                    bestDistance = d;
-                    bestIdx = c;
-                }
-            }
+        this.kMeans = null;
+        this.searchPool = null;
+        this.encoding = contents.encoding;
+        this.rerankFactor = contents.rerankFactor;
+        this.trainSampleSize = 0;
+        this.beamWidth = 0;
+        this.random = null;
+        this.metricType = contents.metricType;
+        this.metricEngine = contents.metricEngine;
 
-            result[i] = bestIdx;
-            used[bestIdx] = true;
-        }
+        VectorStorage storage = columns[COLUMN_VECTORS] == null
+            ? null
+            : VectorStorage.open(dimension, columns[COLUMN_VECTORS], columns[COLUMN_INVERSE_NORMS],
+                contents.clusterIds);
+        QuantizedStorage quantized = quantizedColumns
+            ? QuantizedStorage.open(contents.encoding, dimension, columns[COLUMN_CODES], columns[COLUMN_FACTORS],
+                contents.centroids, contents.clusterIds)
+            : null;
+        this.snapshot = new Snapshot(contents.centroids, storage, quantized,
+            centroidInverseNorms(contents.centroids), null, null);
+    }
 
-        return result;
+    public static IVFIndexFlat open(Path path) throws IOException {
+        if (path == null)
+            throw new IllegalArgumentException("path must be non-null");
+
+        return new IVFIndexFlat(IVFIndexFormat.read(path, IVFIndexFormat.KIND_FLAT));
     }
 
     @Override public void build(float[][] vectors) {
@@ -58,6 +219,8 @@ public class IVFIndexFlat implements IVFIndex {
     }
 
     @Override public void build(float[][] vectors, int[] ids) {
+        if (kMeans == null)
+            throw new IllegalStateException("Index was opened from a file and has no KMeans to rebuild with");
         if (vectors == null || vectors.length == 0)
             throw new IllegalArgumentException("vectors must be non-empty");
         if (vectors[0] == null)
@@ -75,25 +238,42 @@ public class IVFIndexFlat implements IVFIndex {
             }
         }
 
-        this.dimension = locDimension;
-        this.data = vectors;
-
         if (ids != null) {
             if (ids.length != vectors.length)
                 throw new IllegalArgumentException("ids length must match vectors length");
-            this.ids = ids;
         }
         else {
-            this.ids = new int[vectors.length];
-            for (int i = 0; i < this.ids.length; i++)
-                this.ids[i] = i;
+            ids = new int[vectors.length];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = i;
         }
 
-        KMeans.ClusteringResult clusteringResult = kMeans.fit(vectors);
+        synchronized (buildLock) {
+            snapshot = createSnapshot(vectors, ids, locDimension);
+            idLocations = null;
+        }
+    }
 
-        this.centroids = clusteringResult.getCentroids();
-        int[] sizes = clusteringResult.getClusterSizes();
-        int[] assignments = clusteringResult.getClusterAssignments();
+    private Snapshot createSnapshot(float[][] vectors, int[] ids, int dimension) {
+        KMeans.ClusteringResult clusteringResult;
+        float[][] centroids;
+        int[] sizes;
+        int[] assignments;
+
+        if (trainSampleSize > 0 && trainSampleSize < vectors.length) {
+            clusteringResult = trainOnSample(kMeans, vectors);
+
+            centroids = clusteringResult.getCentroids();
+            assignments = assignAll(kMeans, clusteringResult, vectors);
+            sizes = null;
+        }
+        else {
+            clusteringResult = kMeans.fit(vectors);
+
+            centroids = clusteringResult.getCentroids();
+            sizes = clusteringResult.getClusterSizes();
+            assignments = clusteringResult.getClusterAssignments();
+        }
 
         if (centroids == null || centroids.length == 0)
             throw new IllegalStateException("KMeans returned empty centroids");
@@ -107,7 +287,14 @@ public class IVFIndexFlat implements IVFIndex {
                 throw new IllegalStateException("centroid dimension mismatch");
         }
 
-        this.invertedLists = new ArrayList<>(clusterCnt);
+        if (sizes == null) {
+            sizes = new int[clusterCnt];
+            for (int clusterId : assignments) {
+                if (clusterId < 0 || clusterId >= clusterCnt)
+                    throw new IllegalStateException("KMeans returned invalid cluster id " + clusterId);
+                sizes[clusterId]++;
+            }
+        }
 
         int totalSize = 0;
         for (int c = 0; c < clusterCnt; c++) {
@@ -121,118 +308,1160 @@ public class IVFIndexFlat implements IVFIndex {
                 "Sum of clusterSizes (" + totalSize + ") != number of vectors (" + vectors.length + ')'
             );
 
+        boolean cosine = metricType == Metric.Type.COSINE_DISTANCE;
+        float[] centroidInverseNorms = centroidInverseNorms(centroids);
+
+        CentroidTree tree = null;
+        if (beamWidth > 0 && clusteringResult instanceof HierarchicalKMeans.Result)
+            tree = CentroidTree.of(((HierarchicalKMeans.Result)clusteringResult).getRoot(), cosine);
+
+        if (encoding == VectorEncoding.FLOAT32) {
+            VectorStorage storage = VectorStorage.build(vectors, ids, assignments, clusterCnt, dimension, cosine);
+            return new Snapshot(centroids, storage, null, centroidInverseNorms, null, tree);
+        }
+
+        QuantizedStorage quantized = QuantizedStorage.build(vectors, ids, assignments, centroids, encoding);
+        VectorStorage storage = rerankFactor > 0
+            ? VectorStorage.build(vectors, ids, assignments, clusterCnt, dimension, cosine)
+            : null;
+
+        return new Snapshot(centroids, storage, quantized, centroidInverseNorms, null, tree);
+    }
+
+    @Override public void add(float[] vector, int id) {
+        if (vector == null)
+            throw new IllegalArgumentException("vector must be non-null");
+
+        addBatch(new float[][] {vector}, new int[] {id});
+    }
+
+    @Override public void addBatch(float[][] vectors, int[] ids) {
+        if (vectors == null || ids == null)
+            throw new IllegalArgumentException("vectors and ids must be non-null");
+        if (ids.length != vectors.length)
+            throw new IllegalArgumentException("ids length must match vectors length");
+        if (vectors.length == 0)
+            return;
+
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null)
+                throw new IllegalStateException("Index is not built yet");
+            for (float[] vector : vectors) {
+                if (vector == null || vector.length != locSnapshot.dimension)
+                    throw new IllegalArgumentException("all vectors must be non-null and match index dimension");
+            }
+
+            int[] assignments = nearestCentroids(locSnapshot, vectors);
+
+            VectorStorage storage = locSnapshot.storage == null
+                ? null
+                : locSnapshot.storage.append(vectors, ids, assignments);
+            QuantizedStorage quantized = locSnapshot.quantized == null
+                ? null
+                : locSnapshot.quantized.append(vectors, ids, assignments, locSnapshot.centroids);
+
+            snapshot = locSnapshot.withLists(storage, quantized, locSnapshot.deleted);
+
+            if (idLocations != null) {
+                int[] positions = new int[locSnapshot.centroids.length];
+                for (int c = 0; c < positions.length; c++)
+                    positions[c] = locSnapshot.size(c);
+                for (int i = 0; i < ids.length; i++)
+                    idLocations.put(ids[i], assignments[i], positions[assignments[i]]++);
+            }
+        }
+    }
+
+    /** Index of the nearest centroid of every vector, scored {@link #ADD_BLOCK} vectors at a time. */
+    private int[] nearestCentroids(Snapshot locSnapshot, float[][] vectors) {
+        int clusterCnt = locSnapshot.centroids.length;
+        int[] assignments = new int[vectors.length];
+        float[] distances = new float[Math.min(ADD_BLOCK, vectors.length) * clusterCnt];
+
+        for (int blockStart = 0; blockStart < vectors.length; blockStart += ADD_BLOCK) {
+            int blockSize = Math.min(ADD_BLOCK, vectors.length - blockStart);
+            float[][] block = Arrays.copyOfRange(vectors, blockStart, blockStart + blockSize);
+            computeCentroidDistances(locSnapshot, block, blockSize, distances);
+
+            for (int b = 0; b < blockSize; b++) {
+                int nearest = 0;
+                for (int c = 1; c < clusterCnt; c++) {
+                    if (distances[b * clusterCnt + c] < distances[b * clusterCnt + nearest])
+                        nearest = c;
+                }
+                assignments[blockStart + b] = nearest;
+            }
+        }
+
+        return assignments;
+    }
+
+    /**
+     * Tombstones every live vector stored under {@code id}, found through a map from ids to list
+     * positions that the first delete builds with one pass over the stored ids. Lists that end up
+     * more than a quarter deleted are compacted in the same snapshot.
+     */
+    @Override public boolean delete(int id) {
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null)
+                throw new IllegalStateException("Index is not built yet");
+
+            if (idLocations == null)
+                idLocations = locate(locSnapshot);
+
+            long[] locations = idLocations.remove(id);
+            if (locations.length == 0)
+                return false;
+
+            int clusterCnt = locSnapshot.centroids.length;
+            long[][] deleted = locSnapshot.deleted == null ? new long[clusterCnt][] : locSnapshot.deleted.clone();
+            for (long location : locations) {
+                int c = IdLocations.clusterId(location);
+                deleted[c] = Tombstones.with(deleted[c], locSnapshot.size(c), IdLocations.pos(location));
+            }
+
+            long[][] toCompact = new long[clusterCnt][];
+            boolean compact = false;
+            for (long location : locations) {
+                int c = IdLocations.clusterId(location);
+                if (deleted[c] != null && Tombstones.count(deleted[c]) > locSnapshot.size(c) / COMPACT_DIVISOR) {
+                    toCompact[c] = deleted[c];
+                    deleted[c] = null;
+                    compact = true;
+                }
+            }
+
+            snapshot = compact ? compact(locSnapshot, toCompact, deleted) : locSnapshot.withDeleted(deleted);
+            return true;
+        }
+    }
+
+    /** Drops every tombstoned vector from the inverted lists. */
+    public void compact() {
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null || locSnapshot.deleted == null)
+                return;
+
+            snapshot = compact(locSnapshot, locSnapshot.deleted, new long[locSnapshot.centroids.length][]);
+        }
+    }
+
+    /** Location of every live vector of {@code locSnapshot}. */
+    private static IdLocations locate(Snapshot locSnapshot) {
+        int clusterCnt = locSnapshot.centroids.length;
+        int total = 0;
         for (int c = 0; c < clusterCnt; c++)
-            this.invertedLists.add(new IntArrayList(sizes[c]));
+            total += locSnapshot.size(c);
+
+        IdLocations locations = new IdLocations(total);
+        for (int c = 0; c < clusterCnt; c++) {
+            long[] deleted = locSnapshot.deleted(c);
+            for (int pos = 0; pos < locSnapshot.size(c); pos++) {
+                if (deleted == null || !Tombstones.contains(deleted, pos))
+                    locations.put(locSnapshot.id(c, pos), c, pos);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Snapshot with the lists that have a bitset in {@code toCompact} rewritten and {@code remaining}
+     * tombstones. Moves the id locations of the rewritten lists along.
+     */
+    private Snapshot compact(Snapshot locSnapshot, long[][] toCompact, long[][] remaining) {
+        if (idLocations != null) {
+            for (int c = 0; c < toCompact.length; c++) {
+                long[] bits = toCompact[c];
+                if (bits == null)
+                    continue;
+
+                for (int pos = 0, live = 0; pos < locSnapshot.size(c); pos++) {
+                    if (Tombstones.contains(bits, pos))
+                        continue;
+                    if (pos != live)
+                        idLocations.move(locSnapshot.id(c, pos), c, pos, live);
+                    live++;
+                }
+            }
+        }
+
+        VectorStorage storage = locSnapshot.storage == null ? null : locSnapshot.storage.compact(toCompact);
+        QuantizedStorage quantized = locSnapshot.quantized == null ? null : locSnapshot.quantized.compact(toCompact);
 
-        for (int i = 0; i < assignments.length; i++) {
-            int clusterId = assignments[i];
-            if (clusterId < 0 || clusterId >= clusterCnt)
+        return locSnapshot.withLists(storage, quantized, null).withDeleted(remaining);
+    }
+
+    /**
+     * One {@link IVFIndexMaintenance} pass: compacts tombstones, splits lists that are too long or
+     * too spread out with a local 2-means and folds lists that are too short into the nearest
+     * remaining centroids. The 2-means fits run without the build lock against the current
+     * snapshot, which is replaced only if no add or delete published another one meanwhile;
+     * otherwise the pass starts over, and its last attempt holds the build lock throughout.
+     */
+    IVFIndexMaintenance.Pass rebalance(float maxSizeRatio, float minSizeRatio, float maxErrorRatio, Random random) {
+        for (int attempt = 1; attempt < REBALANCE_ATTEMPTS; attempt++) {
+            Snapshot locSnapshot = compactForRebalance();
+            RebalancePlan plan = planRebalance(locSnapshot, maxSizeRatio, minSizeRatio, maxErrorRatio, random);
+
+            synchronized (buildLock) {
+                if (snapshot == locSnapshot)
+                    return applyRebalance(locSnapshot, plan);
+            }
+        }
+
+        synchronized (buildLock) {
+            Snapshot locSnapshot = compactForRebalance();
+            return applyRebalance(locSnapshot,
+                planRebalance(locSnapshot, maxSizeRatio, minSizeRatio, maxErrorRatio, random));
+        }
+    }
+
+    /** Publishes and returns the current snapshot with its tombstones compacted away. */
+    private Snapshot compactForRebalance() {
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null)
+                throw new IllegalStateException("Index is not built yet");
+            if (locSnapshot.storage == null)
+                throw new IllegalStateException("Index keeps no float vectors to re-cluster");
+            if (locSnapshot.deleted != null) {
+                locSnapshot = compact(locSnapshot, locSnapshot.deleted, new long[locSnapshot.centroids.length][]);
+                snapshot = locSnapshot;
+            }
+            return locSnapshot;
+        }
+    }
+
+    /** Measures {@code locSnapshot} and fits the splits of a pass over it; reads the snapshot only. */
+    private RebalancePlan planRebalance(Snapshot locSnapshot,
+        float maxSizeRatio,
+        float minSizeRatio,
+        float maxErrorRatio,
+        Random random) {
+        VectorStorage storage = locSnapshot.storage;
+        int clusterCnt = locSnapshot.centroids.length;
+        RebalancePlan plan = new RebalancePlan(clusterCnt);
+
+        int totalSize = 0;
+        int maxSize = 0;
+        for (int c = 0; c < clusterCnt; c++) {
+            totalSize += storage.size(c);
+            maxSize = Math.max(maxSize, storage.size(c));
+        }
+        if (totalSize == 0) {
+            plan.pass = new IVFIndexMaintenance.Pass(0f, Float.NaN, 0, 0);
+            return plan;
+        }
+
+        float meanSize = (float)totalSize / clusterCnt;
+        float[] errors = metricType == Metric.Type.DOT_PRODUCT ? null : clusterErrors(locSnapshot);
+        float totalError = 0f;
+        if (errors != null) {
+            for (float error : errors)
+                totalError += error;
+        }
+        float meanClusterError = totalError / clusterCnt;
+
+        for (int c = 0; c < clusterCnt; c++) {
+            int size = storage.size(c);
+            boolean oversized = size > maxSizeRatio * meanSize;
+            boolean spread = errors != null && errors[c] > maxErrorRatio * meanClusterError;
+            if (size >= 2 && (oversized || spread)) {
+                float[][] vectors = storage.vectors(c, 0, size);
+                KMeans.ClusteringResult halves = KMeans.newBuilder(KMeans.Type.LLOYD, metricType, metricEngine)
+                    .withClusterCount(2)
+                    .withMaxIterations(SPLIT_ITERATIONS)
+                    .withRandom(random)
+                    .build()
+                    .fit(vectors);
+
+                int[] halfSizes = halves.getClusterSizes();
+                if (halfSizes[0] == 0 || halfSizes[1] == 0)
+                    continue;
+
+                plan.splitCentroids[c] = halves.getCentroids();
+                plan.splitLabels[c] = halves.getClusterAssignments();
+                plan.splitVectors[c] = vectors;
+                plan.splitCnt++;
+            }
+            else if (size < minSizeRatio * meanSize && plan.mergeCnt + 1 < clusterCnt) {
+                plan.merged[c] = true;
+                plan.mergeCnt++;
+            }
+        }
+
+        plan.pass = new IVFIndexMaintenance.Pass((float)maxSize / meanSize,
+            errors == null ? Float.NaN : totalError / totalSize, plan.splitCnt, plan.mergeCnt);
+        return plan;
+    }
+
+    /** Publishes {@code locSnapshot} with the splits and merges of {@code plan}; holds the build lock. */
+    private IVFIndexMaintenance.Pass applyRebalance(Snapshot locSnapshot, RebalancePlan plan) {
+        if (plan.splitCnt == 0 && plan.mergeCnt == 0)
+            return plan.pass;
+
+        VectorStorage storage = locSnapshot.storage;
+        float[][] centroids = locSnapshot.centroids;
+        int clusterCnt = centroids.length;
+        float[][][] splitCentroids = plan.splitCentroids;
+        boolean[] merged = plan.merged;
+
+        int newClusterCnt = clusterCnt - plan.mergeCnt + plan.splitCnt;
+        float[][] newCentroids = new float[newClusterCnt][];
+        int[] sources = new int[newClusterCnt];
+        int[] firstHalf = new int[clusterCnt];
+        int[] secondHalf = new int[clusterCnt];
+
+        int next = 0;
+        for (int c = 0; c < clusterCnt; c++) {
+            if (merged[c]) {
+                firstHalf[c] = -1;
+                continue;
+            }
+
+            firstHalf[c] = next;
+            sources[next] = splitCentroids[c] == null ? c : -1;
+            newCentroids[next++] = splitCentroids[c] == null ? centroids[c] : splitCentroids[c][0];
+        }
+        for (int c = 0; c < clusterCnt; c++) {
+            if (splitCentroids[c] == null)
                 continue;
-            invertedLists.get(clusterId).add(i);
+
+            secondHalf[c] = next;
+            sources[next] = -1;
+            newCentroids[next++] = splitCentroids[c][1];
+        }
+
+        QuantizedStorage quantized = locSnapshot.quantized == null
+            ? null
+            : locSnapshot.quantized.select(sources, newCentroids);
+        CentroidTree tree = locSnapshot.tree == null
+            ? null
+            : locSnapshot.tree.rebalanced(firstHalf, splitCentroids, secondHalf);
+        Snapshot rebalanced = new Snapshot(newCentroids, storage.select(sources), quantized,
+            centroidInverseNorms(newCentroids), null, tree);
+
+        int movedCnt = 0;
+        for (int c = 0; c < clusterCnt; c++) {
+            if (merged[c] || splitCentroids[c] != null)
+                movedCnt += storage.size(c);
+        }
+
+        float[][] movedVectors = new float[movedCnt][];
+        int[] movedIds = new int[movedCnt];
+        int[] movedAssignments = new int[movedCnt];
+
+        int moved = 0;
+        for (int c = 0; c < clusterCnt; c++) {
+            if (merged[c]) {
+                float[][] vectors = storage.vectors(c, 0, storage.size(c));
+                int[] assignments = nearestCentroids(rebalanced, vectors);
+                System.arraycopy(vectors, 0, movedVectors, moved, vectors.length);
+                System.arraycopy(storage.ids(c), 0, movedIds, moved, vectors.length);
+                System.arraycopy(assignments, 0, movedAssignments, moved, vectors.length);
+                moved += vectors.length;
+            }
+            else if (splitCentroids[c] != null) {
+                float[][] vectors = plan.splitVectors[c];
+                int[] labels = plan.splitLabels[c];
+                System.arraycopy(vectors, 0, movedVectors, moved, vectors.length);
+                System.arraycopy(storage.ids(c), 0, movedIds, moved, vectors.length);
+                for (int i = 0; i < vectors.length; i++)
+                    movedAssignments[moved + i] = labels[i] == 0 ? firstHalf[c] : secondHalf[c];
+                moved += vectors.length;
+            }
+        }
+
+        snapshot = rebalanced.withLists(
+            rebalanced.storage.append(movedVectors, movedIds, movedAssignments),
+            quantized == null ? null : quantized.append(movedVectors, movedIds, movedAssignments, newCentroids),
+            null);
+        idLocations = null;
+
+        return plan.pass;
+    }
+
+    /** Summed distance of every cluster's vectors to its centroid. */
+    private float[] clusterErrors(Snapshot locSnapshot) {
+        VectorStorage storage = locSnapshot.storage;
+        int clusterCnt = locSnapshot.centroids.length;
+
+        int maxSize = 0;
+        for (int c = 0; c < clusterCnt; c++)
+            maxSize = Math.max(maxSize, storage.size(c));
+
+        float[] distances = new float[maxSize];
+        float[] errors = new float[clusterCnt];
+        for (int c = 0; c < clusterCnt; c++) {
+            float[] centroid = locSnapshot.centroids[c];
+            float centroidInverseNorm = locSnapshot.centroidInverseNorms != null
+                ? locSnapshot.centroidInverseNorms[c]
+                : 0f;
+            scanDistances(storage, c, centroid, centroidInverseNorm, distances);
+
+            float error = 0f;
+            for (int pos = 0; pos < storage.size(c); pos++)
+                error += distances[pos];
+            errors[c] = error;
+        }
+
+        return errors;
+    }
+
+    /** Fits {@code locKMeans} on {@code trainSampleSize} vectors drawn without replacement. */
+    private <R extends KMeans.ClusteringResult> R trainOnSample(KMeans<R> locKMeans, float[][] vectors) {
+        int vectorCnt = vectors.length;
+        int[] indices = new int[vectorCnt];
+        for (int i = 0; i < vectorCnt; i++)
+            indices[i] = i;
+
+        float[][] sample = new float[trainSampleSize][];
+        for (int i = 0; i < trainSampleSize; i++) {
+            int j = i + random.nextInt(vectorCnt - i);
+            int idx = indices[j];
+            indices[j] = indices[i];
+            indices[i] = idx;
+            sample[i] = vectors[idx];
+        }
+
+        return locKMeans.fit(sample);
+    }
+
+    /**
+     * Labels every vector with {@code model}, predicting {@link #ASSIGN_CHUNK} vectors at a time so the
+     * chunks can be spread over the search pool, then applies the clustering's cluster size cap.
+     */
+    private <R extends KMeans.ClusteringResult> int[] assignAll(KMeans<R> locKMeans,
+        KMeans.ClusteringResult model,
+        float[][] vectors) {
+        @SuppressWarnings("unchecked")
+        R locModel = (R)model;
+
+        int[] assignments = new int[vectors.length];
+        int chunkCnt = (vectors.length + ASSIGN_CHUNK - 1) / ASSIGN_CHUNK;
+
+        AssignTask<R> task =
+            new AssignTask<>(locKMeans, locModel, vectors, assignments, 0, chunkCnt, searchPool != null);
+        if (searchPool != null)
+            searchPool.invoke(task);
+        else
+            task.compute();
+
+        locKMeans.capClusterSizes(vectors, locModel, assignments);
+
+        return assignments;
+    }
+
+    private float[] centroidInverseNorms(float[][] centroids) {
+        return metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorms(centroids) : null;
+    }
+
+    /**
+     * Distances from {@code queries[0 .. queryCnt)} to every centroid, row-major; cosine distances
+     * are derived from a dot-product matrix and the cached centroid inverse norms.
+     */
+    private void computeCentroidDistances(Snapshot locSnapshot, float[][] queries, int queryCnt, float[] out) {
+        float[][] centroids = locSnapshot.centroids;
+        if (locSnapshot.centroidInverseNorms == null) {
+            metricType.distanceMatrix(metricEngine, queries, 0, queryCnt, centroids, out);
+            return;
+        }
+
+        Metric.Type.DOT_PRODUCT.distanceMatrix(metricEngine, queries, 0, queryCnt, centroids, out);
+        for (int q = 0; q < queryCnt; q++) {
+            VectorNorms.cosineDistances(out, q * centroids.length, centroids.length,
+                VectorNorms.inverseNorm(queries[q]), locSnapshot.centroidInverseNorms, 0);
+        }
+    }
+
+    /** Distances from {@code qry} to every centroid, scored against the packed centroid block. */
+    private void computeCentroidDistances(Snapshot locSnapshot, float[] qry, float[] out) {
+        int clusterCnt = locSnapshot.centroids.length;
+        if (locSnapshot.centroidInverseNorms == null) {
+            metricType.distances(metricEngine, qry, locSnapshot.centroidBlock, 0, clusterCnt, out, 0);
+            return;
         }
 
-        this.built = true;
+        Metric.Type.DOT_PRODUCT.distances(metricEngine, qry, locSnapshot.centroidBlock, 0, clusterCnt, out, 0);
+        VectorNorms.cosineDistances(out, 0, clusterCnt, VectorNorms.inverseNorm(qry),
+            locSnapshot.centroidInverseNorms, 0);
     }
 
     @Override public Metric.Type getMetricType() {
-        return kMeans.getMetricType();
+        return metricType;
     }
 
     @Override public Metric.Engine getMetricEngine() {
-        return kMeans.getMetricEngine();
+        return metricEngine;
     }
 
     @Override public int getCountClusters() {
-        return centroids.length;
+        Snapshot locSnapshot = snapshot;
+        return locSnapshot == null ? 0 : locSnapshot.centroids.length;
+    }
+
+    /** Live vectors in every inverted list, deleted ones excluded; empty before the index is built. */
+    public int[] getClusterSizes() {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
+            return new int[0];
+
+        int[] sizes = new int[locSnapshot.centroids.length];
+        for (int c = 0; c < sizes.length; c++) {
+            long[] deleted = locSnapshot.deleted(c);
+            sizes[c] = locSnapshot.size(c) - (deleted == null ? 0 : Tombstones.count(deleted));
+        }
+        return sizes;
+    }
+
+    public ForkJoinPool getSearchPool() {
+        return searchPool;
+    }
+
+    public VectorEncoding getEncoding() {
+        return encoding;
+    }
+
+    public int getRerankFactor() {
+        return rerankFactor;
+    }
+
+    public int getTrainSampleSize() {
+        return trainSampleSize;
+    }
+
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+
+    /**
+     * Whether searches pick clusters by beam search down the clustering tree; {@code false} before
+     * {@code build}, without a beam width or a hierarchical clustering, and for an index opened
+     * from a file, which keeps no tree and scores every centroid instead.
+     */
+    public boolean usesCentroidTree() {
+        Snapshot locSnapshot = snapshot;
+        return locSnapshot != null && locSnapshot.tree != null;
     }
 
     @Override public List<SearchResult> search(float[] qry, int topK, int nProbe) {
-        if (!built)
+        return search(qry, topK, nProbe, searchPool);
+    }
+
+    public List<SearchResult> search(float[] qry, int topK, int nProbe, ForkJoinPool pool) {
+        TopKHeap heap = searchHeap(qry, topK, nProbe, pool);
+        if (heap == null)
+            return Collections.emptyList();
+
+        List<SearchResult> result = new ArrayList<>(heap.size());
+        for (int i = 0; i < heap.size(); i++)
+            result.add(new SearchResult(heap.id(i), heap.distance(i), heap.clusterId(i)));
+
+        return result;
+    }
+
+    @Override public void search(float[] qry, int topK, int nProbe, ResultSink sink) {
+        search(qry, topK, nProbe, searchPool, sink);
+    }
+
+    public void search(float[] qry, int topK, int nProbe, ForkJoinPool pool, ResultSink sink) {
+        if (sink == null)
+            throw new IllegalArgumentException("sink must be non-null");
+
+        TopKHeap heap = searchHeap(qry, topK, nProbe, pool);
+        if (heap == null)
+            return;
+
+        for (int i = 0; i < heap.size(); i++)
+            sink.accept(heap.id(i), heap.distance(i), heap.clusterId(i));
+    }
+
+    private TopKHeap searchHeap(float[] qry, int topK, int nProbe, ForkJoinPool pool) {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
             throw new IllegalStateException("Index is not built yet");
-        if (qry == null || qry.length != dimension)
+        if (qry == null || qry.length != locSnapshot.dimension)
             throw new IllegalArgumentException("query must be non-null and match index dimension");
         if (topK <= 0)
             throw new IllegalArgumentException("topK must be > 0");
 
-        int clusterCnt = centroids.length;
+        int clusterCnt = locSnapshot.centroids.length;
         if (clusterCnt == 0)
+            return null;
+
+        nProbe = Math.max(1, Math.min(nProbe, clusterCnt));
+
+        SearchScratch scratch = SEARCH_SCRATCH.get();
+        int[] selectedClusters = scratch.selectedClusters(nProbe);
+        int selectedCnt = selectClusters(locSnapshot, qry, nProbe, scratch, selectedClusters);
+
+        // A worker joining the scan below may run another search on this thread and overwrite the
+        // scratch, so the parallel scan gets its own copy of the per-query state.
+        boolean parallel = pool != null && selectedCnt > 1;
+        if (parallel)
+            selectedClusters = Arrays.copyOf(selectedClusters, selectedCnt);
+
+        QuantizedStorage.Query encodedQry = null;
+        if (locSnapshot.quantized != null) {
+            encodedQry = parallel ? new QuantizedStorage.Query() : scratch.encodedQuery;
+            encodedQry.encode(qry, locSnapshot.quantized, selectedClusters, selectedCnt);
+        }
+
+        int candidateCnt = candidateCount(locSnapshot, topK);
+
+        TopKHeap heap;
+        if (parallel) {
+            heap = pool.invoke(
+                new ClusterScanTask(locSnapshot, qry, encodedQry, candidateCnt, selectedClusters, 0, selectedCnt));
+        }
+        else {
+            heap = encodedQry != null ? scratch.candidates : scratch.results;
+            heap.reset(candidateCnt);
+            scanClusters(locSnapshot, qry, encodedQry, heap, selectedClusters, 0, selectedCnt);
+        }
+
+        if (encodedQry != null)
+            heap = resolveCandidates(locSnapshot, qry, heap, topK, scratch.results);
+
+        heap.sortAscending();
+
+        return heap;
+    }
+
+    /** Writes the ids of the {@code nProbe} clusters to probe for {@code qry} to {@code out}, closest first. */
+    private int selectClusters(Snapshot locSnapshot, float[] qry, int nProbe, SearchScratch scratch, int[] out) {
+        if (locSnapshot.tree != null)
+            return locSnapshot.tree.select(metricType, metricEngine, qry, nProbe, beamWidth, scratch.treeSearch, out);
+
+        int clusterCnt = locSnapshot.centroids.length;
+        float[] centroidDistances = scratch.centroidDistances(clusterCnt);
+        computeCentroidDistances(locSnapshot, qry, centroidDistances);
+
+        return scratch.selector.select(centroidDistances, clusterCnt, nProbe, out);
+    }
+
+    private int candidateCount(Snapshot locSnapshot, int topK) {
+        if (locSnapshot.quantized == null || locSnapshot.storage == null)
+            return topK;
+        return (int)Math.min(Integer.MAX_VALUE, (long)topK * rerankFactor);
+    }
+
+    private void scanClusters(Snapshot locSnapshot,
+        float[] qry,
+        QuantizedStorage.Query encodedQry,
+        TopKHeap heap,
+        int[] selectedClusters,
+        int from,
+        int to) {
+        if (encodedQry != null) {
+            scanQuantizedClusters(locSnapshot, encodedQry, heap, selectedClusters, from, to);
+            return;
+        }
+
+        VectorStorage storage = locSnapshot.storage;
+        SearchScratch scratch = SEARCH_SCRATCH.get();
+        float qryInverseNorm = metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorm(qry) : 0f;
+
+        for (int s = from; s < to; s++) {
+            int clusterId = selectedClusters[s];
+            int size = storage.size(clusterId);
+            long[] deleted = locSnapshot.deleted(clusterId);
+            float[] distances = scratch.scanDistances(size);
+            scanDistances(storage, clusterId, qry, qryInverseNorm, distances);
+            for (int i = 0; i < size; i++) {
+                float d = distances[i];
+                if (d <= heap.threshold() && (deleted == null || !Tombstones.contains(deleted, i)))
+                    heap.offer(storage.id(clusterId, i), d, clusterId);
+            }
+        }
+    }
+
+    /** Distances from {@code qry} to every vector of the cluster; one dot product per vector for cosine. */
+    private void scanDistances(VectorStorage storage,
+        int clusterId,
+        float[] qry,
+        float qryInverseNorm,
+        float[] distances) {
+        scanDistances(storage, clusterId, 0, storage.size(clusterId), qry, qryInverseNorm, distances);
+    }
+
+    /** Distances from {@code qry} to the vectors at positions {@code [from, from + count)} of the cluster. */
+    private void scanDistances(VectorStorage storage,
+        int clusterId,
+        int from,
+        int count,
+        float[] qry,
+        float qryInverseNorm,
+        float[] distances) {
+        ByteBuffer vectors = storage.vectors(clusterId);
+        ByteBuffer inverseNorms = storage.inverseNorms(clusterId);
+        if (inverseNorms == null) {
+            metricType.distances(metricEngine, qry, vectors, storage.offset(from), count, distances, 0);
+            return;
+        }
+
+        Metric.Type.DOT_PRODUCT.distances(metricEngine, qry, vectors, storage.offset(from), count, distances, 0);
+        VectorNorms.cosineDistances(distances, 0, count, qryInverseNorm, inverseNorms, from * Float.BYTES);
+    }
+
+    private float exactDistance(VectorStorage storage, int clusterId, int pos, float[] qry, float qryInverseNorm) {
+        ByteBuffer inverseNorms = storage.inverseNorms(clusterId);
+        if (inverseNorms == null)
+            return metricType.distance(metricEngine, qry, storage.vectors(clusterId), storage.offset(pos));
+
+        ByteBuffer vectors = storage.vectors(clusterId);
+        float dot = Metric.Type.DOT_PRODUCT.distance(metricEngine, qry, vectors, storage.offset(pos));
+        return VectorNorms.cosineDistance(dot, qryInverseNorm, inverseNorms.getFloat(pos * Float.BYTES));
+    }
+
+    private void scanQuantizedClusters(Snapshot locSnapshot,
+        QuantizedStorage.Query encodedQry,
+        TopKHeap candidates,
+        int[] selectedClusters,
+        int from,
+        int to) {
+        QuantizedStorage quantized = locSnapshot.quantized;
+        for (int s = from; s < to; s++) {
+            int clusterId = selectedClusters[s];
+            int size = quantized.size(clusterId);
+            long[] deleted = locSnapshot.deleted(clusterId);
+            for (int pos = 0; pos < size; pos++) {
+                if (deleted != null && Tombstones.contains(deleted, pos))
+                    continue;
+
+                float d = quantized.distance(metricType, metricEngine, encodedQry, clusterId, pos);
+                if (d <= candidates.threshold())
+                    candidates.offer(pos, d, clusterId);
+            }
+        }
+    }
+
+    private TopKHeap resolveCandidates(Snapshot locSnapshot,
+        float[] qry,
+        TopKHeap candidates,
+        int topK,
+        TopKHeap results) {
+        results.reset(topK);
+
+        VectorStorage storage = locSnapshot.storage;
+        float qryInverseNorm = metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorm(qry) : 0f;
+        for (int i = 0; i < candidates.size(); i++) {
+            int clusterId = candidates.clusterId(i);
+            int pos = candidates.id(i);
+            if (storage == null) {
+                results.offer(locSnapshot.quantized.id(clusterId, pos), candidates.distance(i), clusterId);
+                continue;
+            }
+
+            float d = exactDistance(storage, clusterId, pos, qry, qryInverseNorm);
+            if (d <= results.threshold())
+                results.offer(storage.id(clusterId, pos), d, clusterId);
+        }
+
+        return results;
+    }
+
+    @Override public List<List<SearchResult>> searchBatch(float[][] queries, int topK, int nProbe) {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
+            throw new IllegalStateException("Index is not built yet");
+        if (queries == null)
+            throw new IllegalArgumentException("queries must be non-null");
+        for (float[] qry : queries) {
+            if (qry == null || qry.length != locSnapshot.dimension)
+                throw new IllegalArgumentException("all queries must be non-null and match index dimension");
+        }
+        if (topK <= 0)
+            throw new IllegalArgumentException("topK must be > 0");
+
+        VectorStorage storage = locSnapshot.storage;
+        QuantizedStorage quantized = locSnapshot.quantized;
+        int queryCnt = queries.length;
+        int clusterCnt = locSnapshot.centroids.length;
+        if (queryCnt == 0)
             return Collections.emptyList();
 
         nProbe = Math.max(1, Math.min(nProbe, clusterCnt));
 
-        Metric.Type metricType = kMeans.getMetricType();
-        Metric.Engine metricEngine = kMeans.getMetricEngine();
+        SearchScratch scratch = SEARCH_SCRATCH.get();
+        int[][] selectedClusters = new int[queryCnt][nProbe];
+        if (locSnapshot.tree != null) {
+            for (int q = 0; q < queryCnt; q++) {
+                int selectedCnt = locSnapshot.tree.select(metricType, metricEngine, queries[q], nProbe, beamWidth,
+                    scratch.treeSearch, selectedClusters[q]);
+                if (selectedCnt < nProbe)
+                    selectedClusters[q] = Arrays.copyOf(selectedClusters[q], selectedCnt);
+            }
+        }
+        else {
+            float[] centroidDistances = new float[queryCnt * clusterCnt];
+            computeCentroidDistances(locSnapshot, queries, queryCnt, centroidDistances);
 
-        float[] centroidDistances = new float[clusterCnt];
+            NProbeSelector selector = scratch.selector;
+            for (int q = 0; q < queryCnt; q++)
+                selector.select(centroidDistances, q * clusterCnt, clusterCnt, nProbe, selectedClusters[q]);
+        }
+
+        int[] probeCounts = new int[clusterCnt];
+        for (int q = 0; q < queryCnt; q++) {
+            for (int clusterId : selectedClusters[q])
+                probeCounts[clusterId]++;
+        }
+
+        int[] probeOffsets = new int[clusterCnt + 1];
         for (int c = 0; c < clusterCnt; c++)
-            centroidDistances[c] = metricType.distance(metricEngine, qry, centroids[c]);
-
-        int[] selectedClusters = selectTopNProbeClusters(centroidDistances, nProbe);
-
-        PriorityQueue<SearchResult> heap = new PriorityQueue<>(
-            topK,
-            (a, b) -> Float.compare(b.distance, a.distance)
-        );
-
-        for (int clusterId : selectedClusters) {
-            IntArrayList list = invertedLists.get(clusterId);
-            for (int i = 0; i < list.size(); i++) {
-                int vectorIdx = list.get(i);
-                float d = metricType.distance(metricEngine, qry, data[vectorIdx]);
-                int id = ids[vectorIdx];
-
-                if (heap.size() < topK)
-                    heap.offer(new SearchResult(id, d, clusterId));
-                else if (d < heap.peek().distance) {
-                    heap.poll();
-                    heap.offer(new SearchResult(id, d, clusterId));
+            probeOffsets[c + 1] = probeOffsets[c] + probeCounts[c];
+
+        int[] probingQueries = new int[probeOffsets[clusterCnt]];
+        int[] positions = Arrays.copyOf(probeOffsets, clusterCnt);
+        for (int q = 0; q < queryCnt; q++) {
+            for (int clusterId : selectedClusters[q])
+                probingQueries[positions[clusterId]++] = q;
+        }
+
+        QuantizedStorage.Query[] encodedQueries = null;
+        if (quantized != null) {
+            encodedQueries = new QuantizedStorage.Query[queryCnt];
+            for (int q = 0; q < queryCnt; q++) {
+                encodedQueries[q] = new QuantizedStorage.Query();
+                encodedQueries[q].encode(queries[q], quantized, selectedClusters[q], selectedClusters[q].length);
+            }
+        }
+
+        float[] qryInverseNorms = metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorms(queries) : null;
+
+        int candidateCnt = candidateCount(locSnapshot, topK);
+        int tileRows = Math.max(MIN_TILE_ROWS, BATCH_TILE_BYTES / (locSnapshot.dimension * Float.BYTES));
+
+        TopKHeap[] heaps = new TopKHeap[queryCnt];
+        for (int q = 0; q < queryCnt; q++)
+            heaps[q] = new TopKHeap(candidateCnt);
+
+        for (int clusterId = 0; clusterId < clusterCnt; clusterId++) {
+            int from = probeOffsets[clusterId];
+            int to = probeOffsets[clusterId + 1];
+            if (from == to)
+                continue;
+
+            long[] deleted = locSnapshot.deleted(clusterId);
+
+            if (quantized != null) {
+                int size = quantized.size(clusterId);
+                for (int pos = 0; pos < size; pos++) {
+                    if (deleted != null && Tombstones.contains(deleted, pos))
+                        continue;
+
+                    for (int p = from; p < to; p++) {
+                        int q = probingQueries[p];
+                        float d = quantized.distance(metricType, metricEngine, encodedQueries[q], clusterId, pos);
+                        TopKHeap heap = heaps[q];
+                        if (d <= heap.threshold())
+                            heap.offer(pos, d, clusterId);
+                    }
+                }
+                continue;
+            }
+
+            // Every probing query scores one tile of the list before the next tile is touched, so the
+            // list is streamed from memory once per batch rather than once per query.
+            int size = storage.size(clusterId);
+            float[] distances = scratch.scanDistances(Math.min(size, tileRows));
+            for (int tileStart = 0; tileStart < size; tileStart += tileRows) {
+                int tileSize = Math.min(tileRows, size - tileStart);
+                for (int p = from; p < to; p++) {
+                    int q = probingQueries[p];
+                    scanDistances(storage, clusterId, tileStart, tileSize, queries[q],
+                        qryInverseNorms != null ? qryInverseNorms[q] : 0f, distances);
+                    TopKHeap heap = heaps[q];
+                    for (int i = 0; i < tileSize; i++) {
+                        float d = distances[i];
+                        int pos = tileStart + i;
+                        if (d <= heap.threshold() && (deleted == null || !Tombstones.contains(deleted, pos)))
+                            heap.offer(storage.id(clusterId, pos), d, clusterId);
+                    }
                 }
             }
         }
 
-        List<SearchResult> result = new ArrayList<>(heap.size());
-        while (!heap.isEmpty())
-            result.add(heap.poll());
-        Collections.reverse(result);
+        List<List<SearchResult>> results = new ArrayList<>(queryCnt);
+        for (int q = 0; q < queryCnt; q++) {
+            TopKHeap heap = heaps[q];
+            if (quantized != null)
+                heap = resolveCandidates(locSnapshot, queries[q], heap, topK, new TopKHeap(topK));
 
-        return result;
+            heap.sortAscending();
+
+            List<SearchResult> result = new ArrayList<>(heap.size());
+            for (int i = 0; i < heap.size(); i++)
+                result.add(new SearchResult(heap.id(i), heap.distance(i), heap.clusterId(i)));
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    @Override public void save(Path path) throws IOException {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
+            throw new IllegalStateException("Index is not built yet");
+        if (path == null)
+            throw new IllegalArgumentException("path must be non-null");
+
+        long[][] deleted = locSnapshot.deleted;
+        VectorStorage storage = locSnapshot.storage;
+        QuantizedStorage quantized = locSnapshot.quantized;
+        if (deleted != null) {
+            storage = storage == null ? null : storage.compact(deleted);
+            quantized = quantized == null ? null : quantized.compact(deleted);
+            locSnapshot = locSnapshot.withLists(storage, quantized, null);
+        }
+
+        int clusterCnt = locSnapshot.centroids.length;
+        int[][] clusterIds = new int[clusterCnt][];
+        for (int c = 0; c < clusterCnt; c++) {
+            clusterIds[c] = new int[locSnapshot.size(c)];
+            for (int pos = 0; pos < clusterIds[c].length; pos++)
+                clusterIds[c][pos] = locSnapshot.id(c, pos);
+        }
+
+        ByteBuffer[][] columns = new ByteBuffer[COLUMN_COUNT][];
+        int[] recordBytes = new int[COLUMN_COUNT];
+        if (storage != null) {
+            columns[COLUMN_VECTORS] = storage.vectorColumn();
+            recordBytes[COLUMN_VECTORS] = locSnapshot.dimension * Float.BYTES;
+            columns[COLUMN_INVERSE_NORMS] = storage.inverseNormColumn();
+            recordBytes[COLUMN_INVERSE_NORMS] = Float.BYTES;
+        }
+        if (quantized != null) {
+            columns[COLUMN_CODES] = quantized.codeColumn();
+            recordBytes[COLUMN_CODES] = quantized.getEncoding().getBytesPerVector(locSnapshot.dimension);
+            columns[COLUMN_FACTORS] = quantized.factorColumn();
+            recordBytes[COLUMN_FACTORS] = QuantizedStorage.FACTOR_BYTES;
+        }
+
+        IVFIndexFormat.write(path, new IVFIndexFormat.Contents(IVFIndexFormat.KIND_FLAT, metricType, metricEngine,
+            encoding, null, 0, rerankFactor, locSnapshot.centroids, clusterIds, columns, recordBytes));
     }
 
     @Override public int getDimension() {
-        return dimension;
+        Snapshot locSnapshot = snapshot;
+        return locSnapshot == null ? 0 : locSnapshot.dimension;
+    }
+
+    /** What a maintenance pass measured and the splits and merges it decided on, per old cluster. */
+    private static final class RebalancePlan {
+        final float[][][] splitCentroids;
+        final int[][] splitLabels;
+        final float[][][] splitVectors;
+        final boolean[] merged;
+        int splitCnt;
+        int mergeCnt;
+        IVFIndexMaintenance.Pass pass;
+
+        RebalancePlan(int clusterCnt) {
+            this.splitCentroids = new float[clusterCnt][][];
+            this.splitLabels = new int[clusterCnt][];
+            this.splitVectors = new float[clusterCnt][][];
+            this.merged = new boolean[clusterCnt];
+        }
+    }
+
+    /**
+     * Immutable view of a built index. All fields are final and the part of the referenced arrays
+     * and buffers a snapshot reads, up to its list sizes, is never written after construction, so a
+     * snapshot read through the volatile {@code snapshot} field is safe to use from any thread
+     * without further synchronization. Adds write past those sizes and publish a new snapshot.
+     */
+    private static final class Snapshot {
+        final float[][] centroids;
+        final VectorStorage storage;
+        final QuantizedStorage quantized;
+        final float[] centroidInverseNorms;
+        /** The centroids packed into one direct buffer, scored against a single query without copying them. */
+        final ByteBuffer centroidBlock;
+        /** Tombstone bitset per cluster, see {@link Tombstones}; {@code null} when nothing is deleted. */
+        final long[][] deleted;
+        /** Hierarchical clustering tree for beam-search cluster selection, or {@code null}. */
+        final CentroidTree tree;
+        final int dimension;
+
+        Snapshot(float[][] centroids,
+            VectorStorage storage,
+            QuantizedStorage quantized,
+            float[] centroidInverseNorms,
+            long[][] deleted,
+            CentroidTree tree) {
+            this(centroids, storage, quantized, centroidInverseNorms, VectorStorage.pack(centroids), deleted, tree);
+        }
+
+        private Snapshot(float[][] centroids,
+            VectorStorage storage,
+            QuantizedStorage quantized,
+            float[] centroidInverseNorms,
+            ByteBuffer centroidBlock,
+            long[][] deleted,
+            CentroidTree tree) {
+            this.centroids = centroids;
+            this.storage = storage;
+            this.quantized = quantized;
+            this.centroidInverseNorms = centroidInverseNorms;
+            this.centroidBlock = centroidBlock;
+            this.deleted = deleted;
+            this.tree = tree;
+            this.dimension = storage != null ? storage.getDimension() : quantized.getDimension();
+        }
+
+        /** Same snapshot with {@code deleted} tombstones, or none if every bitset in it is null. */
+        Snapshot withDeleted(long[][] deleted) {
+            boolean any = false;
+            for (long[] bits : deleted)
+                any |= bits != null;
+
+            return withLists(storage, quantized, any ? deleted : null);
+        }
+
+        /** Snapshot with the same centroids and tree over other lists. */
+        Snapshot withLists(VectorStorage storage, QuantizedStorage quantized, long[][] deleted) {
+            return new Snapshot(centroids, storage, quantized, centroidInverseNorms, centroidBlock, deleted, tree);
+        }
+
+        long[] deleted(int clusterId) {
+            return deleted == null ? null : deleted[clusterId];
+        }
+
+        int size(int clusterId) {
+            return storage != null ? storage.size(clusterId) : quantized.size(clusterId);
+        }
+
+        int id(int clusterId, int pos) {
+            return storage != null ? storage.id(clusterId, pos) : quantized.id(clusterId, pos);
+        }
     }
 
-    private static final class IntArrayList {
-        private int[] data;
-        private int size;
+    private static final class SearchScratch {
+        final NProbeSelector selector = new NProbeSelector();
+        final CentroidTree.Search treeSearch = new CentroidTree.Search();
+        final TopKHeap results = new TopKHeap(16);
+        final TopKHeap candidates = new TopKHeap(16);
+        final QuantizedStorage.Query encodedQuery = new QuantizedStorage.Query();
+        private float[] centroidDistances = new float[0];
+        private float[] scanDistances = new float[0];
+        private int[] selectedClusters = new int[0];
+
+        float[] centroidDistances(int clusterCnt) {
+            if (centroidDistances.length < clusterCnt)
+                centroidDistances = new float[clusterCnt];
+            return centroidDistances;
+        }
 
-        IntArrayList() {
-            this.data = new int[16];
-            this.size = 0;
+        float[] scanDistances(int clusterSize) {
+            if (scanDistances.length < clusterSize)
+                scanDistances = new float[clusterSize];
+            return scanDistances;
         }
 
-        IntArrayList(int size) {
-            this.data = new int[Math.min(16, size)];
-            this.size = 0;
+        int[] selectedClusters(int nProbe) {
+            if (selectedClusters.length < nProbe)
+                selectedClusters = new int[nProbe];
+            return selectedClusters;
+        }
+    }
+
+    private static final class AssignTask<R extends KMeans.ClusteringResult> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final KMeans<R> kMeans;
+        private final R model;
+        private final float[][] vectors;
+        private final int[] assignments;
+        private final int fromChunk;
+        private final int toChunk;
+        private final boolean fork;
+
+        AssignTask(KMeans<R> kMeans,
+            R model,
+            float[][] vectors,
+            int[] assignments,
+            int fromChunk,
+            int toChunk,
+            boolean fork) {
+            this.kMeans = kMeans;
+            this.model = model;
+            this.vectors = vectors;
+            this.assignments = assignments;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.fork = fork;
         }
 
-        void add(int val) {
-            if (size == data.length) {
-                int[] newData = new int[data.length * 2];
-                System.arraycopy(data, 0, newData, 0, data.length);
-                data = newData;
+        @Override protected void compute() {
+            if (toChunk - fromChunk <= 1 || !fork) {
+                for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+                    int from = chunk * ASSIGN_CHUNK;
+                    int to = Math.min(vectors.length, from + ASSIGN_CHUNK);
+                    int[] labels = kMeans.predict(Arrays.copyOfRange(vectors, from, to), model);
+                    System.arraycopy(labels, 0, assignments, from, to - from);
+                }
+                return;
             }
-            data[size++] = val;
+
+            int mid = (fromChunk + toChunk) >>> 1;
+            invokeAll(new AssignTask<>(kMeans, model, vectors, assignments, fromChunk, mid, true),
+                new AssignTask<>(kMeans, model, vectors, assignments, mid, toChunk, true));
         }
+    }
+
+    private final class ClusterScanTask extends RecursiveTask<TopKHeap> {
+        private static final long serialVersionUID = 1L;
+
+        private final Snapshot locSnapshot;
+        private final float[] qry;
+        private final QuantizedStorage.Query encodedQry;
+        private final int topK;
+        private final int[] selectedClusters;
+        private final int from;
+        private final int to;
 
-        int get(int idx) {
-            if (idx < 0 || idx >= size)
-                throw new IndexOutOfBoundsException("index = " + idx + ", size = " + size);
-            return data[idx];
+        ClusterScanTask(Snapshot locSnapshot,
+            float[] qry,
+            QuantizedStorage.Query encodedQry,
+            int topK,
+            int[] selectedClusters,
+            int from,
+            int to) {
+            this.locSnapshot = locSnapshot;
+            this.qry = qry;
+            this.encodedQry = encodedQry;
+            this.topK = topK;
+            this.selectedClusters = selectedClusters;
+            this.from = from;
+            this.to = to;
         }
 
-        int size() {
-            return size;
+        @Override protected TopKHeap compute() {
+            if (to - from <= 1) {
+                TopKHeap heap = new TopKHeap(topK);
+                scanClusters(locSnapshot, qry, encodedQry, heap, selectedClusters, from, to);
+                return heap;
+            }
+
+            int mid = (from + to) >>> 1;
+            ClusterScanTask left = new ClusterScanTask(locSnapshot, qry, encodedQry, topK, selectedClusters, from, mid);
+            ClusterScanTask right = new ClusterScanTask(locSnapshot, qry, encodedQry, topK, selectedClusters, mid, to);
+
+            left.fork();
+            TopKHeap rightHeap = right.compute();
+            TopKHeap leftHeap = left.join();
+
+            if (leftHeap.size() < rightHeap.size()) {
+                rightHeap.addAll(leftHeap);
+                return rightHeap;
+            }
+            leftHeap.addAll(rightHeap);
+            return leftHeap;
         }
     }
 }
@@ -0,0 +1,360 @@
+package ru.mcashesha.ivf;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import ru.mcashesha.metrics.Metric;
+
+/**
+ * On-disk layout of an index: a header with the centroids, list sizes and ids, followed by one
+ * aligned section per column. A column holds a fixed-size record for every position of every list,
+ * the lists back to back, e.g. the float vectors or the quantized codes; which columns exist and
+ * what they hold is up to the index kind. Flat indexes record their vector encoding in the header
+ * and PQ indexes their codebooks. Sections are mapped on read, so nothing past the header is
+ * loaded before a list is scanned.
+ */
+final class IVFIndexFormat {
+    static final int MAGIC = 0x46465649;
+    static final int VERSION = 3;
+
+    static final int KIND_FLAT = 1;
+    static final int KIND_PQ = 2;
+
+    private static final int ALIGNMENT = 64;
+    /** Magic, version, kind, dimension and header size. */
+    private static final int PREFIX_BYTES = 4 * Integer.BYTES + Long.BYTES;
+    /** Offset and record size of a section. */
+    private static final int SECTION_BYTES = Long.BYTES + Integer.BYTES;
+
+    private IVFIndexFormat() {
+    }
+
+    static void write(Path path, Contents contents) throws IOException {
+        int dimension = contents.centroids[0].length;
+        int clusterCnt = contents.centroids.length;
+        int columnCnt = contents.columns.length;
+
+        long totalVectors = 0;
+        for (int[] ids : contents.clusterIds)
+            totalVectors += ids.length;
+
+        byte[] metricTypeName = contents.metricType.name().getBytes(StandardCharsets.US_ASCII);
+        byte[] metricEngineName = contents.metricEngine.name().getBytes(StandardCharsets.US_ASCII);
+        long kindBytes;
+        byte[] encodingName = null;
+        if (contents.kind == KIND_PQ) {
+            kindBytes = 2L * Integer.BYTES;
+            for (float[] codebook : contents.codebooks)
+                kindBytes += (long)codebook.length * Float.BYTES;
+        }
+        else {
+            encodingName = contents.encoding.name().getBytes(StandardCharsets.US_ASCII);
+            kindBytes = Short.BYTES + encodingName.length;
+        }
+
+        long headerBytes = align(PREFIX_BYTES + Integer.BYTES
+            + 2L * Short.BYTES + metricTypeName.length + metricEngineName.length + kindBytes
+            + Integer.BYTES
+            + (long)clusterCnt * dimension * Float.BYTES
+            + (long)clusterCnt * Integer.BYTES
+            + totalVectors * Integer.BYTES
+            + Integer.BYTES + (long)columnCnt * SECTION_BYTES);
+
+        if (headerBytes > Integer.MAX_VALUE)
+            throw new IllegalStateException("index header exceeds " + Integer.MAX_VALUE + " bytes");
+
+        long[] offsets = new long[columnCnt];
+        long end = headerBytes;
+        for (int i = 0; i < columnCnt; i++) {
+            if (contents.columns[i] == null)
+                continue;
+
+            offsets[i] = align(end);
+            end = offsets[i] + totalVectors * contents.recordBytes[i];
+        }
+
+        ByteBuffer header = ByteBuffer.allocate((int)headerBytes).order(VectorStorage.BYTE_ORDER);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(contents.kind);
+        header.putInt(dimension);
+        header.putLong(headerBytes);
+        header.putInt(clusterCnt);
+        putName(header, metricTypeName);
+        putName(header, metricEngineName);
+        if (contents.kind == KIND_PQ) {
+            header.putInt(contents.codebooks.length);
+            header.putInt(contents.codebookSize);
+            for (float[] codebook : contents.codebooks) {
+                for (float v : codebook)
+                    header.putFloat(v);
+            }
+        }
+        else
+            putName(header, encodingName);
+        header.putInt(contents.rerankFactor);
+
+        for (float[] centroid : contents.centroids) {
+            for (int d = 0; d < dimension; d++)
+                header.putFloat(centroid[d]);
+        }
+
+        for (int[] ids : contents.clusterIds)
+            header.putInt(ids.length);
+
+        for (int[] ids : contents.clusterIds) {
+            for (int id : ids)
+                header.putInt(id);
+        }
+
+        header.putInt(columnCnt);
+        for (int i = 0; i < columnCnt; i++) {
+            header.putLong(offsets[i]);
+            header.putInt(contents.columns[i] == null ? 0 : contents.recordBytes[i]);
+        }
+
+        header.clear();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining())
+                    channel.write(header);
+
+                int[] sizes = contents.sizes();
+                for (int i = 0; i < columnCnt; i++) {
+                    if (contents.columns[i] == null)
+                        continue;
+
+                    channel.position(offsets[i]);
+                    VectorStorage.writeClusters(channel, contents.columns[i], sizes, contents.recordBytes[i]);
+                }
+                channel.force(true);
+            }
+
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /** Reads an index of {@code expectedKind}, or of any kind if it is {@code 0}. */
+    static Contents read(Path path, int expectedKind) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < PREFIX_BYTES)
+                throw new IOException("file is too small to be an IVF index: " + path);
+
+            ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, PREFIX_BYTES)
+                .order(VectorStorage.BYTE_ORDER);
+
+            if (prefix.getInt() != MAGIC)
+                throw new IOException("not an IVF index file: " + path);
+
+            int version = prefix.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported IVF index version " + version + " (expected " + VERSION + ')');
+
+            int kind = prefix.getInt();
+            if (kind != KIND_FLAT && kind != KIND_PQ)
+                throw new IOException("unknown IVF index kind " + kind);
+            if (expectedKind != 0 && kind != expectedKind)
+                throw new IOException("unexpected IVF index kind " + kind + " (expected " + expectedKind + ')');
+
+            int dimension = prefix.getInt();
+            long headerBytes = prefix.getLong();
+
+            if (dimension <= 0)
+                throw new IOException("invalid vector dimension " + dimension);
+            if (headerBytes < PREFIX_BYTES || headerBytes > fileSize || headerBytes > Integer.MAX_VALUE)
+                throw new IOException("invalid header size " + headerBytes);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes)
+                .order(VectorStorage.BYTE_ORDER);
+            header.position(prefix.position());
+
+            int clusterCnt = header.getInt();
+            if (clusterCnt <= 0)
+                throw new IOException("invalid cluster count " + clusterCnt);
+
+            Metric.Type metricType = getEnum(Metric.Type.class, header);
+            Metric.Engine metricEngine = getEnum(Metric.Engine.class, header);
+            VectorEncoding encoding = null;
+            float[][] codebooks = null;
+            int codebookSize = 0;
+            if (kind == KIND_PQ) {
+                int subspaceCnt = header.getInt();
+                codebookSize = header.getInt();
+                if (subspaceCnt <= 0 || dimension % subspaceCnt != 0)
+                    throw new IOException("invalid subspace count " + subspaceCnt);
+                if (codebookSize <= 0 || (long)subspaceCnt * codebookSize * (dimension / subspaceCnt) * Float.BYTES
+                    > header.remaining())
+                    throw new IOException("invalid codebook size " + codebookSize);
+
+                codebooks = new float[subspaceCnt][codebookSize * (dimension / subspaceCnt)];
+                for (float[] codebook : codebooks) {
+                    for (int i = 0; i < codebook.length; i++)
+                        codebook[i] = header.getFloat();
+                }
+            }
+            else
+                encoding = getEnum(VectorEncoding.class, header);
+
+            int rerankFactor = header.getInt();
+            if (rerankFactor < 0)
+                throw new IOException("invalid rerank factor " + rerankFactor);
+
+            if ((long)clusterCnt * dimension * Float.BYTES > header.remaining())
+                throw new IOException("centroids exceed the header");
+
+            float[][] centroids = new float[clusterCnt][dimension];
+            for (float[] centroid : centroids) {
+                for (int d = 0; d < dimension; d++)
+                    centroid[d] = header.getFloat();
+            }
+
+            int[] sizes = new int[clusterCnt];
+            long totalVectors = 0;
+            for (int c = 0; c < clusterCnt; c++) {
+                int size = header.getInt();
+                if (size < 0)
+                    throw new IOException("negative size for cluster " + c);
+                sizes[c] = size;
+                totalVectors += size;
+            }
+
+            if (totalVectors * Integer.BYTES > header.remaining())
+                throw new IOException("cluster sizes exceed the header");
+
+            int[][] clusterIds = new int[clusterCnt][];
+            for (int c = 0; c < clusterCnt; c++) {
+                int[] ids = clusterIds[c] = new int[sizes[c]];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = header.getInt();
+            }
+
+            int columnCnt = header.getInt();
+            if (columnCnt < 0 || (long)columnCnt * SECTION_BYTES > header.remaining())
+                throw new IOException("invalid column count " + columnCnt);
+
+            ByteBuffer[][] columns = new ByteBuffer[columnCnt][];
+            int[] recordBytes = new int[columnCnt];
+            long end = headerBytes;
+            for (int i = 0; i < columnCnt; i++) {
+                long offset = header.getLong();
+                recordBytes[i] = header.getInt();
+                if (offset == 0)
+                    continue;
+
+                if (offset != align(end) || recordBytes[i] <= 0)
+                    throw new IOException("invalid section " + i + " at offset " + offset);
+
+                end = offset + totalVectors * recordBytes[i];
+                if (end > fileSize)
+                    throw new IOException("section " + i + " ends past the end of the file");
+
+                columns[i] = VectorStorage.mapClusters(channel, offset,
+                    VectorStorage.clusterBytes(sizes, recordBytes[i]));
+            }
+
+            if (fileSize != end)
+                throw new IOException("file size " + fileSize + " does not match expected " + end);
+
+            return new Contents(kind, metricType, metricEngine, encoding, codebooks, codebookSize, rerankFactor,
+                centroids, clusterIds, columns, recordBytes);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated IVF index header: " + path, e);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void putName(ByteBuffer buffer, byte[] name) {
+        buffer.putShort((short)name.length);
+        buffer.put(name);
+    }
+
+    private static String getName(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("invalid name length " + length + " in IVF index header");
+
+        byte[] name = new byte[length];
+        buffer.get(name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    private static <E extends Enum<E>> E getEnum(Class<E> type, ByteBuffer buffer) throws IOException {
+        String name = getName(buffer);
+        try {
+            return Enum.valueOf(type, name);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("unknown " + type.getSimpleName() + " '" + name + "' in IVF index header", e);
+        }
+    }
+
+    /**
+     * Everything an index file holds. {@code clusterIds[c]} has exactly the size of list {@code c};
+     * {@code columns[i]} has a buffer per list with records of {@code recordBytes[i]}, of which only
+     * the first {@code clusterIds[c].length} are written, or is {@code null} when the index has no
+     * such column. {@code encoding} is set for {@link #KIND_FLAT}, {@code codebooks} for
+     * {@link #KIND_PQ}.
+     */
+    static final class Contents {
+        final int kind;
+        final Metric.Type metricType;
+        final Metric.Engine metricEngine;
+        final VectorEncoding encoding;
+        final float[][] codebooks;
+        final int codebookSize;
+        final int rerankFactor;
+        final float[][] centroids;
+        final int[][] clusterIds;
+        final ByteBuffer[][] columns;
+        final int[] recordBytes;
+
+        Contents(int kind,
+            Metric.Type metricType,
+            Metric.Engine metricEngine,
+            VectorEncoding encoding,
+            float[][] codebooks,
+            int codebookSize,
+            int rerankFactor,
+            float[][] centroids,
+            int[][] clusterIds,
+            ByteBuffer[][] columns,
+            int[] recordBytes) {
+            this.kind = kind;
+            this.metricType = metricType;
+            this.metricEngine = metricEngine;
+            this.encoding = encoding;
+            this.codebooks = codebooks;
+            this.codebookSize = codebookSize;
+            this.rerankFactor = rerankFactor;
+            this.centroids = centroids;
+            this.clusterIds = clusterIds;
+            this.columns = columns;
+            this.recordBytes = recordBytes;
+        }
+
+        int[] sizes() {
+            int[] sizes = new int[clusterIds.length];
+            for (int c = 0; c < sizes.length; c++)
+                sizes[c] = clusterIds[c].length;
+            return sizes;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mcashesha.ivf;
+
+import java.util.Random;
+
+/**
+ * Upkeep for an {@link IVFIndexFlat} that keeps changing through {@code add} and {@code delete}.
+ * Every {@link #run} measures how uneven the inverted lists have become and how far their vectors
+ * have drifted from the centroids, then:
+ * <ul>
+ * <li>splits every list longer than {@code maxSizeRatio} times the mean list size, or whose summed
+ * distance to its centroid exceeds {@code maxErrorRatio} times the mean, in two with a local
+ * 2-means;</li>
+ * <li>folds every list shorter than {@code minSizeRatio} times the mean into the nearest remaining
+ * centroids.</li>
+ * </ul>
+ * The result is published as a new index snapshot, so searches keep running throughout a pass. The
+ * 2-means fits run without the index's build lock, so adds and deletes only wait while the result is
+ * applied; a pass that raced one of them is redone, and its last attempt holds the lock throughout.
+ * Schedule it with fixed delay on a {@link java.util.concurrent.ScheduledExecutorService} to run it in
+ * the background.
+ *
+ * <p>Splitting needs the float vectors, so the index must use {@link VectorEncoding#FLOAT32} or keep
+ * them for re-ranking. The error criterion is skipped for {@link ru.mcashesha.metrics.Metric.Type#DOT_PRODUCT},
+ * whose "distances" are not a spread.
+ */
+public final class IVFIndexMaintenance implements Runnable {
+    private static final float DEFAULT_MAX_SIZE_RATIO = 4f;
+    private static final float DEFAULT_MIN_SIZE_RATIO = 0.1f;
+    private static final float DEFAULT_MAX_ERROR_RATIO = 4f;
+
+    private final IVFIndexFlat index;
+    private final float maxSizeRatio;
+    private final float minSizeRatio;
+    private final float maxErrorRatio;
+    private final Random random;
+
+    private volatile Pass lastPass;
+    private volatile long splitCount;
+    private volatile long mergeCount;
+
+    public IVFIndexMaintenance(IVFIndexFlat index) {
+        this(index, DEFAULT_MAX_SIZE_RATIO, DEFAULT_MIN_SIZE_RATIO, DEFAULT_MAX_ERROR_RATIO, new Random());
+    }
+
+    /**
+     * @param maxErrorRatio {@link Float#POSITIVE_INFINITY} splits on size only.
+     */
+    public IVFIndexMaintenance(IVFIndexFlat index,
+        float maxSizeRatio,
+        float minSizeRatio,
+        float maxErrorRatio,
+        Random random) {
+        if (index == null)
+            throw new IllegalArgumentException("index must be non-null");
+        if (index.getEncoding() != VectorEncoding.FLOAT32 && index.getRerankFactor() == 0)
+            throw new IllegalArgumentException("index must keep float vectors (FLOAT32 or rerankFactor > 0)");
+        if (!(maxSizeRatio > 1f))
+            throw new IllegalArgumentException("maxSizeRatio must be > 1");
+        if (!(minSizeRatio >= 0f && minSizeRatio < 1f))
+            throw new IllegalArgumentException("minSizeRatio must be in [0, 1)");
+        if (!(maxErrorRatio > 1f))
+            throw new IllegalArgumentException("maxErrorRatio must be > 1");
+        if (random == null)
+            throw new IllegalArgumentException("random must be non-null");
+
+        this.index = index;
+        this.maxSizeRatio = maxSizeRatio;
+        this.minSizeRatio = minSizeRatio;
+        this.maxErrorRatio = maxErrorRatio;
+        this.random = random;
+    }
+
+    /** One maintenance pass; does nothing while the index is not built yet. */
+    @Override public synchronized void run() {
+        if (index.getCountClusters() == 0)
+            return;
+
+        Pass pass = index.rebalance(maxSizeRatio, minSizeRatio, maxErrorRatio, random);
+
+        splitCount += pass.splits;
+        mergeCount += pass.merges;
+        lastPass = pass;
+    }
+
+    /** Statistics of the latest pass, or {@code null} before the first one. */
+    public Pass getLastPass() {
+        return lastPass;
+    }
+
+    public long getSplitCount() {
+        return splitCount;
+    }
+
+    public long getMergeCount() {
+        return mergeCount;
+    }
+
+    /** What one pass measured before changing the index, and what it changed. */
+    public static final class Pass {
+        private final float imbalance;
+        private final float meanError;
+        private final int splits;
+        private final int merges;
+
+        Pass(float imbalance, float meanError, int splits, int merges) {
+            this.imbalance = imbalance;
+            this.meanError = meanError;
+            this.splits = splits;
+            this.merges = merges;
+        }
+
+        /** Longest list size divided by the mean list size. */
+        public float getImbalance() {
+            return imbalance;
+        }
+
+        /** Mean distance of a vector to its centroid; {@code NaN} for the dot product. */
+        public float getMeanError() {
+            return meanError;
+        }
+
+        public int getSplits() {
+            return splits;
+        }
+
+        public int getMerges() {
+            return merges;
+        }
+    }
+}
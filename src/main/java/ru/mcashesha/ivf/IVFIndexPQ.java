@@ -0,0 +1,901 @@
+package ru.mcashesha.ivf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import ru.mcashesha.kmeans.KMeans;
+import ru.mcashesha.metrics.Metric;
+
+/**
+ * IVF index with product-quantized residuals (IVF-PQ).
+ *
+ * <p>Each vector is stored as {@code subspaceCount} one-byte codes of its residual to the coarse
+ * centroid, and probed clusters are scanned with precomputed asymmetric distance lookup tables.
+ * When {@code rerankFactor > 0} the original vectors are kept in contiguous storage as well and
+ * the best {@code topK * rerankFactor} candidates are re-scored exactly. State is published as an
+ * immutable snapshot through a volatile field, with the same concurrency guarantees as
+ * {@link IVFIndexFlat}.
+ *
+ * <p>{@code add} and {@code addBatch} encode the residual of each vector to its nearest coarse
+ * centroid with the trained codebooks and append the codes to that list, into spare capacity past
+ * the published list size. {@code delete} tombstones positions found through an id map and
+ * compacts a list once a quarter of it is deleted, like {@link IVFIndexFlat}. The codebooks are
+ * not retrained, so many adds far from the training data lose accuracy until the next build.
+ *
+ * <p>{@code save} writes the centroids, codebooks, codes, norms and, with re-ranking, the original
+ * vectors; {@link #open} reads the codes and norms into the heap and maps the vectors.
+ */
+public class IVFIndexPQ implements IVFIndex {
+    private static final int MAX_CODEBOOK_SIZE = 256;
+    private static final int DEFAULT_CODEBOOK_ITERATIONS = 25;
+    /** Vectors whose nearest centroids are scored with one distance matrix when adding. */
+    private static final int ADD_BLOCK = 256;
+    /** A list is compacted once more than {@code 1 / COMPACT_DIVISOR} of its positions are tombstoned. */
+    private static final int COMPACT_DIVISOR = 4;
+
+    /** Columns of a saved index, see {@link IVFIndexFormat}; absent ones are not written. */
+    private static final int COLUMN_CODES = 0;
+    private static final int COLUMN_NORMS = 1;
+    private static final int COLUMN_VECTORS = 2;
+    private static final int COLUMN_COUNT = 3;
+
+    private static final ThreadLocal<SearchScratch> SEARCH_SCRATCH = ThreadLocal.withInitial(SearchScratch::new);
+
+    private final KMeans<? extends KMeans.ClusteringResult> kMeans;
+    private final Metric.Type metricType;
+    private final Metric.Engine metricEngine;
+    private final int subspaceCount;
+    private final int codebookSize;
+    private final int codebookIterations;
+    private final int rerankFactor;
+    private final Random random;
+    private final Object buildLock = new Object();
+
+    private volatile Snapshot snapshot;
+
+    /** Locations of the live vectors of {@code snapshot}, built on the first delete; guarded by {@code buildLock}. */
+    private IdLocations idLocations;
+
+    public IVFIndexPQ(KMeans<? extends KMeans.ClusteringResult> kMeans, int subspaceCount) {
+        this(kMeans, subspaceCount, MAX_CODEBOOK_SIZE, DEFAULT_CODEBOOK_ITERATIONS, 0, new Random());
+    }
+
+    public IVFIndexPQ(KMeans<? extends KMeans.ClusteringResult> kMeans,
+        int subspaceCount,
+        int codebookSize,
+        int codebookIterations,
+        int rerankFactor,
+        Random random) {
+        if (kMeans == null)
+            throw new IllegalArgumentException("kMeans must be non-null");
+        if (subspaceCount <= 0)
+            throw new IllegalArgumentException("subspaceCount must be > 0");
+        if (codebookSize <= 1 || codebookSize > MAX_CODEBOOK_SIZE)
+            throw new IllegalArgumentException("codebookSize must be in [2, " + MAX_CODEBOOK_SIZE + ']');
+        if (codebookIterations <= 0)
+            throw new IllegalArgumentException("codebookIterations must be > 0");
+        if (rerankFactor < 0)
+            throw new IllegalArgumentException("rerankFactor must be >= 0");
+        if (random == null)
+            throw new IllegalArgumentException("random must be non-null");
+
+        this.kMeans = kMeans;
+        this.metricType = kMeans.getMetricType();
+        this.metricEngine = kMeans.getMetricEngine();
+        this.subspaceCount = subspaceCount;
+        this.codebookSize = codebookSize;
+        this.codebookIterations = codebookIterations;
+        this.rerankFactor = rerankFactor;
+        this.random = random;
+    }
+
+    IVFIndexPQ(IVFIndexFormat.Contents contents) throws IOException {
+        ByteBuffer[][] columns = contents.columns;
+        if (columns.length != COLUMN_COUNT)
+            throw new IOException("unexpected column count " + columns.length + " (expected " + COLUMN_COUNT + ')');
+
+        int dimension = contents.centroids[0].length;
+        int locSubspaceCount = contents.codebooks.length;
+        if (columns[COLUMN_CODES] == null || contents.recordBytes[COLUMN_CODES] != locSubspaceCount
+            || columns[COLUMN_NORMS] == null || contents.recordBytes[COLUMN_NORMS] != Float.BYTES)
+            throw new IOException("missing or malformed PQ code columns");
+        if ((columns[COLUMN_VECTORS] != null) != (contents.rerankFactor > 0)
+            || columns[COLUMN_VECTORS] != null && contents.recordBytes[COLUMN_VECTORS] != dimension * Float.BYTES)
+            throw new IOException("vector column does not match rerank factor " + contents.rerankFactor);
+        if (contents.codebookSize > MAX_CODEBOOK_SIZE)
+            throw new IOException("invalid codebook size " + contents.codebookSize);
+
+        this.kMeans = null;
+        this.metricType = contents.metricType;
+        this.metricEngine = contents.metricEngine;
+        this.subspaceCount = locSubspaceCount;
+        this.codebookSize = contents.codebookSize;
+        this.codebookIterations = 0;
+        this.rerankFactor = contents.rerankFactor;
+        this.random = null;
+
+        int clusterCnt = contents.centroids.length;
+        int[][] clusterIds = contents.clusterIds;
+        int[] sizes = contents.sizes();
+        byte[][] clusterCodes = new byte[clusterCnt][];
+        float[][] clusterNorms = new float[clusterCnt][];
+        for (int c = 0; c < clusterCnt; c++) {
+            clusterCodes[c] = new byte[sizes[c] * locSubspaceCount];
+            columns[COLUMN_CODES][c].get(0, clusterCodes[c]);
+            clusterNorms[c] = new float[sizes[c]];
+            columns[COLUMN_NORMS][c].asFloatBuffer().get(0, clusterNorms[c]);
+        }
+
+        VectorStorage storage = columns[COLUMN_VECTORS] == null
+            ? null
+            : VectorStorage.open(dimension, columns[COLUMN_VECTORS], null, clusterIds);
+
+        this.snapshot = new Snapshot(dimension, dimension / locSubspaceCount, contents.codebookSize,
+            contents.centroids, contents.codebooks, clusterIds, clusterCodes, clusterNorms, sizes, null, storage);
+    }
+
+    public static IVFIndexPQ open(Path path) throws IOException {
+        if (path == null)
+            throw new IllegalArgumentException("path must be non-null");
+
+        return new IVFIndexPQ(IVFIndexFormat.read(path, IVFIndexFormat.KIND_PQ));
+    }
+
+    @Override public void build(float[][] vectors) {
+        build(vectors, null);
+    }
+
+    @Override public void build(float[][] vectors, int[] ids) {
+        if (kMeans == null)
+            throw new IllegalStateException("Index was opened from a file and has no KMeans to rebuild with");
+        if (vectors == null || vectors.length == 0)
+            throw new IllegalArgumentException("vectors must be non-empty");
+        if (vectors[0] == null)
+            throw new IllegalArgumentException("vectors[0] must be non-null");
+
+        int dimension = vectors[0].length;
+        if (dimension == 0)
+            throw new IllegalArgumentException("vector dimension must be > 0");
+        if (dimension % subspaceCount != 0)
+            throw new IllegalArgumentException(
+                "vector dimension (" + dimension + ") must be divisible by subspaceCount (" + subspaceCount + ')'
+            );
+
+        for (int i = 1; i < vectors.length; i++) {
+            if (vectors[i] == null || vectors[i].length != dimension) {
+                throw new IllegalArgumentException(
+                    "all vectors must be non-null and have the same dimension"
+                );
+            }
+        }
+
+        if (ids != null) {
+            if (ids.length != vectors.length)
+                throw new IllegalArgumentException("ids length must match vectors length");
+        }
+        else {
+            ids = new int[vectors.length];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = i;
+        }
+
+        synchronized (buildLock) {
+            snapshot = createSnapshot(vectors, ids, dimension);
+            idLocations = null;
+        }
+    }
+
+    private Snapshot createSnapshot(float[][] vectors, int[] ids, int dimension) {
+        KMeans.ClusteringResult clusteringResult = kMeans.fit(vectors);
+
+        float[][] centroids = clusteringResult.getCentroids();
+        int[] assignments = clusteringResult.getClusterAssignments();
+
+        if (centroids == null || centroids.length == 0)
+            throw new IllegalStateException("KMeans returned empty centroids");
+        if (assignments == null || assignments.length != vectors.length)
+            throw new IllegalStateException("KMeans returned inconsistent assignments");
+
+        int clusterCnt = centroids.length;
+        for (float[] centroid : centroids) {
+            if (centroid == null || centroid.length != dimension)
+                throw new IllegalStateException("centroid dimension mismatch");
+        }
+        for (int clusterId : assignments) {
+            if (clusterId < 0 || clusterId >= clusterCnt)
+                throw new IllegalStateException("KMeans returned invalid cluster id " + clusterId);
+        }
+
+        int sampleCnt = vectors.length;
+        int subDimension = dimension / subspaceCount;
+        int locCodebookSize = Math.min(codebookSize, sampleCnt);
+
+        float[][] residuals = new float[sampleCnt][dimension];
+        for (int i = 0; i < sampleCnt; i++) {
+            float[] vector = vectors[i];
+            float[] centroid = centroids[assignments[i]];
+            float[] residual = residuals[i];
+            for (int d = 0; d < dimension; d++)
+                residual[d] = vector[d] - centroid[d];
+        }
+
+        float[][] codebooks = new float[subspaceCount][];
+        byte[][] vectorCodes = new byte[sampleCnt][subspaceCount];
+
+        float[][] subVectors = new float[sampleCnt][];
+        for (int j = 0; j < subspaceCount; j++) {
+            int from = j * subDimension;
+            for (int i = 0; i < sampleCnt; i++)
+                subVectors[i] = Arrays.copyOfRange(residuals[i], from, from + subDimension);
+
+            KMeans.ClusteringResult subResult = KMeans.newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, metricEngine)
+                .withClusterCount(locCodebookSize)
+                .withMaxIterations(codebookIterations)
+                .withRandom(random)
+                .build()
+                .fit(subVectors);
+
+            float[][] codewords = subResult.getCentroids();
+            float[] codebook = new float[locCodebookSize * subDimension];
+            for (int k = 0; k < locCodebookSize; k++)
+                System.arraycopy(codewords[k], 0, codebook, k * subDimension, subDimension);
+            codebooks[j] = codebook;
+
+            int[] subAssignments = subResult.getClusterAssignments();
+            for (int i = 0; i < sampleCnt; i++)
+                vectorCodes[i][j] = (byte)subAssignments[i];
+        }
+
+        int[] sizes = new int[clusterCnt];
+        for (int clusterId : assignments)
+            sizes[clusterId]++;
+
+        int[][] clusterIds = new int[clusterCnt][];
+        byte[][] clusterCodes = new byte[clusterCnt][];
+        float[][] clusterNorms = new float[clusterCnt][];
+        for (int c = 0; c < clusterCnt; c++) {
+            clusterIds[c] = new int[sizes[c]];
+            clusterCodes[c] = new byte[sizes[c] * subspaceCount];
+            clusterNorms[c] = new float[sizes[c]];
+        }
+
+        int[] positions = new int[clusterCnt];
+        for (int i = 0; i < sampleCnt; i++) {
+            int clusterId = assignments[i];
+            int pos = positions[clusterId]++;
+
+            clusterIds[clusterId][pos] = ids[i];
+            System.arraycopy(vectorCodes[i], 0, clusterCodes[clusterId], pos * subspaceCount, subspaceCount);
+
+            float sumSq = 0f;
+            for (float v : vectors[i])
+                sumSq += v * v;
+            clusterNorms[clusterId][pos] = (float)Math.sqrt(sumSq);
+        }
+
+        VectorStorage storage = rerankFactor > 0
+            ? VectorStorage.build(vectors, ids, assignments, clusterCnt, dimension, false)
+            : null;
+
+        return new Snapshot(dimension, subDimension, locCodebookSize, centroids, codebooks,
+            clusterIds, clusterCodes, clusterNorms, sizes, null, storage);
+    }
+
+    @Override public Metric.Type getMetricType() {
+        return metricType;
+    }
+
+    @Override public Metric.Engine getMetricEngine() {
+        return metricEngine;
+    }
+
+    @Override public int getCountClusters() {
+        Snapshot locSnapshot = snapshot;
+        return locSnapshot == null ? 0 : locSnapshot.centroids.length;
+    }
+
+    @Override public int getDimension() {
+        Snapshot locSnapshot = snapshot;
+        return locSnapshot == null ? 0 : locSnapshot.dimension;
+    }
+
+    public int getSubspaceCount() {
+        return subspaceCount;
+    }
+
+    public int getRerankFactor() {
+        return rerankFactor;
+    }
+
+    @Override public List<SearchResult> search(float[] qry, int topK, int nProbe) {
+        TopKHeap heap = searchHeap(qry, topK, nProbe);
+
+        List<SearchResult> result = new ArrayList<>(heap.size());
+        for (int i = 0; i < heap.size(); i++)
+            result.add(new SearchResult(heap.id(i), heap.distance(i), heap.clusterId(i)));
+
+        return result;
+    }
+
+    @Override public void search(float[] qry, int topK, int nProbe, ResultSink sink) {
+        if (sink == null)
+            throw new IllegalArgumentException("sink must be non-null");
+
+        TopKHeap heap = searchHeap(qry, topK, nProbe);
+
+        for (int i = 0; i < heap.size(); i++)
+            sink.accept(heap.id(i), heap.distance(i), heap.clusterId(i));
+    }
+
+    @Override public List<List<SearchResult>> searchBatch(float[][] queries, int topK, int nProbe) {
+        if (queries == null)
+            throw new IllegalArgumentException("queries must be non-null");
+        if (queries.length == 0)
+            return Collections.emptyList();
+
+        List<List<SearchResult>> results = new ArrayList<>(queries.length);
+        for (float[] qry : queries)
+            results.add(search(qry, topK, nProbe));
+
+        return results;
+    }
+
+    @Override public void add(float[] vector, int id) {
+        if (vector == null)
+            throw new IllegalArgumentException("vector must be non-null");
+
+        addBatch(new float[][] {vector}, new int[] {id});
+    }
+
+    @Override public void addBatch(float[][] vectors, int[] ids) {
+        if (vectors == null || ids == null)
+            throw new IllegalArgumentException("vectors and ids must be non-null");
+        if (ids.length != vectors.length)
+            throw new IllegalArgumentException("ids length must match vectors length");
+        if (vectors.length == 0)
+            return;
+
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null)
+                throw new IllegalStateException("Index is not built yet");
+            for (float[] vector : vectors) {
+                if (vector == null || vector.length != locSnapshot.dimension)
+                    throw new IllegalArgumentException("all vectors must be non-null and match index dimension");
+            }
+
+            int clusterCnt = locSnapshot.centroids.length;
+            int[] assignments = nearestCentroids(locSnapshot, vectors);
+
+            int[] newSizes = locSnapshot.clusterSizes.clone();
+            for (int clusterId : assignments)
+                newSizes[clusterId]++;
+
+            int[][] newIds = locSnapshot.clusterIds.clone();
+            byte[][] newCodes = locSnapshot.clusterCodes.clone();
+            float[][] newNorms = locSnapshot.clusterNorms.clone();
+            for (int c = 0; c < clusterCnt; c++) {
+                int size = locSnapshot.clusterSizes[c];
+                if (newSizes[c] <= newIds[c].length)
+                    continue;
+
+                int capacity = VectorStorage.grownCapacity(size, newSizes[c], subspaceCount);
+                newIds[c] = Arrays.copyOf(newIds[c], capacity);
+                newCodes[c] = Arrays.copyOf(newCodes[c], capacity * subspaceCount);
+                newNorms[c] = Arrays.copyOf(newNorms[c], capacity);
+            }
+
+            int[] positions = locSnapshot.clusterSizes.clone();
+            float[] residual = new float[locSnapshot.dimension];
+            for (int i = 0; i < vectors.length; i++) {
+                int clusterId = assignments[i];
+                int pos = positions[clusterId]++;
+
+                newIds[clusterId][pos] = ids[i];
+                newNorms[clusterId][pos] = norm(vectors[i]);
+                encodeResidual(locSnapshot, vectors[i], locSnapshot.centroids[clusterId], residual,
+                    newCodes[clusterId], pos * subspaceCount);
+
+                if (idLocations != null)
+                    idLocations.put(ids[i], clusterId, pos);
+            }
+
+            VectorStorage storage = locSnapshot.storage == null
+                ? null
+                : locSnapshot.storage.append(vectors, ids, assignments);
+
+            snapshot = locSnapshot.withLists(newIds, newCodes, newNorms, newSizes, locSnapshot.deleted, storage);
+        }
+    }
+
+    /**
+     * Tombstones every live vector stored under {@code id}; lists that end up more than a quarter
+     * deleted are compacted in the same snapshot.
+     */
+    @Override public boolean delete(int id) {
+        synchronized (buildLock) {
+            Snapshot locSnapshot = snapshot;
+            if (locSnapshot == null)
+                throw new IllegalStateException("Index is not built yet");
+
+            if (idLocations == null)
+                idLocations = locate(locSnapshot);
+
+            long[] locations = idLocations.remove(id);
+            if (locations.length == 0)
+                return false;
+
+            int clusterCnt = locSnapshot.centroids.length;
+            long[][] deleted = locSnapshot.deleted == null ? new long[clusterCnt][] : locSnapshot.deleted.clone();
+            for (long location : locations) {
+                int c = IdLocations.clusterId(location);
+                deleted[c] = Tombstones.with(deleted[c], locSnapshot.clusterSizes[c], IdLocations.pos(location));
+            }
+
+            long[][] toCompact = new long[clusterCnt][];
+            boolean compact = false;
+            for (long location : locations) {
+                int c = IdLocations.clusterId(location);
+                if (deleted[c] != null
+                    && Tombstones.count(deleted[c]) > locSnapshot.clusterSizes[c] / COMPACT_DIVISOR) {
+                    toCompact[c] = deleted[c];
+                    deleted[c] = null;
+                    compact = true;
+                }
+            }
+
+            snapshot = compact ? compact(locSnapshot, toCompact, deleted) : locSnapshot.withDeleted(deleted);
+            return true;
+        }
+    }
+
+    /** Location of every live vector of {@code locSnapshot}. */
+    private static IdLocations locate(Snapshot locSnapshot) {
+        int clusterCnt = locSnapshot.centroids.length;
+        int total = 0;
+        for (int c = 0; c < clusterCnt; c++)
+            total += locSnapshot.clusterSizes[c];
+
+        IdLocations locations = new IdLocations(total);
+        for (int c = 0; c < clusterCnt; c++) {
+            long[] deleted = locSnapshot.deleted(c);
+            for (int pos = 0; pos < locSnapshot.clusterSizes[c]; pos++) {
+                if (deleted == null || !Tombstones.contains(deleted, pos))
+                    locations.put(locSnapshot.clusterIds[c][pos], c, pos);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Snapshot with the lists that have a bitset in {@code toCompact} rewritten without their
+     * tombstoned positions and {@code remaining} tombstones; moves the id locations along.
+     */
+    private Snapshot compact(Snapshot locSnapshot, long[][] toCompact, long[][] remaining) {
+        int[][] newIds = locSnapshot.clusterIds.clone();
+        byte[][] newCodes = locSnapshot.clusterCodes.clone();
+        float[][] newNorms = locSnapshot.clusterNorms.clone();
+        int[] newSizes = locSnapshot.clusterSizes.clone();
+
+        for (int c = 0; c < toCompact.length; c++) {
+            long[] bits = toCompact[c];
+            if (bits == null)
+                continue;
+
+            int size = locSnapshot.clusterSizes[c];
+            int liveCnt = size - Tombstones.count(bits);
+            int[] ids = new int[liveCnt];
+            byte[] codes = new byte[liveCnt * subspaceCount];
+            float[] norms = new float[liveCnt];
+
+            int live = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (Tombstones.contains(bits, pos))
+                    continue;
+
+                ids[live] = locSnapshot.clusterIds[c][pos];
+                System.arraycopy(locSnapshot.clusterCodes[c], pos * subspaceCount, codes, live * subspaceCount,
+                    subspaceCount);
+                norms[live] = locSnapshot.clusterNorms[c][pos];
+                if (idLocations != null && pos != live)
+                    idLocations.move(ids[live], c, pos, live);
+                live++;
+            }
+
+            newIds[c] = ids;
+            newCodes[c] = codes;
+            newNorms[c] = norms;
+            newSizes[c] = liveCnt;
+        }
+
+        VectorStorage storage = locSnapshot.storage == null ? null : locSnapshot.storage.compact(toCompact);
+
+        return locSnapshot.withLists(newIds, newCodes, newNorms, newSizes, null, storage).withDeleted(remaining);
+    }
+
+    /** Index of the nearest centroid of every vector, scored {@link #ADD_BLOCK} vectors at a time. */
+    private int[] nearestCentroids(Snapshot locSnapshot, float[][] vectors) {
+        int clusterCnt = locSnapshot.centroids.length;
+        int[] assignments = new int[vectors.length];
+        float[] distances = new float[Math.min(ADD_BLOCK, vectors.length) * clusterCnt];
+
+        for (int blockStart = 0; blockStart < vectors.length; blockStart += ADD_BLOCK) {
+            int blockSize = Math.min(ADD_BLOCK, vectors.length - blockStart);
+            metricType.distanceMatrix(metricEngine, vectors, blockStart, blockSize, locSnapshot.centroids, distances);
+
+            for (int b = 0; b < blockSize; b++) {
+                int nearest = 0;
+                for (int c = 1; c < clusterCnt; c++) {
+                    if (distances[b * clusterCnt + c] < distances[b * clusterCnt + nearest])
+                        nearest = c;
+                }
+                assignments[blockStart + b] = nearest;
+            }
+        }
+
+        return assignments;
+    }
+
+    /** Writes the nearest codeword of every subspace of {@code vector - centroid} to {@code codes}. */
+    private void encodeResidual(Snapshot locSnapshot,
+        float[] vector,
+        float[] centroid,
+        float[] residual,
+        byte[] codes,
+        int offset) {
+        for (int d = 0; d < vector.length; d++)
+            residual[d] = vector[d] - centroid[d];
+
+        int subDimension = locSnapshot.subDimension;
+        int ksub = locSnapshot.codebookSize;
+
+        for (int j = 0; j < subspaceCount; j++) {
+            float[] codebook = locSnapshot.codebooks[j];
+            int from = j * subDimension;
+            int nearest = 0;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for (int k = 0; k < ksub; k++) {
+                int codewordOffset = k * subDimension;
+                float sumSq = 0f;
+                for (int d = 0; d < subDimension; d++) {
+                    float diff = residual[from + d] - codebook[codewordOffset + d];
+                    sumSq += diff * diff;
+                }
+                if (sumSq < nearestDistance) {
+                    nearestDistance = sumSq;
+                    nearest = k;
+                }
+            }
+            codes[offset + j] = (byte)nearest;
+        }
+    }
+
+    private static float norm(float[] vector) {
+        float sumSq = 0f;
+        for (float v : vector)
+            sumSq += v * v;
+        return (float)Math.sqrt(sumSq);
+    }
+
+    @Override public void save(Path path) throws IOException {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
+            throw new IllegalStateException("Index is not built yet");
+        if (path == null)
+            throw new IllegalArgumentException("path must be non-null");
+
+        int clusterCnt = locSnapshot.centroids.length;
+        int[][] clusterIds = new int[clusterCnt][];
+        ByteBuffer[] codes = new ByteBuffer[clusterCnt];
+        ByteBuffer[] norms = new ByteBuffer[clusterCnt];
+        for (int c = 0; c < clusterCnt; c++) {
+            int size = locSnapshot.clusterSizes[c];
+            long[] deleted = locSnapshot.deleted(c);
+            int liveCnt = deleted == null ? size : size - Tombstones.count(deleted);
+
+            clusterIds[c] = new int[liveCnt];
+            codes[c] = ByteBuffer.allocate(liveCnt * subspaceCount);
+            norms[c] = ByteBuffer.allocate(liveCnt * Float.BYTES).order(VectorStorage.BYTE_ORDER);
+            for (int pos = 0, i = 0; pos < size; pos++) {
+                if (deleted != null && Tombstones.contains(deleted, pos))
+                    continue;
+
+                clusterIds[c][i] = locSnapshot.clusterIds[c][pos];
+                codes[c].put(i * subspaceCount, locSnapshot.clusterCodes[c], pos * subspaceCount, subspaceCount);
+                norms[c].putFloat(i * Float.BYTES, locSnapshot.clusterNorms[c][pos]);
+                i++;
+            }
+        }
+
+        ByteBuffer[][] columns = new ByteBuffer[COLUMN_COUNT][];
+        int[] recordBytes = new int[COLUMN_COUNT];
+        columns[COLUMN_CODES] = codes;
+        recordBytes[COLUMN_CODES] = subspaceCount;
+        columns[COLUMN_NORMS] = norms;
+        recordBytes[COLUMN_NORMS] = Float.BYTES;
+        if (locSnapshot.storage != null) {
+            VectorStorage storage = locSnapshot.deleted == null
+                ? locSnapshot.storage
+                : locSnapshot.storage.compact(locSnapshot.deleted);
+            columns[COLUMN_VECTORS] = storage.vectorColumn();
+            recordBytes[COLUMN_VECTORS] = locSnapshot.dimension * Float.BYTES;
+        }
+
+        IVFIndexFormat.write(path, new IVFIndexFormat.Contents(IVFIndexFormat.KIND_PQ, metricType, metricEngine,
+            null, locSnapshot.codebooks, locSnapshot.codebookSize, rerankFactor, locSnapshot.centroids, clusterIds,
+            columns, recordBytes));
+    }
+
+    private TopKHeap searchHeap(float[] qry, int topK, int nProbe) {
+        Snapshot locSnapshot = snapshot;
+        if (locSnapshot == null)
+            throw new IllegalStateException("Index is not built yet");
+        if (qry == null || qry.length != locSnapshot.dimension)
+            throw new IllegalArgumentException("query must be non-null and match index dimension");
+        if (topK <= 0)
+            throw new IllegalArgumentException("topK must be > 0");
+
+        float[][] centroids = locSnapshot.centroids;
+        int clusterCnt = centroids.length;
+        nProbe = Math.max(1, Math.min(nProbe, clusterCnt));
+
+        SearchScratch scratch = SEARCH_SCRATCH.get();
+        scratch.ensureCapacity(clusterCnt, nProbe, locSnapshot);
+
+        float[] centroidDistances = scratch.centroidDistances;
+        metricType.distances(metricEngine, qry, locSnapshot.centroidBlock, 0, clusterCnt, centroidDistances, 0);
+
+        int[] selectedClusters = scratch.selectedClusters;
+        int selectedCnt = scratch.selector.select(centroidDistances, clusterCnt, nProbe, selectedClusters);
+
+        boolean rerank = locSnapshot.storage != null;
+        TopKHeap candidates = scratch.candidates;
+        candidates.reset(rerank ? candidateCount(topK) : topK);
+
+        float[] lut = scratch.lut;
+        float qryNorm = 0f;
+        if (metricType != Metric.Type.L2SQ_DISTANCE) {
+            computeDotTable(locSnapshot, qry, lut);
+            if (metricType == Metric.Type.COSINE_DISTANCE) {
+                float sumSq = 0f;
+                for (float v : qry)
+                    sumSq += v * v;
+                qryNorm = (float)Math.sqrt(sumSq);
+            }
+        }
+
+        for (int s = 0; s < selectedCnt; s++) {
+            int clusterId = selectedClusters[s];
+            float base = 0f;
+
+            switch (metricType) {
+                case L2SQ_DISTANCE:
+                    computeL2Table(locSnapshot, qry, centroids[clusterId], scratch.residual, lut);
+                    break;
+                case DOT_PRODUCT:
+                    base = centroidDistances[clusterId];
+                    break;
+                case COSINE_DISTANCE:
+                    base = Metric.Type.DOT_PRODUCT.distance(metricEngine, qry, centroids[clusterId]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported metric type: " + metricType);
+            }
+
+            scanCluster(locSnapshot, clusterId, lut, base, qryNorm, candidates);
+        }
+
+        candidates.sortAscending();
+
+        TopKHeap results = scratch.results;
+        results.reset(topK);
+
+        if (rerank) {
+            VectorStorage storage = locSnapshot.storage;
+            for (int i = 0; i < candidates.size(); i++) {
+                int clusterId = candidates.clusterId(i);
+                int pos = candidates.id(i);
+                float d = metricType.distance(metricEngine, qry, storage.vectors(clusterId), storage.offset(pos));
+                if (d <= results.threshold())
+                    results.offer(storage.id(clusterId, pos), d, clusterId);
+            }
+        }
+        else {
+            for (int i = 0; i < candidates.size(); i++) {
+                int clusterId = candidates.clusterId(i);
+                results.offer(locSnapshot.clusterIds[clusterId][candidates.id(i)], candidates.distance(i), clusterId);
+            }
+        }
+
+        results.sortAscending();
+
+        return results;
+    }
+
+    private int candidateCount(int topK) {
+        return (int)Math.min(Integer.MAX_VALUE, (long)topK * rerankFactor);
+    }
+
+    private void scanCluster(Snapshot locSnapshot,
+        int clusterId,
+        float[] lut,
+        float base,
+        float qryNorm,
+        TopKHeap candidates) {
+        byte[] codes = locSnapshot.clusterCodes[clusterId];
+        float[] norms = locSnapshot.clusterNorms[clusterId];
+        int size = locSnapshot.clusterSizes[clusterId];
+        long[] deleted = locSnapshot.deleted(clusterId);
+        int ksub = locSnapshot.codebookSize;
+
+        for (int pos = 0, codeOffset = 0; pos < size; pos++, codeOffset += subspaceCount) {
+            if (deleted != null && Tombstones.contains(deleted, pos))
+                continue;
+
+            float sum = base;
+            for (int j = 0, lutOffset = 0; j < subspaceCount; j++, lutOffset += ksub)
+                sum += lut[lutOffset + (codes[codeOffset + j] & 0xFF)];
+
+            float d = sum;
+            if (metricType == Metric.Type.COSINE_DISTANCE)
+                d = 1 - sum / (qryNorm * norms[pos]);
+
+            if (d <= candidates.threshold())
+                candidates.offer(pos, d, clusterId);
+        }
+    }
+
+    private void computeL2Table(Snapshot locSnapshot,
+        float[] qry,
+        float[] centroid,
+        float[] residual,
+        float[] lut) {
+        for (int d = 0; d < qry.length; d++)
+            residual[d] = qry[d] - centroid[d];
+
+        int subDimension = locSnapshot.subDimension;
+        int ksub = locSnapshot.codebookSize;
+
+        for (int j = 0; j < subspaceCount; j++) {
+            float[] codebook = locSnapshot.codebooks[j];
+            int from = j * subDimension;
+            for (int k = 0; k < ksub; k++) {
+                int codewordOffset = k * subDimension;
+                float sumSq = 0f;
+                for (int d = 0; d < subDimension; d++) {
+                    float diff = residual[from + d] - codebook[codewordOffset + d];
+                    sumSq += diff * diff;
+                }
+                lut[j * ksub + k] = sumSq;
+            }
+        }
+    }
+
+    private void computeDotTable(Snapshot locSnapshot, float[] qry, float[] lut) {
+        int subDimension = locSnapshot.subDimension;
+        int ksub = locSnapshot.codebookSize;
+
+        for (int j = 0; j < subspaceCount; j++) {
+            float[] codebook = locSnapshot.codebooks[j];
+            int from = j * subDimension;
+            for (int k = 0; k < ksub; k++) {
+                int codewordOffset = k * subDimension;
+                float dot = 0f;
+                for (int d = 0; d < subDimension; d++)
+                    dot += qry[from + d] * codebook[codewordOffset + d];
+                lut[j * ksub + k] = dot;
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        final int dimension;
+        final int subDimension;
+        final int codebookSize;
+        final float[][] centroids;
+        /** The centroids packed into one direct buffer, scored against a query without copying them. */
+        final ByteBuffer centroidBlock;
+        final float[][] codebooks;
+        final int[][] clusterIds;
+        final byte[][] clusterCodes;
+        final float[][] clusterNorms;
+        /** Published list sizes; the list arrays may have spare capacity past them. */
+        final int[] clusterSizes;
+        /** Tombstone bitset per cluster, see {@link Tombstones}; {@code null} when nothing is deleted. */
+        final long[][] deleted;
+        final VectorStorage storage;
+
+        Snapshot(int dimension,
+            int subDimension,
+            int codebookSize,
+            float[][] centroids,
+            float[][] codebooks,
+            int[][] clusterIds,
+            byte[][] clusterCodes,
+            float[][] clusterNorms,
+            int[] clusterSizes,
+            long[][] deleted,
+            VectorStorage storage) {
+            this(dimension, subDimension, codebookSize, centroids, VectorStorage.pack(centroids), codebooks,
+                clusterIds, clusterCodes, clusterNorms, clusterSizes, deleted, storage);
+        }
+
+        private Snapshot(int dimension,
+            int subDimension,
+            int codebookSize,
+            float[][] centroids,
+            ByteBuffer centroidBlock,
+            float[][] codebooks,
+            int[][] clusterIds,
+            byte[][] clusterCodes,
+            float[][] clusterNorms,
+            int[] clusterSizes,
+            long[][] deleted,
+            VectorStorage storage) {
+            this.dimension = dimension;
+            this.subDimension = subDimension;
+            this.codebookSize = codebookSize;
+            this.centroids = centroids;
+            this.centroidBlock = centroidBlock;
+            this.codebooks = codebooks;
+            this.clusterIds = clusterIds;
+            this.clusterCodes = clusterCodes;
+            this.clusterNorms = clusterNorms;
+            this.clusterSizes = clusterSizes;
+            this.deleted = deleted;
+            this.storage = storage;
+        }
+
+        /** Same snapshot with {@code deleted} tombstones, or none if every bitset in it is null. */
+        Snapshot withDeleted(long[][] deleted) {
+            boolean any = false;
+            for (long[] bits : deleted)
+                any |= bits != null;
+
+            return withLists(clusterIds, clusterCodes, clusterNorms, clusterSizes, any ? deleted : null, storage);
+        }
+
+        /** Snapshot with the same centroids and codebooks over other lists. */
+        Snapshot withLists(int[][] clusterIds,
+            byte[][] clusterCodes,
+            float[][] clusterNorms,
+            int[] clusterSizes,
+            long[][] deleted,
+            VectorStorage storage) {
+            return new Snapshot(dimension, subDimension, codebookSize, centroids, centroidBlock, codebooks,
+                clusterIds, clusterCodes, clusterNorms, clusterSizes, deleted, storage);
+        }
+
+        long[] deleted(int clusterId) {
+            return deleted == null ? null : deleted[clusterId];
+        }
+    }
+
+    private static final class SearchScratch {
+        final NProbeSelector selector = new NProbeSelector();
+        final TopKHeap candidates = new TopKHeap(16);
+        final TopKHeap results = new TopKHeap(16);
+        float[] centroidDistances = new float[0];
+        int[] selectedClusters = new int[0];
+        float[] lut = new float[0];
+        float[] residual = new float[0];
+
+        void ensureCapacity(int clusterCnt, int nProbe, Snapshot locSnapshot) {
+            if (centroidDistances.length < clusterCnt)
+                centroidDistances = new float[clusterCnt];
+            if (selectedClusters.length < nProbe)
+                selectedClusters = new int[nProbe];
+
+            int lutSize = locSnapshot.codebooks.length * locSnapshot.codebookSize;
+            if (lut.length < lutSize)
+                lut = new float[lutSize];
+            if (residual.length < locSnapshot.dimension)
+                residual = new float[locSnapshot.dimension];
+        }
+    }
+}
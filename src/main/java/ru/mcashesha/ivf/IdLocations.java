@@ -0,0 +1,129 @@
+package ru.mcashesha.ivf;
+
+import java.util.Arrays;
+
+/**
+ * Where every live vector of an index is stored: an open-addressing multimap from id to
+ * {@code (clusterId, pos)}, packed into one {@code long}. An id may have several locations.
+ * Not thread-safe; the index only touches it under its build lock.
+ */
+final class IdLocations {
+    private static final long EMPTY = -1L;
+    private static final long[] NONE = new long[0];
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    IdLocations(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(values, EMPTY);
+    }
+
+    static long pack(int clusterId, int pos) {
+        return ((long)clusterId << 32) | (pos & 0xFFFFFFFFL);
+    }
+
+    static int clusterId(long location) {
+        return (int)(location >>> 32);
+    }
+
+    static int pos(long location) {
+        return (int)location;
+    }
+
+    void put(int id, int clusterId, int pos) {
+        if (2 * (size + 1) > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int slot = home(id, mask);
+        while (values[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = id;
+        values[slot] = pack(clusterId, pos);
+        size++;
+    }
+
+    /** Removes every location of {@code id} and returns them, in no particular order. */
+    long[] remove(int id) {
+        int mask = keys.length - 1;
+        long[] removed = NONE;
+        int removedCnt = 0;
+
+        int slot = home(id, mask);
+        while (values[slot] != EMPTY) {
+            if (keys[slot] != id) {
+                slot = (slot + 1) & mask;
+                continue;
+            }
+
+            if (removedCnt == removed.length)
+                removed = Arrays.copyOf(removed, Math.max(2, 2 * removedCnt));
+            removed[removedCnt++] = values[slot];
+            removeAt(slot, mask);
+        }
+
+        return removedCnt == removed.length ? removed : Arrays.copyOf(removed, removedCnt);
+    }
+
+    /** Moves the location {@code (clusterId, from)} of {@code id} to {@code (clusterId, to)}. */
+    void move(int id, int clusterId, int from, int to) {
+        int mask = keys.length - 1;
+        long location = pack(clusterId, from);
+
+        for (int slot = home(id, mask); values[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == id && values[slot] == location) {
+                values[slot] = pack(clusterId, to);
+                return;
+            }
+        }
+    }
+
+    /** Backward-shift deletion: pulls later entries of the probe run into the hole so lookups need no markers. */
+    private void removeAt(int slot, int mask) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (values[next] != EMPTY) {
+            int home = home(keys[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        values[hole] = EMPTY;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(values, EMPTY);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == EMPTY)
+                continue;
+
+            int slot = home(oldKeys[i], mask);
+            while (values[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int home(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
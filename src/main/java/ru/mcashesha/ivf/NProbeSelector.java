@@ -0,0 +1,52 @@
+package ru.mcashesha.ivf;
+
+/**
+ * Selects the {@code nProbe} closest clusters from a row of centroid distances with a bounded
+ * max-heap, in {@code O(clusters * log(nProbe))} time and without allocating once warmed up.
+ * Instances keep reusable scratch state and are not thread-safe.
+ */
+public final class NProbeSelector {
+    private final TopKHeap heap = new TopKHeap(16);
+
+    public int select(float[] distances, int nProbe, int[] out) {
+        if (distances == null)
+            throw new IllegalArgumentException("distances must be non-null");
+
+        return select(distances, distances.length, nProbe, out);
+    }
+
+    public int select(float[] distances, int clusterCnt, int nProbe, int[] out) {
+        return select(distances, 0, clusterCnt, nProbe, out);
+    }
+
+    public int select(float[] distances, int offset, int clusterCnt, int nProbe, int[] out) {
+        if (distances == null || offset < 0 || clusterCnt <= 0 || clusterCnt > distances.length - offset)
+            throw new IllegalArgumentException("distances must hold clusterCnt > 0 elements from offset");
+        if (nProbe <= 0)
+            throw new IllegalArgumentException("nProbe must be > 0");
+
+        nProbe = Math.min(nProbe, clusterCnt);
+
+        if (out == null || out.length < nProbe)
+            throw new IllegalArgumentException("out must hold at least " + nProbe + " elements");
+
+        heap.reset(nProbe);
+
+        for (int c = 0; c < nProbe; c++)
+            heap.offer(c, distances[offset + c], c);
+
+        for (int c = nProbe; c < clusterCnt; c++) {
+            float d = distances[offset + c];
+            if (d < heap.threshold())
+                heap.offer(c, d, c);
+        }
+
+        heap.sortAscending();
+
+        int selected = heap.size();
+        for (int i = 0; i < selected; i++)
+            out[i] = heap.id(i);
+
+        return selected;
+    }
+}
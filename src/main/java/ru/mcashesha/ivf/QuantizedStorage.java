@@ -0,0 +1,402 @@
+package ru.mcashesha.ivf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import ru.mcashesha.metrics.Float16;
+import ru.mcashesha.metrics.Metric;
+
+/**
+ * Cluster-ordered vector codes in {@link VectorEncoding#FLOAT16}, {@link VectorEncoding#INT8} or
+ * {@link VectorEncoding#BINARY}.
+ *
+ * <p>INT8 codes are symmetric per-vector quantized: {@code v[i] ~= scale * code[i]} with
+ * {@code scale = max|v| / 127}. The float norm of every vector is kept next to its scale, as a
+ * {@value #FACTOR_BYTES}-byte record of two little-endian floats, so L2 and cosine distances are
+ * derived from a single integer dot product of the codes.
+ *
+ * <p>BINARY codes hold one bit per dimension, the sign of the residual to the cluster centroid.
+ * Their "distance" is the Hamming distance of the codes (negated for the dot product, whose
+ * smallest value ranks first), which only orders candidates for an exact re-rank.
+ *
+ * <p>Lists have a published size and grow into spare capacity on append, like {@link VectorStorage}.
+ */
+final class QuantizedStorage {
+    private static final int INT8_LEVELS = 127;
+    /** INT8 scale and norm of a vector. */
+    static final int FACTOR_BYTES = 2 * Float.BYTES;
+
+    private final VectorEncoding encoding;
+    private final int dimension;
+    private final ByteBuffer[] clusterCodes;
+    /** INT8 scale and norm records per list, or {@code null} for the other encodings. */
+    private final ByteBuffer[] clusterFactors;
+    private final float[][] centroids;
+    private final int[][] clusterIds;
+    private final int[] clusterSizes;
+
+    private QuantizedStorage(VectorEncoding encoding,
+        int dimension,
+        ByteBuffer[] clusterCodes,
+        ByteBuffer[] clusterFactors,
+        float[][] centroids,
+        int[][] clusterIds,
+        int[] clusterSizes) {
+        this.encoding = encoding;
+        this.dimension = dimension;
+        this.clusterCodes = clusterCodes;
+        this.clusterFactors = clusterFactors;
+        this.centroids = centroids;
+        this.clusterIds = clusterIds;
+        this.clusterSizes = clusterSizes;
+    }
+
+    static QuantizedStorage build(float[][] vectors,
+        int[] ids,
+        int[] assignments,
+        float[][] centroids,
+        VectorEncoding encoding) {
+        int clusterCnt = centroids.length;
+        int dimension = centroids[0].length;
+
+        if (encoding == null || encoding == VectorEncoding.FLOAT32)
+            throw new IllegalArgumentException("encoding must be FLOAT16, INT8 or BINARY");
+
+        int[] sizes = new int[clusterCnt];
+        for (int clusterId : assignments) {
+            if (clusterId >= 0 && clusterId < clusterCnt)
+                sizes[clusterId]++;
+        }
+
+        int vectorBytes = encoding.getBytesPerVector(dimension);
+
+        ByteBuffer[] clusterCodes = VectorStorage.allocateClusters(VectorStorage.clusterBytes(sizes, vectorBytes));
+        ByteBuffer[] clusterFactors = encoding == VectorEncoding.INT8
+            ? VectorStorage.allocateClusters(VectorStorage.clusterBytes(sizes, FACTOR_BYTES))
+            : null;
+
+        int[][] clusterIds = new int[clusterCnt][];
+        for (int c = 0; c < clusterCnt; c++)
+            clusterIds[c] = new int[sizes[c]];
+
+        int[] positions = new int[clusterCnt];
+        for (int i = 0; i < assignments.length; i++) {
+            int clusterId = assignments[i];
+            if (clusterId < 0 || clusterId >= clusterCnt)
+                continue;
+
+            int pos = positions[clusterId]++;
+            clusterIds[clusterId][pos] = ids[i];
+
+            encode(encoding, vectors[i], centroids[clusterId], clusterCodes[clusterId], pos,
+                clusterFactors != null ? clusterFactors[clusterId] : null);
+        }
+
+        return new QuantizedStorage(encoding, dimension, clusterCodes, clusterFactors,
+            encoding == VectorEncoding.BINARY ? centroids : null, clusterIds, sizes);
+    }
+
+    /**
+     * Storage over the lists of an opened index, see {@link IVFIndexFormat.Contents}; {@code centroids}
+     * are the index centroids, which BINARY residuals are taken against.
+     */
+    static QuantizedStorage open(VectorEncoding encoding,
+        int dimension,
+        ByteBuffer[] clusterCodes,
+        ByteBuffer[] clusterFactors,
+        float[][] centroids,
+        int[][] clusterIds) {
+        int[] sizes = new int[clusterIds.length];
+        for (int c = 0; c < sizes.length; c++)
+            sizes[c] = clusterIds[c].length;
+
+        return new QuantizedStorage(encoding, dimension, clusterCodes, clusterFactors,
+            encoding == VectorEncoding.BINARY ? centroids : null, clusterIds, sizes);
+    }
+
+    /** Encodes {@code vector} at position {@code pos} of a cluster; {@code factors} are INT8 only. */
+    private static void encode(VectorEncoding encoding,
+        float[] vector,
+        float[] centroid,
+        ByteBuffer codes,
+        int pos,
+        ByteBuffer factors) {
+        int vectorBytes = encoding.getBytesPerVector(vector.length);
+        int offset = pos * vectorBytes;
+        switch (encoding) {
+            case FLOAT16:
+                encodeFloat16(vector, codes, offset);
+                break;
+            case INT8:
+                factors.putFloat(pos * FACTOR_BYTES, encodeInt8(vector, codes, offset));
+                factors.putFloat(pos * FACTOR_BYTES + Float.BYTES, norm(vector));
+                break;
+            case BINARY:
+                for (int b = 0; b < vectorBytes; b++)
+                    codes.put(offset + b, encodeBinaryByte(vector, centroid, b));
+                break;
+            default:
+                throw new IllegalStateException("Unsupported encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Storage with {@code vectors[i]} encoded and appended to cluster {@code assignments[i]};
+     * {@code centroids} are the index centroids BINARY residuals are taken against. Codes go into
+     * the spare capacity of the touched lists and only lists without room are copied, see
+     * {@link VectorStorage#append}.
+     */
+    QuantizedStorage append(float[][] vectors, int[] ids, int[] assignments, float[][] centroids) {
+        int clusterCnt = clusterCodes.length;
+        int vectorBytes = encoding.getBytesPerVector(dimension);
+        int[] newSizes = clusterSizes.clone();
+        for (int clusterId : assignments)
+            newSizes[clusterId]++;
+
+        ByteBuffer[] newCodes = clusterCodes.clone();
+        ByteBuffer[] newFactors = clusterFactors == null ? null : clusterFactors.clone();
+        int[][] newIds = clusterIds.clone();
+        for (int c = 0; c < clusterCnt; c++) {
+            int size = clusterSizes[c];
+            if (newSizes[c] == size || (newSizes[c] <= clusterIds[c].length && !clusterCodes[c].isReadOnly()
+                && (newFactors == null || !clusterFactors[c].isReadOnly())))
+                continue;
+
+            int capacity = VectorStorage.grownCapacity(size, newSizes[c], vectorBytes);
+            newCodes[c] = VectorStorage.copyOf(clusterCodes[c], (long)size * vectorBytes,
+                (long)capacity * vectorBytes);
+            newIds[c] = Arrays.copyOf(clusterIds[c], capacity);
+            if (newFactors != null) {
+                newFactors[c] = VectorStorage.copyOf(clusterFactors[c], (long)size * FACTOR_BYTES,
+                    (long)capacity * FACTOR_BYTES);
+            }
+        }
+
+        int[] positions = clusterSizes.clone();
+        for (int i = 0; i < assignments.length; i++) {
+            int clusterId = assignments[i];
+            int pos = positions[clusterId]++;
+            newIds[clusterId][pos] = ids[i];
+            encode(encoding, vectors[i], centroids[clusterId], newCodes[clusterId], pos,
+                newFactors != null ? newFactors[clusterId] : null);
+        }
+
+        return new QuantizedStorage(encoding, dimension, newCodes, newFactors, this.centroids, newIds, newSizes);
+    }
+
+    /**
+     * Storage whose cluster {@code i} shares the codes of cluster {@code sources[i]} of this storage,
+     * or is empty where {@code sources[i] < 0}. BINARY codes of shared clusters stay valid only if
+     * their centroids in {@code centroids} are unchanged.
+     */
+    QuantizedStorage select(int[] sources, float[][] centroids) {
+        int clusterCnt = sources.length;
+        ByteBuffer[] newCodes = new ByteBuffer[clusterCnt];
+        ByteBuffer[] newFactors = clusterFactors == null ? null : new ByteBuffer[clusterCnt];
+        int[][] newIds = new int[clusterCnt][];
+        int[] newSizes = new int[clusterCnt];
+        for (int c = 0; c < clusterCnt; c++) {
+            int source = sources[c];
+            newCodes[c] = source >= 0
+                ? clusterCodes[source]
+                : ByteBuffer.allocateDirect(0).order(VectorStorage.BYTE_ORDER);
+            newIds[c] = source >= 0 ? clusterIds[source] : new int[0];
+            if (newFactors != null) {
+                newFactors[c] = source >= 0
+                    ? clusterFactors[source]
+                    : ByteBuffer.allocateDirect(0).order(VectorStorage.BYTE_ORDER);
+            }
+            newSizes[c] = source >= 0 ? clusterSizes[source] : 0;
+        }
+
+        return new QuantizedStorage(encoding, dimension, newCodes, newFactors,
+            encoding == VectorEncoding.BINARY ? centroids : null, newIds, newSizes);
+    }
+
+    /** Copy of this storage without the positions set in {@code deleted[c]}, see {@link VectorStorage#compact}. */
+    QuantizedStorage compact(long[][] deleted) {
+        int clusterCnt = clusterCodes.length;
+        int vectorBytes = encoding.getBytesPerVector(dimension);
+
+        ByteBuffer[] newCodes = clusterCodes.clone();
+        ByteBuffer[] newFactors = clusterFactors == null ? null : clusterFactors.clone();
+        int[][] newIds = clusterIds.clone();
+        int[] newSizes = clusterSizes.clone();
+        for (int c = 0; c < clusterCnt; c++) {
+            long[] bits = deleted[c];
+            if (bits == null)
+                continue;
+
+            int size = size(c);
+            int liveCnt = size - Tombstones.count(bits);
+            int[] ids = new int[liveCnt];
+
+            int live = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (!Tombstones.contains(bits, pos))
+                    ids[live++] = clusterIds[c][pos];
+            }
+
+            newCodes[c] = VectorStorage.compactCluster(clusterCodes[c], size, bits, liveCnt, vectorBytes);
+            newIds[c] = ids;
+            if (newFactors != null)
+                newFactors[c] = VectorStorage.compactCluster(clusterFactors[c], size, bits, liveCnt, FACTOR_BYTES);
+            newSizes[c] = liveCnt;
+        }
+
+        return new QuantizedStorage(encoding, dimension, newCodes, newFactors, centroids, newIds, newSizes);
+    }
+
+    static byte encodeBinaryByte(float[] vector, float[] center, int byteIdx) {
+        int bits = 0;
+        int from = byteIdx * Byte.SIZE;
+        int to = Math.min(from + Byte.SIZE, vector.length);
+        for (int d = from; d < to; d++) {
+            if (vector[d] > center[d])
+                bits |= 1 << (d - from);
+        }
+        return (byte)bits;
+    }
+
+    static float encodeInt8(float[] vector, ByteBuffer out, int offset) {
+        float maxAbs = 0f;
+        for (float v : vector)
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+
+        if (maxAbs == 0f) {
+            for (int i = 0; i < vector.length; i++)
+                out.put(offset + i, (byte)0);
+            return 0f;
+        }
+
+        float inverseScale = INT8_LEVELS / maxAbs;
+        for (int i = 0; i < vector.length; i++) {
+            int code = Math.round(vector[i] * inverseScale);
+            out.put(offset + i, (byte)Math.max(-INT8_LEVELS, Math.min(INT8_LEVELS, code)));
+        }
+
+        return maxAbs / INT8_LEVELS;
+    }
+
+    static void encodeFloat16(float[] vector, ByteBuffer out, int offset) {
+        for (int i = 0; i < vector.length; i++)
+            out.putShort(offset + i * Short.BYTES, Float16.fromFloat(vector[i]));
+    }
+
+    static float norm(float[] vector) {
+        float sumSq = 0f;
+        for (float v : vector)
+            sumSq += v * v;
+        return (float)Math.sqrt(sumSq);
+    }
+
+    float distance(Metric.Type metricType, Metric.Engine metricEngine, Query qry, int clusterId, int pos) {
+        ByteBuffer codes = clusterCodes[clusterId];
+        int offset = pos * encoding.getBytesPerVector(dimension);
+
+        if (encoding == VectorEncoding.FLOAT16)
+            return metricType.distanceF16(metricEngine, qry.codes, 0, codes, offset, dimension);
+        if (encoding == VectorEncoding.BINARY) {
+            float hamming = metricEngine.getMetric().hammingDistanceB8(qry.clusterBits[clusterId], codes, offset);
+            return metricType == Metric.Type.DOT_PRODUCT ? -hamming : hamming;
+        }
+
+        float codeDot = metricEngine.getMetric().dotProductI8(qry.codes, 0, codes, offset, dimension);
+        ByteBuffer factors = clusterFactors[clusterId];
+        float dot = qry.scale * factors.getFloat(pos * FACTOR_BYTES) * codeDot;
+        float norm = factors.getFloat(pos * FACTOR_BYTES + Float.BYTES);
+
+        switch (metricType) {
+            case L2SQ_DISTANCE:
+                return Math.max(0f, qry.norm * qry.norm + norm * norm - 2 * dot);
+            case DOT_PRODUCT:
+                return dot;
+            case COSINE_DISTANCE:
+                return 1 - dot / (qry.norm * norm);
+            default:
+                throw new IllegalStateException("Unsupported metric type: " + metricType);
+        }
+    }
+
+    VectorEncoding getEncoding() {
+        return encoding;
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int getClusterCount() {
+        return clusterCodes.length;
+    }
+
+    /** Code buffers of all lists, to be written up to their sizes. */
+    ByteBuffer[] codeColumn() {
+        return clusterCodes.clone();
+    }
+
+    /** INT8 scale and norm buffers of all lists, or {@code null} for the other encodings. */
+    ByteBuffer[] factorColumn() {
+        return clusterFactors == null ? null : clusterFactors.clone();
+    }
+
+    int size(int clusterId) {
+        return clusterSizes[clusterId];
+    }
+
+    int id(int clusterId, int pos) {
+        return clusterIds[clusterId][pos];
+    }
+
+    /** Copy of the ids of the cluster's vectors. */
+    int[] ids(int clusterId) {
+        return Arrays.copyOf(clusterIds[clusterId], clusterSizes[clusterId]);
+    }
+
+    /**
+     * Query encoded once into the storage's representation; BINARY queries are encoded per probed
+     * cluster. Instances are reusable scratch: encoding is not thread-safe, but an encoded query
+     * may be read by several threads scanning different clusters.
+     */
+    static final class Query {
+        private ByteBuffer codes = ByteBuffer.allocateDirect(0);
+        private byte[][] clusterBits = new byte[0][];
+        private float scale;
+        private float norm;
+
+        void encode(float[] qry, QuantizedStorage storage, int[] clusters, int clusterCnt) {
+            VectorEncoding encoding = storage.encoding;
+            int bytes = encoding.getBytesPerVector(qry.length);
+
+            switch (encoding) {
+                case FLOAT16:
+                    ensureCodes(bytes);
+                    encodeFloat16(qry, codes, 0);
+                    break;
+                case INT8:
+                    ensureCodes(bytes);
+                    scale = encodeInt8(qry, codes, 0);
+                    norm = norm(qry);
+                    break;
+                case BINARY:
+                    if (clusterBits.length < storage.getClusterCount())
+                        clusterBits = new byte[storage.getClusterCount()][];
+                    for (int s = 0; s < clusterCnt; s++) {
+                        int clusterId = clusters[s];
+                        byte[] bits = clusterBits[clusterId];
+                        if (bits == null || bits.length != bytes)
+                            clusterBits[clusterId] = bits = new byte[bytes];
+                        for (int b = 0; b < bytes; b++)
+                            bits[b] = encodeBinaryByte(qry, storage.centroids[clusterId], b);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported encoding: " + encoding);
+            }
+        }
+
+        private void ensureCodes(int bytes) {
+            if (codes.capacity() < bytes)
+                codes = ByteBuffer.allocateDirect(bytes).order(VectorStorage.BYTE_ORDER);
+        }
+    }
+}
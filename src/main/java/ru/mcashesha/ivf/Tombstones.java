@@ -0,0 +1,33 @@
+package ru.mcashesha.ivf;
+
+import java.util.Arrays;
+
+/**
+ * Per-cluster bitsets of deleted positions. Positions appended after a bitset was created may lie
+ * past its end and read as live. A bitset is never written once it is reachable from a published
+ * snapshot: {@link #with} returns a modified copy.
+ */
+final class Tombstones {
+    private Tombstones() {
+    }
+
+    static boolean contains(long[] bits, int pos) {
+        int word = pos >>> 6;
+        return word < bits.length && (bits[word] & (1L << pos)) != 0;
+    }
+
+    /** Copy of {@code bits}, or a new bitset for {@code size} positions if it is null, with {@code pos} set. */
+    static long[] with(long[] bits, int size, int pos) {
+        int words = (size + 63) >>> 6;
+        long[] result = bits == null ? new long[words] : Arrays.copyOf(bits, Math.max(bits.length, words));
+        result[pos >>> 6] |= 1L << pos;
+        return result;
+    }
+
+    static int count(long[] bits) {
+        int cnt = 0;
+        for (long word : bits)
+            cnt += Long.bitCount(word);
+        return cnt;
+    }
+}
@@ -0,0 +1,139 @@
+package ru.mcashesha.ivf;
+
+/**
+ * Bounded max-heap keeping the {@code capacity} smallest entries. Entries are ordered by distance,
+ * then cluster id, then id, so which of several tied entries are kept does not depend on the order
+ * they were offered in; callers pre-filter with {@code distance <= threshold()} and let
+ * {@link #offer} break the tie.
+ */
+final class TopKHeap {
+    private float[] distances;
+    private int[] ids;
+    private int[] clusterIds;
+    private int capacity;
+    private int size;
+
+    TopKHeap(int capacity) {
+        reset(capacity);
+    }
+
+    void reset(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be > 0");
+
+        if (distances == null || distances.length < capacity) {
+            distances = new float[capacity];
+            ids = new int[capacity];
+            clusterIds = new int[capacity];
+        }
+
+        this.capacity = capacity;
+        this.size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    float threshold() {
+        return size < capacity ? Float.POSITIVE_INFINITY : distances[0];
+    }
+
+    boolean offer(int id, float distance, int clusterId) {
+        if (size < capacity) {
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!before(parent, distance, clusterId, id))
+                    break;
+                move(parent, pos);
+                pos = parent;
+            }
+            set(pos, id, distance, clusterId);
+            return true;
+        }
+
+        if (!after(0, distance, clusterId, id))
+            return false;
+
+        siftDown(id, distance, clusterId, size);
+        return true;
+    }
+
+    void addAll(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            float distance = other.distances[i];
+            if (distance <= threshold())
+                offer(other.ids[i], distance, other.clusterIds[i]);
+        }
+    }
+
+    void sortAscending() {
+        for (int end = size - 1; end > 0; end--) {
+            int id = ids[end];
+            float distance = distances[end];
+            int clusterId = clusterIds[end];
+
+            move(0, end);
+            siftDown(id, distance, clusterId, end);
+        }
+    }
+
+    int id(int idx) {
+        return ids[idx];
+    }
+
+    float distance(int idx) {
+        return distances[idx];
+    }
+
+    int clusterId(int idx) {
+        return clusterIds[idx];
+    }
+
+    private void siftDown(int id, float distance, int clusterId, int heapSize) {
+        int pos = 0;
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && after(right, distances[child], clusterIds[child], ids[child]))
+                child = right;
+            if (!after(child, distance, clusterId, id))
+                break;
+            move(child, pos);
+            pos = child;
+        }
+        set(pos, id, distance, clusterId);
+    }
+
+    /** Whether the entry at {@code pos} orders before {@code (distance, clusterId, id)}. */
+    private boolean before(int pos, float distance, int clusterId, int id) {
+        if (distances[pos] != distance)
+            return distances[pos] < distance;
+        if (clusterIds[pos] != clusterId)
+            return clusterIds[pos] < clusterId;
+        return ids[pos] < id;
+    }
+
+    /** Whether the entry at {@code pos} orders after {@code (distance, clusterId, id)}. */
+    private boolean after(int pos, float distance, int clusterId, int id) {
+        if (distances[pos] != distance)
+            return distances[pos] > distance;
+        if (clusterIds[pos] != clusterId)
+            return clusterIds[pos] > clusterId;
+        return ids[pos] > id;
+    }
+
+    private void move(int from, int to) {
+        distances[to] = distances[from];
+        ids[to] = ids[from];
+        clusterIds[to] = clusterIds[from];
+    }
+
+    private void set(int pos, int id, float distance, int clusterId) {
+        distances[pos] = distance;
+        ids[pos] = id;
+        clusterIds[pos] = clusterId;
+    }
+}
@@ -0,0 +1,22 @@
+package ru.mcashesha.ivf;
+
+public enum VectorEncoding {
+    FLOAT32(Float.SIZE),
+    FLOAT16(Short.SIZE),
+    INT8(Byte.SIZE),
+    BINARY(1);
+
+    private final int bitsPerDimension;
+
+    VectorEncoding(int bitsPerDimension) {
+        this.bitsPerDimension = bitsPerDimension;
+    }
+
+    public int getBitsPerDimension() {
+        return bitsPerDimension;
+    }
+
+    public int getBytesPerVector(int dimension) {
+        return (int)(((long)dimension * bitsPerDimension + Byte.SIZE - 1) / Byte.SIZE);
+    }
+}
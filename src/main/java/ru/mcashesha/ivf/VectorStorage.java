@@ -0,0 +1,421 @@
+package ru.mcashesha.ivf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import ru.mcashesha.metrics.VectorNorms;
+
+/**
+ * Float vectors of the inverted lists, one contiguous little-endian block per list, with the ids
+ * and, for cosine, the inverse norms alongside.
+ *
+ * <p>Each list has a published size and may have spare capacity behind it. {@link #append} writes
+ * new vectors into that spare capacity and returns a storage with larger sizes, so a storage never
+ * sees what a later one appended; a list without room is copied into one with twice the capacity,
+ * which keeps adds amortized constant time. Only the latest storage of an index may be appended to,
+ * and the index serializes its writers.
+ *
+ * <p>Built lists live in direct buffers packed into blocks of up to 1 GiB, so they are not on the
+ * Java heap, but direct memory is still capped by {@code -XX:MaxDirectMemorySize}, which defaults to
+ * the maximum heap size; an index larger than {@code -Xmx} needs that flag raised. Lists of an
+ * opened index, inverse norms included, are mapped from the file and count against neither limit.
+ */
+final class VectorStorage {
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final long MAX_BLOCK_BYTES = 1L << 30;
+    /** Smallest capacity, in vectors, a list grows to on append. */
+    private static final int MIN_CAPACITY = 16;
+
+    private final int dimension;
+    private final ByteBuffer[] clusterVectors;
+    private final int[][] clusterIds;
+    /** Inverse norm of every vector as a little-endian float per position, or {@code null}. */
+    private final ByteBuffer[] clusterInverseNorms;
+    private final int[] clusterSizes;
+
+    private VectorStorage(int dimension,
+        ByteBuffer[] clusterVectors,
+        int[][] clusterIds,
+        ByteBuffer[] clusterInverseNorms,
+        int[] clusterSizes) {
+        if (clusterVectors.length != clusterIds.length)
+            throw new IllegalArgumentException("clusterVectors and clusterIds must have the same length");
+
+        this.dimension = dimension;
+        this.clusterVectors = clusterVectors;
+        this.clusterIds = clusterIds;
+        this.clusterInverseNorms = clusterInverseNorms;
+        this.clusterSizes = clusterSizes;
+    }
+
+    /** {@code inverseNorms} additionally caches every vector's inverse L2 norm for cosine scans. */
+    static VectorStorage build(float[][] vectors,
+        int[] ids,
+        int[] assignments,
+        int clusterCnt,
+        int dimension,
+        boolean inverseNorms) {
+        int[] sizes = new int[clusterCnt];
+        for (int clusterId : assignments) {
+            if (clusterId >= 0 && clusterId < clusterCnt)
+                sizes[clusterId]++;
+        }
+
+        ByteBuffer[] clusterVectors = allocateClusters(clusterBytes(sizes, dimension * Float.BYTES));
+        ByteBuffer[] clusterInverseNorms = inverseNorms ? allocateClusters(clusterBytes(sizes, Float.BYTES)) : null;
+
+        FloatBuffer[] clusterViews = new FloatBuffer[clusterCnt];
+        int[][] clusterIds = new int[clusterCnt][];
+        for (int c = 0; c < clusterCnt; c++) {
+            clusterViews[c] = clusterVectors[c].duplicate().order(BYTE_ORDER).asFloatBuffer();
+            clusterIds[c] = new int[sizes[c]];
+        }
+
+        int[] positions = new int[clusterCnt];
+        for (int i = 0; i < assignments.length; i++) {
+            int clusterId = assignments[i];
+            if (clusterId < 0 || clusterId >= clusterCnt)
+                continue;
+
+            int pos = positions[clusterId]++;
+            clusterIds[clusterId][pos] = ids[i];
+            clusterViews[clusterId].put(pos * dimension, vectors[i]);
+            if (inverseNorms)
+                clusterInverseNorms[clusterId].putFloat(pos * Float.BYTES, VectorNorms.inverseNorm(vectors[i]));
+        }
+
+        return new VectorStorage(dimension, clusterVectors, clusterIds, clusterInverseNorms, sizes);
+    }
+
+    /**
+     * Storage with {@code vectors[i]} appended to cluster {@code assignments[i]}. The vectors go into
+     * the spare capacity of the touched lists, past the sizes this storage reads, and only lists
+     * without room are copied; all other lists are shared with this storage.
+     */
+    VectorStorage append(float[][] vectors, int[] ids, int[] assignments) {
+        int clusterCnt = clusterVectors.length;
+        int vectorBytes = dimension * Float.BYTES;
+        int[] newSizes = clusterSizes.clone();
+        for (int clusterId : assignments)
+            newSizes[clusterId]++;
+
+        ByteBuffer[] newVectors = clusterVectors.clone();
+        FloatBuffer[] views = new FloatBuffer[clusterCnt];
+        int[][] newIds = clusterIds.clone();
+        ByteBuffer[] newInverseNorms = clusterInverseNorms == null ? null : clusterInverseNorms.clone();
+        for (int c = 0; c < clusterCnt; c++) {
+            int size = clusterSizes[c];
+            if (newSizes[c] == size)
+                continue;
+
+            if (newSizes[c] > clusterIds[c].length || clusterVectors[c].isReadOnly()
+                || (newInverseNorms != null && clusterInverseNorms[c].isReadOnly())) {
+                int capacity = grownCapacity(size, newSizes[c], vectorBytes);
+                newVectors[c] = copyOf(clusterVectors[c], (long)size * vectorBytes, (long)capacity * vectorBytes);
+                newIds[c] = Arrays.copyOf(clusterIds[c], capacity);
+                if (newInverseNorms != null) {
+                    newInverseNorms[c] = copyOf(clusterInverseNorms[c], (long)size * Float.BYTES,
+                        (long)capacity * Float.BYTES);
+                }
+            }
+            views[c] = newVectors[c].duplicate().order(BYTE_ORDER).asFloatBuffer();
+        }
+
+        int[] positions = clusterSizes.clone();
+        for (int i = 0; i < assignments.length; i++) {
+            int clusterId = assignments[i];
+            int pos = positions[clusterId]++;
+            newIds[clusterId][pos] = ids[i];
+            views[clusterId].put(pos * dimension, vectors[i]);
+            if (newInverseNorms != null)
+                newInverseNorms[clusterId].putFloat(pos * Float.BYTES, VectorNorms.inverseNorm(vectors[i]));
+        }
+
+        return new VectorStorage(dimension, newVectors, newIds, newInverseNorms, newSizes);
+    }
+
+    /**
+     * Capacity, in records of {@code recordBytes}, a list of {@code size} records grows to when it
+     * must hold {@code required}: at least twice its size, within one buffer.
+     */
+    static int grownCapacity(int size, int required, int recordBytes) {
+        int maxRecords = Integer.MAX_VALUE / Math.max(1, recordBytes);
+        if (required > maxRecords)
+            throw new IllegalStateException("cluster exceeds " + Integer.MAX_VALUE + " bytes");
+
+        long capacity = Math.max(required, Math.max(MIN_CAPACITY, 2L * size));
+        return (int)Math.min(capacity, maxRecords);
+    }
+
+    /**
+     * Copy of this storage without the positions set in {@code deleted[c]}, for every cluster whose
+     * bitset is non-null. The other clusters share their buffers with this storage.
+     */
+    VectorStorage compact(long[][] deleted) {
+        int clusterCnt = clusterVectors.length;
+        int vectorBytes = dimension * Float.BYTES;
+
+        ByteBuffer[] newVectors = clusterVectors.clone();
+        int[][] newIds = clusterIds.clone();
+        ByteBuffer[] newInverseNorms = clusterInverseNorms == null ? null : clusterInverseNorms.clone();
+        int[] newSizes = clusterSizes.clone();
+        for (int c = 0; c < clusterCnt; c++) {
+            long[] bits = deleted[c];
+            if (bits == null)
+                continue;
+
+            int size = size(c);
+            int liveCnt = size - Tombstones.count(bits);
+            int[] ids = new int[liveCnt];
+
+            int live = 0;
+            for (int pos = 0; pos < size; pos++) {
+                if (!Tombstones.contains(bits, pos))
+                    ids[live++] = clusterIds[c][pos];
+            }
+
+            newVectors[c] = compactCluster(clusterVectors[c], size, bits, liveCnt, vectorBytes);
+            newIds[c] = ids;
+            if (newInverseNorms != null)
+                newInverseNorms[c] = compactCluster(clusterInverseNorms[c], size, bits, liveCnt, Float.BYTES);
+            newSizes[c] = liveCnt;
+        }
+
+        return new VectorStorage(dimension, newVectors, newIds, newInverseNorms, newSizes);
+    }
+
+    /** Direct buffer with the {@code liveCnt} records of {@code src} whose positions are not set in {@code bits}. */
+    static ByteBuffer compactCluster(ByteBuffer src, int size, long[] bits, int liveCnt, int recordBytes) {
+        ByteBuffer dst = ByteBuffer.allocateDirect(liveCnt * recordBytes).order(BYTE_ORDER);
+
+        int live = 0;
+        for (int pos = 0; pos < size; pos++) {
+            if (Tombstones.contains(bits, pos))
+                continue;
+
+            dst.put(live * recordBytes, src, pos * recordBytes, recordBytes);
+            live++;
+        }
+
+        return dst;
+    }
+
+    /**
+     * Storage whose cluster {@code i} shares the list of cluster {@code sources[i]} of this storage,
+     * or is empty where {@code sources[i] < 0}.
+     */
+    VectorStorage select(int[] sources) {
+        int clusterCnt = sources.length;
+        ByteBuffer[] newVectors = new ByteBuffer[clusterCnt];
+        int[][] newIds = new int[clusterCnt][];
+        ByteBuffer[] newInverseNorms = clusterInverseNorms == null ? null : new ByteBuffer[clusterCnt];
+        int[] newSizes = new int[clusterCnt];
+        for (int c = 0; c < clusterCnt; c++) {
+            int source = sources[c];
+            newVectors[c] = source >= 0 ? clusterVectors[source] : ByteBuffer.allocateDirect(0).order(BYTE_ORDER);
+            newIds[c] = source >= 0 ? clusterIds[source] : new int[0];
+            if (newInverseNorms != null) {
+                newInverseNorms[c] = source >= 0
+                    ? clusterInverseNorms[source]
+                    : ByteBuffer.allocateDirect(0).order(BYTE_ORDER);
+            }
+            newSizes[c] = source >= 0 ? clusterSizes[source] : 0;
+        }
+
+        return new VectorStorage(dimension, newVectors, newIds, newInverseNorms, newSizes);
+    }
+
+    /** Copies the vectors of a cluster out to the heap. */
+    float[][] vectors(int clusterId, int from, int to) {
+        FloatBuffer view = clusterVectors[clusterId].duplicate().order(BYTE_ORDER).asFloatBuffer();
+        float[][] result = new float[to - from][dimension];
+        for (int pos = from; pos < to; pos++)
+            view.get(pos * dimension, result[pos - from]);
+        return result;
+    }
+
+    /** The vectors back to back in one direct buffer. */
+    static ByteBuffer pack(float[][] vectors) {
+        int dimension = vectors.length == 0 ? 0 : vectors[0].length;
+        long bytes = (long)vectors.length * dimension * Float.BYTES;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalStateException("packed vectors exceed " + Integer.MAX_VALUE + " bytes");
+
+        ByteBuffer block = ByteBuffer.allocateDirect((int)bytes).order(BYTE_ORDER);
+        FloatBuffer view = block.asFloatBuffer();
+        for (int i = 0; i < vectors.length; i++)
+            view.put(i * dimension, vectors[i]);
+        return block;
+    }
+
+    /** Direct buffer of {@code capacity} bytes starting with the first {@code length} bytes of {@code src}. */
+    static ByteBuffer copyOf(ByteBuffer src, long length, long capacity) {
+        if (capacity > Integer.MAX_VALUE)
+            throw new IllegalStateException("cluster exceeds " + Integer.MAX_VALUE + " bytes");
+
+        ByteBuffer dst = ByteBuffer.allocateDirect((int)capacity).order(BYTE_ORDER);
+        dst.put(0, src, 0, (int)length);
+        return dst;
+    }
+
+    /**
+     * Storage over the lists of an opened index, see {@link IVFIndexFormat.Contents}; the buffers
+     * are typically mapped and read-only, so appends copy the lists they touch.
+     */
+    static VectorStorage open(int dimension,
+        ByteBuffer[] clusterVectors,
+        ByteBuffer[] clusterInverseNorms,
+        int[][] clusterIds) {
+        int[] sizes = new int[clusterIds.length];
+        for (int c = 0; c < sizes.length; c++)
+            sizes[c] = clusterIds[c].length;
+
+        return new VectorStorage(dimension, clusterVectors, clusterIds, clusterInverseNorms, sizes);
+    }
+
+    static long[] clusterBytes(int[] sizes, int recordBytes) {
+        long[] clusterBytes = new long[sizes.length];
+        for (int c = 0; c < sizes.length; c++)
+            clusterBytes[c] = (long)sizes[c] * recordBytes;
+        return clusterBytes;
+    }
+
+    static long totalBytes(long[] clusterBytes) {
+        long total = 0;
+        for (long bytes : clusterBytes)
+            total += bytes;
+        return total;
+    }
+
+    static ByteBuffer[] allocateClusters(long[] clusterBytes) {
+        int clusterCnt = clusterBytes.length;
+        ByteBuffer[] result = new ByteBuffer[clusterCnt];
+
+        int first = 0;
+        while (first < clusterCnt) {
+            int last = packBlock(clusterBytes, first);
+            long blockBytes = 0;
+            for (int c = first; c < last; c++)
+                blockBytes += clusterBytes[c];
+
+            ByteBuffer block = ByteBuffer.allocateDirect((int)blockBytes);
+            sliceBlock(block, clusterBytes, first, last, result);
+
+            first = last;
+        }
+
+        return result;
+    }
+
+    /** Read-only lists of {@code clusterBytes} each, stored back to back from {@code position}. */
+    static ByteBuffer[] mapClusters(FileChannel channel, long position, long[] clusterBytes) throws IOException {
+        int clusterCnt = clusterBytes.length;
+        ByteBuffer[] result = new ByteBuffer[clusterCnt];
+
+        int first = 0;
+        while (first < clusterCnt) {
+            int last = packBlock(clusterBytes, first);
+            long blockBytes = 0;
+            for (int c = first; c < last; c++)
+                blockBytes += clusterBytes[c];
+
+            ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position, blockBytes);
+            sliceBlock(block, clusterBytes, first, last, result);
+
+            position += blockBytes;
+            first = last;
+        }
+
+        return result;
+    }
+
+    private static int packBlock(long[] clusterBytes, int first) {
+        if (clusterBytes[first] > Integer.MAX_VALUE)
+            throw new IllegalStateException("cluster " + first + " exceeds " + Integer.MAX_VALUE + " bytes");
+
+        long blockBytes = clusterBytes[first];
+        int last = first + 1;
+        while (last < clusterBytes.length && blockBytes + clusterBytes[last] <= MAX_BLOCK_BYTES) {
+            blockBytes += clusterBytes[last];
+            last++;
+        }
+
+        return last;
+    }
+
+    private static void sliceBlock(ByteBuffer block,
+        long[] clusterBytes,
+        int first,
+        int last,
+        ByteBuffer[] result) {
+        int offset = 0;
+        for (int c = first; c < last; c++) {
+            int len = (int)clusterBytes[c];
+            result[c] = block.slice(offset, len).order(BYTE_ORDER);
+            offset += len;
+        }
+    }
+
+    /** Writes the first {@code sizes[c]} records of every list back to back. */
+    static void writeClusters(FileChannel channel, ByteBuffer[] clusters, int[] sizes, int recordBytes)
+        throws IOException {
+        for (int c = 0; c < clusters.length; c++) {
+            ByteBuffer src = clusters[c].duplicate();
+            src.clear().limit(sizes[c] * recordBytes);
+            while (src.hasRemaining())
+                channel.write(src);
+        }
+    }
+
+    /** Vector buffers of all lists, to be written up to their sizes. */
+    ByteBuffer[] vectorColumn() {
+        return clusterVectors.clone();
+    }
+
+    /** Inverse norm buffers of all lists, or {@code null} if the storage was built without them. */
+    ByteBuffer[] inverseNormColumn() {
+        return clusterInverseNorms == null ? null : clusterInverseNorms.clone();
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int getClusterCount() {
+        return clusterVectors.length;
+    }
+
+    int size(int clusterId) {
+        return clusterSizes[clusterId];
+    }
+
+    /** Vectors of the cluster; only the first {@link #size} of them belong to this storage. */
+    ByteBuffer vectors(int clusterId) {
+        return clusterVectors[clusterId];
+    }
+
+    int id(int clusterId, int pos) {
+        return clusterIds[clusterId][pos];
+    }
+
+    /** Copy of the ids of the cluster's vectors. */
+    int[] ids(int clusterId) {
+        return Arrays.copyOf(clusterIds[clusterId], clusterSizes[clusterId]);
+    }
+
+    /**
+     * Inverse norms of the cluster's vectors as little-endian floats, of which the first
+     * {@link #size} belong to this storage, or {@code null} if the storage was built without them.
+     */
+    ByteBuffer inverseNorms(int clusterId) {
+        return clusterInverseNorms == null ? null : clusterInverseNorms[clusterId];
+    }
+
+    int offset(int pos) {
+        return pos * dimension * Float.BYTES;
+    }
+}
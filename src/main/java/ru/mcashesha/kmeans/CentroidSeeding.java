@@ -0,0 +1,316 @@
+package ru.mcashesha.kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
+
+/**
+ * Initial centroids for {@link LloydKMeans} and {@link MiniBatchKMeans}, see {@link KMeans.Initialization}.
+ *
+ * <p>Every pass over the data runs through {@link ParallelChunks}, and randomness is drawn either
+ * on the calling thread or from per-chunk generators seeded from it, so the centroids depend on
+ * the seed but not on the pool's parallelism.
+ */
+final class CentroidSeeding {
+    /** k-means|| oversampling rounds; Bahmani et al. report no gain beyond about five. */
+    private static final int PARALLEL_ROUNDS = 5;
+    /**
+     * k-means|| expected candidates per round, as a multiple of the cluster count. Every candidate
+     * costs one distance per point, so this trades seeding work against candidate quality.
+     */
+    private static final double OVERSAMPLING_FACTOR = 0.5;
+    private static final int SAMPLE_PER_CLUSTER = 32;
+    private static final int MIN_SAMPLE = 4096;
+    private static final int DISTANCE_BLOCK = 256;
+
+    private final Metric.Type metricType;
+    private final Metric.Engine metricEngine;
+    private final Random random;
+    private final ForkJoinPool pool;
+
+    CentroidSeeding(Metric.Type metricType, Metric.Engine metricEngine, Random random, ForkJoinPool pool) {
+        this.metricType = metricType;
+        this.metricEngine = metricEngine;
+        this.random = random;
+        this.pool = pool;
+    }
+
+    /**
+     * Same as {@link Metric.Type#distanceMatrix}, but with cached inverse norms a cosine matrix costs
+     * one dot-product matrix plus a rescale of every entry.
+     */
+    static void distanceMatrix(Metric.Type metricType,
+        Metric.Engine metricEngine,
+        float[][] a,
+        float[] aInverseNorms,
+        int aOffset,
+        int aCount,
+        float[][] b,
+        float[] bInverseNorms,
+        float[] out) {
+        if (aInverseNorms == null) {
+            metricType.distanceMatrix(metricEngine, a, aOffset, aCount, b, out);
+            return;
+        }
+
+        Metric.Type.DOT_PRODUCT.distanceMatrix(metricEngine, a, aOffset, aCount, b, out);
+        for (int i = 0; i < aCount; i++)
+            VectorNorms.cosineDistances(out, i * b.length, b.length, aInverseNorms[aOffset + i], bInverseNorms, 0);
+    }
+
+    float[][] seed(KMeans.Initialization initialization, float[][] data, float[] dataInverseNorms, int clusterCnt) {
+        switch (initialization) {
+            case K_MEANS_PLUS_PLUS:
+                return copyRows(data, kMeansPlusPlus(data, dataInverseNorms, null, clusterCnt));
+            case SAMPLED_K_MEANS_PLUS_PLUS:
+                return sampledKMeansPlusPlus(data, dataInverseNorms, clusterCnt);
+            case K_MEANS_PARALLEL:
+                return kMeansParallel(data, dataInverseNorms, clusterCnt);
+            default:
+                throw new IllegalStateException("Unsupported initialization: " + initialization);
+        }
+    }
+
+    /**
+     * k-means++ over {@code points}: each next centroid is drawn with probability proportional to its
+     * distance to the nearest centroid chosen so far, times its weight if {@code weights} is given.
+     *
+     * @return indices of the chosen points.
+     */
+    private int[] kMeansPlusPlus(float[][] points, float[] pointInverseNorms, float[] weights, int clusterCnt) {
+        int pointCnt = points.length;
+        int[] chosen = new int[clusterCnt];
+
+        chosen[0] = random.nextInt(pointCnt);
+
+        float[] minDistances = new float[pointCnt];
+        Arrays.fill(minDistances, Float.POSITIVE_INFINITY);
+
+        updateMinDistances(points, pointInverseNorms, new int[] {chosen[0]}, minDistances);
+
+        for (int c = 1; c < clusterCnt; c++) {
+            float totalWeight = 0f;
+
+            for (int i = 0; i < pointCnt; i++)
+                totalWeight += weight(minDistances, weights, i);
+
+            int chosenIdx;
+
+            if (totalWeight == 0f)
+                chosenIdx = random.nextInt(pointCnt);
+            else {
+                float threshold = random.nextFloat() * totalWeight;
+                float cumulative = 0f;
+                chosenIdx = pointCnt - 1;
+
+                for (int i = 0; i < pointCnt; i++) {
+                    cumulative += weight(minDistances, weights, i);
+                    if (cumulative >= threshold) {
+                        chosenIdx = i;
+                        break;
+                    }
+                }
+            }
+
+            chosen[c] = chosenIdx;
+
+            updateMinDistances(points, pointInverseNorms, new int[] {chosenIdx}, minDistances);
+        }
+
+        return chosen;
+    }
+
+    private static float weight(float[] minDistances, float[] weights, int i) {
+        return weights == null ? minDistances[i] : minDistances[i] * weights[i];
+    }
+
+    /** k-means++ over a uniform random sample of {@code SAMPLE_PER_CLUSTER} points per cluster. */
+    private float[][] sampledKMeansPlusPlus(float[][] data, float[] dataInverseNorms, int clusterCnt) {
+        int sampleCnt = data.length;
+        int sampleSize = (int)Math.min(sampleCnt, Math.max((long)clusterCnt * SAMPLE_PER_CLUSTER, MIN_SAMPLE));
+        if (sampleSize >= sampleCnt)
+            return copyRows(data, kMeansPlusPlus(data, dataInverseNorms, null, clusterCnt));
+
+        int[] indices = new int[sampleCnt];
+        for (int i = 0; i < sampleCnt; i++)
+            indices[i] = i;
+
+        float[][] sample = new float[sampleSize][];
+        float[] sampleInverseNorms = dataInverseNorms != null ? new float[sampleSize] : null;
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(sampleCnt - i);
+            int idx = indices[j];
+            indices[j] = indices[i];
+            indices[i] = idx;
+
+            sample[i] = data[idx];
+            if (sampleInverseNorms != null)
+                sampleInverseNorms[i] = dataInverseNorms[idx];
+        }
+
+        return copyRows(sample, kMeansPlusPlus(sample, sampleInverseNorms, null, clusterCnt));
+    }
+
+    /**
+     * k-means|| (Bahmani et al., "Scalable K-Means++"): starting from one random point, every round
+     * keeps each point independently with probability {@code l * d(x) / cost}, where {@code l} is
+     * {@code OVERSAMPLING_FACTOR * clusterCnt}. The candidates are then weighted by how many points
+     * they are the nearest candidate for and reduced to {@code clusterCnt} centroids with weighted
+     * k-means++. That is {@code PARALLEL_ROUNDS + 2} parallel passes over the data instead of
+     * {@code clusterCnt} passes with a sequential scan each, at the price of about
+     * {@code PARALLEL_ROUNDS * OVERSAMPLING_FACTOR} times more distance evaluations.
+     */
+    private float[][] kMeansParallel(float[][] data, float[] dataInverseNorms, int clusterCnt) {
+        int sampleCnt = data.length;
+        double oversampling = OVERSAMPLING_FACTOR * clusterCnt;
+
+        int[] candidates = {random.nextInt(sampleCnt)};
+
+        float[] minDistances = new float[sampleCnt];
+        Arrays.fill(minDistances, Float.POSITIVE_INFINITY);
+        updateMinDistances(data, dataInverseNorms, candidates, minDistances);
+
+        for (int round = 0; round < PARALLEL_ROUNDS; round++) {
+            double cost = 0;
+            for (float d : minDistances)
+                cost += d;
+            if (!(cost > 0))
+                break;
+
+            long roundSeed = random.nextLong();
+            double locCost = cost;
+            int[] picked = ParallelChunks.forEachChunk(sampleCnt, pool, (from, to) -> {
+                Random chunkRandom = new Random(roundSeed + from);
+                int[] chunkPicked = new int[16];
+                int pickedCnt = 0;
+                for (int i = from; i < to; i++) {
+                    if (chunkRandom.nextDouble() * locCost < oversampling * minDistances[i]) {
+                        if (pickedCnt == chunkPicked.length)
+                            chunkPicked = Arrays.copyOf(chunkPicked, pickedCnt * 2);
+                        chunkPicked[pickedCnt++] = i;
+                    }
+                }
+                return Arrays.copyOf(chunkPicked, pickedCnt);
+            }, CentroidSeeding::concat);
+
+            if (picked.length == 0)
+                continue;
+
+            candidates = concat(candidates, picked);
+            updateMinDistances(data, dataInverseNorms, picked, minDistances);
+        }
+
+        if (candidates.length <= clusterCnt)
+            return copyRows(data, kMeansPlusPlus(data, dataInverseNorms, null, clusterCnt));
+
+        float[][] candidateRows = new float[candidates.length][];
+        for (int c = 0; c < candidates.length; c++)
+            candidateRows[c] = data[candidates[c]];
+
+        float[] candidateInverseNorms = null;
+        if (dataInverseNorms != null) {
+            candidateInverseNorms = new float[candidates.length];
+            for (int c = 0; c < candidates.length; c++)
+                candidateInverseNorms[c] = dataInverseNorms[candidates[c]];
+        }
+
+        float[] weights = candidateWeights(data, dataInverseNorms, candidateRows, candidateInverseNorms);
+
+        int[] chosen = kMeansPlusPlus(candidateRows, candidateInverseNorms, weights, clusterCnt);
+        return copyRows(candidateRows, chosen);
+    }
+
+    /** Number of points of {@code data} whose nearest candidate is each candidate. */
+    private float[] candidateWeights(float[][] data,
+        float[] dataInverseNorms,
+        float[][] candidates,
+        float[] candidateInverseNorms) {
+        int candidateCnt = candidates.length;
+
+        int[] counts = ParallelChunks.forEachChunk(data.length, pool, (from, to) -> {
+            int[] chunkCounts = new int[candidateCnt];
+            float[] distances = new float[Math.min(DISTANCE_BLOCK, to - from) * candidateCnt];
+
+            for (int blockStart = from; blockStart < to; blockStart += DISTANCE_BLOCK) {
+                int blockSize = Math.min(DISTANCE_BLOCK, to - blockStart);
+                distanceMatrix(metricType, metricEngine, data, dataInverseNorms, blockStart, blockSize, candidates,
+                    candidateInverseNorms, distances);
+
+                for (int b = 0; b < blockSize; b++) {
+                    int nearest = 0;
+                    float nearestDistance = Float.POSITIVE_INFINITY;
+                    for (int c = 0; c < candidateCnt; c++) {
+                        float distance = distances[b * candidateCnt + c];
+                        if (distance < nearestDistance) {
+                            nearestDistance = distance;
+                            nearest = c;
+                        }
+                    }
+                    chunkCounts[nearest]++;
+                }
+            }
+
+            return chunkCounts;
+        }, (left, right) -> {
+            for (int c = 0; c < candidateCnt; c++)
+                left[c] += right[c];
+            return left;
+        });
+
+        float[] weights = new float[candidateCnt];
+        for (int c = 0; c < candidateCnt; c++)
+            weights[c] = counts[c];
+        return weights;
+    }
+
+    /** Lowers every {@code minDistances[i]} to the distance from point {@code i} to the nearest of {@code centers}. */
+    private void updateMinDistances(float[][] points, float[] pointInverseNorms, int[] centers, float[] minDistances) {
+        int centerCnt = centers.length;
+        float[][] centerRows = new float[centerCnt][];
+        float[] centerInverseNorms = new float[centerCnt];
+        for (int c = 0; c < centerCnt; c++) {
+            centerRows[c] = points[centers[c]];
+            if (pointInverseNorms != null)
+                centerInverseNorms[c] = pointInverseNorms[centers[c]];
+        }
+
+        ParallelChunks.forEachChunk(points.length, pool, (from, to) -> {
+            int blockRows = Math.max(1, Math.min(to - from, DISTANCE_BLOCK * DISTANCE_BLOCK / centerCnt));
+            float[] distances = new float[blockRows * centerCnt];
+
+            for (int blockStart = from; blockStart < to; blockStart += blockRows) {
+                int blockSize = Math.min(blockRows, to - blockStart);
+                distanceMatrix(metricType, metricEngine, points, pointInverseNorms, blockStart, blockSize, centerRows,
+                    centerInverseNorms, distances);
+
+                for (int b = 0; b < blockSize; b++) {
+                    int i = blockStart + b;
+                    float min = minDistances[i];
+                    for (int c = 0; c < centerCnt; c++) {
+                        float distance = distances[b * centerCnt + c];
+                        if (distance < min)
+                            min = distance;
+                    }
+                    minDistances[i] = min;
+                }
+            }
+
+            return null;
+        });
+    }
+
+    private static float[][] copyRows(float[][] rows, int[] indices) {
+        float[][] result = new float[indices.length][];
+        for (int i = 0; i < indices.length; i++)
+            result[i] = rows[indices[i]].clone();
+        return result;
+    }
+
+    private static int[] concat(int[] left, int[] right) {
+        int[] result = Arrays.copyOf(left, left.length + right.length);
+        System.arraycopy(right, 0, result, left.length, right.length);
+        return result;
+    }
+}
@@ -0,0 +1,298 @@
+package ru.mcashesha.kmeans;
+
+import java.util.concurrent.ForkJoinPool;
+import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
+
+/**
+ * Cluster size cap for {@link LloydKMeans} and {@link MiniBatchKMeans}, see
+ * {@link KMeans.Builder#withMaxClusterSizeRatio}.
+ *
+ * <p>{@link #enforce} is a greedy reassignment pass: every point of an overfull cluster is priced at
+ * the distance it would add by moving to its nearest cluster with room, and the cheapest move is made
+ * until no cluster is over the cap. The distances of those points to all centroids are computed once;
+ * each point keeps its {@value #FALLBACKS} nearest clusters with room in order, and a min-heap of
+ * their current cheapest moves yields the next one. A point whose next target filled up moves on to
+ * its next fallback, and only a point that runs out of fallbacks is priced against all centroids
+ * again. Ties are broken by point index and the loss is summed in move order, so the result does not
+ * depend on the pool's parallelism.
+ */
+final class ClusterCapacity {
+    private static final int DISTANCE_BLOCK = 256;
+    /** Nearest clusters with room kept per point to move to. */
+    private static final int FALLBACKS = 16;
+
+    private final Metric.Type metricType;
+    private final Metric.Engine metricEngine;
+    private final ForkJoinPool pool;
+
+    ClusterCapacity(Metric.Type metricType, Metric.Engine metricEngine, ForkJoinPool pool) {
+        this.metricType = metricType;
+        this.metricEngine = metricEngine;
+        this.pool = pool;
+    }
+
+    /**
+     * Largest cluster size allowed by {@code maxSizeRatio} times the mean size, never below the mean
+     * rounded up; {@link Integer#MAX_VALUE} when the ratio is infinite.
+     */
+    static int capacity(float maxSizeRatio, int sampleCnt, int clusterCnt) {
+        if (maxSizeRatio == Float.POSITIVE_INFINITY)
+            return Integer.MAX_VALUE;
+
+        int meanCeil = (sampleCnt + clusterCnt - 1) / clusterCnt;
+        double capacity = Math.ceil((double)maxSizeRatio * sampleCnt / clusterCnt);
+        return (int)Math.max(meanCeil, Math.min(capacity, sampleCnt));
+    }
+
+    static int[] sizes(int[] labels, int clusterCnt) {
+        int[] sizes = new int[clusterCnt];
+        for (int label : labels)
+            sizes[label]++;
+        return sizes;
+    }
+
+    /**
+     * Moves points out of clusters larger than {@code capacity}, updating {@code labels} and, if it
+     * is non-null, {@code pointErrors}. Requires {@code capacity * centroids.length >= labels.length}.
+     *
+     * @return Distance added to the loss by the moves.
+     */
+    float enforce(float[][] data,
+        float[] dataInverseNorms,
+        float[][] centroids,
+        int[] labels,
+        float[] pointErrors,
+        int capacity) {
+        int clusterCnt = centroids.length;
+        int[] sizes = sizes(labels, clusterCnt);
+
+        int candidateCnt = 0;
+        for (int label : labels) {
+            if (sizes[label] > capacity)
+                candidateCnt++;
+        }
+        if (candidateCnt == 0)
+            return 0f;
+
+        int[] candidates = new int[candidateCnt];
+        for (int i = 0, k = 0; i < labels.length; i++) {
+            if (sizes[labels[i]] > capacity)
+                candidates[k++] = i;
+        }
+
+        // Clusters only close: sources shrink down to the cap and targets fill up to it.
+        boolean[] open = new boolean[clusterCnt];
+        for (int c = 0; c < clusterCnt; c++)
+            open[c] = sizes[c] < capacity;
+
+        float[] centroidInverseNorms = dataInverseNorms != null ? VectorNorms.inverseNorms(centroids) : null;
+        Fallbacks fallbacks = new Fallbacks(candidateCnt);
+        ParallelChunks.forEachChunk(candidateCnt, pool, (from, to) -> {
+            price(data, dataInverseNorms, centroids, centroidInverseNorms, labels, open, candidates, fallbacks,
+                from, to);
+            return null;
+        });
+
+        LongMinHeap moves = new LongMinHeap(candidateCnt);
+        for (int k = 0; k < candidateCnt; k++)
+            moves.add(fallbacks.key(k));
+
+        float addedLoss = 0f;
+        while (!moves.isEmpty()) {
+            int k = (int)moves.poll();
+            int i = candidates[k];
+            int source = labels[i];
+            if (sizes[source] <= capacity)
+                continue;
+
+            int target = fallbacks.target(k);
+            if (sizes[target] >= capacity) {
+                if (!fallbacks.advance(k, sizes, capacity)) {
+                    for (int c = 0; c < clusterCnt; c++)
+                        open[c] = sizes[c] < capacity;
+                    price(data, dataInverseNorms, centroids, centroidInverseNorms, labels, open, candidates,
+                        fallbacks, k, k + 1);
+                }
+                moves.add(fallbacks.key(k));
+                continue;
+            }
+
+            labels[i] = target;
+            sizes[source]--;
+            sizes[target]++;
+
+            addedLoss += fallbacks.cost(k);
+            if (pointErrors != null)
+                pointErrors[i] = fallbacks.targetDistance(k);
+        }
+
+        return addedLoss;
+    }
+
+    /** Fills the fallbacks of candidates {@code [from, to)} with their nearest open clusters. */
+    private void price(float[][] data,
+        float[] dataInverseNorms,
+        float[][] centroids,
+        float[] centroidInverseNorms,
+        int[] labels,
+        boolean[] open,
+        int[] candidates,
+        Fallbacks fallbacks,
+        int from,
+        int to) {
+        int clusterCnt = centroids.length;
+        int blockCap = Math.min(DISTANCE_BLOCK, to - from);
+
+        float[][] block = new float[blockCap][];
+        float[] blockInverseNorms = dataInverseNorms != null ? new float[blockCap] : null;
+        float[] blockDistances = new float[blockCap * clusterCnt];
+
+        for (int blockStart = from; blockStart < to; blockStart += DISTANCE_BLOCK) {
+            int blockSize = Math.min(DISTANCE_BLOCK, to - blockStart);
+
+            for (int b = 0; b < blockSize; b++) {
+                int i = candidates[blockStart + b];
+                block[b] = data[i];
+                if (blockInverseNorms != null)
+                    blockInverseNorms[b] = dataInverseNorms[i];
+            }
+
+            CentroidSeeding.distanceMatrix(metricType, metricEngine, block, blockInverseNorms, 0, blockSize,
+                centroids, centroidInverseNorms, blockDistances);
+
+            for (int b = 0; b < blockSize; b++) {
+                int k = blockStart + b;
+                int rowOffset = b * clusterCnt;
+                fallbacks.fill(k, blockDistances, rowOffset, clusterCnt, open,
+                    blockDistances[rowOffset + labels[candidates[k]]]);
+            }
+        }
+    }
+
+    /** Bits of {@code value} whose signed order is the float order. */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /**
+     * Up to {@value #FALLBACKS} nearest open clusters of every candidate, closest first, and a cursor
+     * at the one it would move to next.
+     */
+    private static final class Fallbacks {
+        final int[] targets;
+        final float[] targetDistances;
+        final int[] counts;
+        final int[] cursors;
+        final float[] sourceDistances;
+
+        Fallbacks(int candidateCnt) {
+            this.targets = new int[candidateCnt * FALLBACKS];
+            this.targetDistances = new float[candidateCnt * FALLBACKS];
+            this.counts = new int[candidateCnt];
+            this.cursors = new int[candidateCnt];
+            this.sourceDistances = new float[candidateCnt];
+        }
+
+        /** Keeps the nearest open clusters of distance row {@code [rowOffset, rowOffset + clusterCnt)}. */
+        void fill(int k, float[] distances, int rowOffset, int clusterCnt, boolean[] open, float sourceDistance) {
+            int base = k * FALLBACKS;
+            int cnt = 0;
+            for (int c = 0; c < clusterCnt; c++) {
+                if (!open[c])
+                    continue;
+
+                float distance = distances[rowOffset + c];
+                if (cnt == FALLBACKS && !(distance < targetDistances[base + cnt - 1]))
+                    continue;
+
+                int pos = cnt < FALLBACKS ? cnt++ : cnt - 1;
+                while (pos > 0 && distance < targetDistances[base + pos - 1]) {
+                    targets[base + pos] = targets[base + pos - 1];
+                    targetDistances[base + pos] = targetDistances[base + pos - 1];
+                    pos--;
+                }
+                targets[base + pos] = c;
+                targetDistances[base + pos] = distance;
+            }
+
+            counts[k] = cnt;
+            cursors[k] = 0;
+            sourceDistances[k] = sourceDistance;
+        }
+
+        /** Moves the cursor to the next fallback with room; {@code false} once all are full. */
+        boolean advance(int k, int[] sizes, int capacity) {
+            int base = k * FALLBACKS;
+            int cursor = cursors[k] + 1;
+            while (cursor < counts[k] && sizes[targets[base + cursor]] >= capacity)
+                cursor++;
+            cursors[k] = cursor;
+            return cursor < counts[k];
+        }
+
+        int target(int k) {
+            return targets[k * FALLBACKS + cursors[k]];
+        }
+
+        float targetDistance(int k) {
+            return targetDistances[k * FALLBACKS + cursors[k]];
+        }
+
+        float cost(int k) {
+            return targetDistance(k) - sourceDistances[k];
+        }
+
+        /** Heap key of the candidate's current move: its cost's sortable bits above its index. */
+        long key(int k) {
+            return ((long)sortableBits(cost(k)) << 32) | k;
+        }
+    }
+
+    /** Binary min-heap of {@code long} keys. */
+    private static final class LongMinHeap {
+        private final long[] keys;
+        private int size;
+
+        LongMinHeap(int capacity) {
+            this.keys = new long[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(long key) {
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (keys[parent] <= key)
+                    break;
+                keys[pos] = keys[parent];
+                pos = parent;
+            }
+            keys[pos] = key;
+        }
+
+        long poll() {
+            long top = keys[0];
+            long last = keys[--size];
+
+            int pos = 0;
+            int half = size >>> 1;
+            while (pos < half) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    child++;
+                if (last <= keys[child])
+                    break;
+                keys[pos] = keys[child];
+                pos = child;
+            }
+            keys[pos] = last;
+
+            return top;
+        }
+    }
+}
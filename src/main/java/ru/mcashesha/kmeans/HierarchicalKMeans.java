@@ -2,9 +2,19 @@ package ru.mcashesha.kmeans;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import ru.mcashesha.metrics.Metric;
 
-class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
+/**
+ * Top-down k-means tree: every node splits its points with a local {@link LloydKMeans} of
+ * {@code branchFactor} clusters until {@code maxDepth} or {@code minClusterSize} stops it. With
+ * {@code parallelism > 1} sibling subtrees of at least {@value #FORK_THRESHOLD} points are built as
+ * fork/join tasks; the tree is the same for a given seed at every parallelism.
+ */
+public class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
+    /** Smallest subtree, in points, that is forked rather than built on the current thread. */
+    private static final int FORK_THRESHOLD = 4096;
 
     private final int branchFactor;
     private final int maxDepth;
@@ -14,6 +24,7 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
     private final Metric.Type metricType;
     private final Metric.Engine metricEngine;
     private final Random random;
+    private final int parallelism;
 
     public HierarchicalKMeans(int branchFactor,
         int maxDepth,
@@ -23,6 +34,19 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         Random random,
         Metric.Type metricType,
         Metric.Engine metricEngine) {
+        this(branchFactor, maxDepth, minClusterSize, maxIterationsPerLevel, tolerance, random, metricType,
+            metricEngine, 1);
+    }
+
+    public HierarchicalKMeans(int branchFactor,
+        int maxDepth,
+        int minClusterSize,
+        int maxIterationsPerLevel,
+        float tolerance,
+        Random random,
+        Metric.Type metricType,
+        Metric.Engine metricEngine,
+        int parallelism) {
 
         if (branchFactor <= 1)
             throw new IllegalArgumentException("branchFactor must be >= 2");
@@ -38,6 +62,8 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
             throw new IllegalArgumentException("metricType and metricEngine must be non-null");
         if (random == null)
             throw new IllegalArgumentException("random must be non-null");
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be > 0");
 
         this.branchFactor = branchFactor;
         this.maxDepth = maxDepth;
@@ -47,6 +73,7 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         this.random = random;
         this.metricType = metricType;
         this.metricEngine = metricEngine;
+        this.parallelism = parallelism;
     }
 
     @Override public Metric.Type getMetricType() {
@@ -64,11 +91,21 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         int sampleCnt = data.length;
         int dimension = validateAndGetDimension(data);
 
-        int[] allIndices = new int[sampleCnt];
-        for (int i = 0; i < sampleCnt; i++)
-            allIndices[i] = i;
+        Workspace workspace = new Workspace(data, dimension);
+        NodeTask rootTask = new NodeTask(workspace, 0, sampleCnt, 0, random.nextLong());
 
-        Node root = buildNode(data, allIndices, 0, dimension);
+        Node root;
+        if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                root = pool.invoke(rootTask);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        else
+            root = rootTask.compute();
 
         int leafCnt = countLeaves(root);
 
@@ -151,94 +188,6 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         return dimension;
     }
 
-    private Node buildNode(float[][] data,
-        int[] indices,
-        int level,
-        int dimension) {
-        int sampleCnt = indices.length;
-
-        float[] centroid = computeCentroid(data, indices, dimension);
-
-        if (level >= maxDepth - 1 || sampleCnt < minClusterSize)
-            return new Node(level, centroid, null, indices);
-
-        int locClusterCnt = Math.min(branchFactor, sampleCnt);
-        if (locClusterCnt < 2)
-            return new Node(level, centroid, null, indices);
-
-        float[][] subset = new float[sampleCnt][];
-        for (int i = 0; i < sampleCnt; i++)
-            subset[i] = data[indices[i]];
-
-        LloydKMeans kmeans = new LloydKMeans(
-            locClusterCnt,
-            metricType,
-            metricEngine,
-            maxIterationsPerLevel,
-            tolerance,
-            random
-        );
-
-        LloydKMeans.Result kmResult = kmeans.fit(subset);
-        int[] labels = kmResult.getClusterAssignments();
-
-        int[] clusterSizes = new int[locClusterCnt];
-        for (int label : labels) {
-            if (label < 0 || label >= locClusterCnt)
-                throw new IllegalStateException("KMeans produced invalid label: " + label);
-            clusterSizes[label]++;
-        }
-
-        int nonEmptyClusterCnt = 0;
-        for (int c = 0; c < locClusterCnt; c++) {
-            if (clusterSizes[c] > 0)
-                nonEmptyClusterCnt++;
-        }
-
-        if (nonEmptyClusterCnt <= 1)
-            return new Node(level, centroid, null, indices);
-
-        int[] clusterIdToChildIdx = new int[locClusterCnt];
-        Arrays.fill(clusterIdToChildIdx, -1);
-
-        int childIdx = 0;
-        for (int c = 0; c < locClusterCnt; c++) {
-            if (clusterSizes[c] > 0) {
-                clusterIdToChildIdx[c] = childIdx;
-                childIdx++;
-            }
-        }
-
-        int[][] childIndices = new int[nonEmptyClusterCnt][];
-        int[] offsets = new int[nonEmptyClusterCnt];
-        for (int i = 0; i < nonEmptyClusterCnt; i++)
-            childIndices[i] = new int[0];
-
-        int[] childSizes = new int[nonEmptyClusterCnt];
-        for (int c = 0; c < locClusterCnt; c++) {
-            int mappedChildIdx = clusterIdToChildIdx[c];
-            if (mappedChildIdx >= 0)
-                childSizes[mappedChildIdx] = clusterSizes[c];
-        }
-
-        for (int i = 0; i < nonEmptyClusterCnt; i++)
-            childIndices[i] = new int[childSizes[i]];
-
-        Arrays.fill(offsets, 0);
-        for (int i = 0; i < sampleCnt; i++) {
-            int originalCluster = labels[i];
-            int mappedChild = clusterIdToChildIdx[originalCluster];
-            int pos = offsets[mappedChild]++;
-            childIndices[mappedChild][pos] = indices[i];
-        }
-
-        Node[] children = new Node[nonEmptyClusterCnt];
-        for (int i = 0; i < nonEmptyClusterCnt; i++)
-            children[i] = buildNode(data, childIndices[i], level + 1, dimension);
-
-        return new Node(level, centroid, children, null);
-    }
-
     private float computeLoss(float[][] data,
         int[] leafAssignments,
         float[][] leafCentroids) {
@@ -256,16 +205,17 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         return loss;
     }
 
-    private float[] computeCentroid(float[][] data,
-        int[] indices,
+    private static float[] computeCentroid(float[][] rows,
+        int from,
+        int to,
         int dimension) {
         float[] centroid = new float[dimension];
-        int cnt = indices.length;
+        int cnt = to - from;
         if (cnt == 0)
             return centroid;
 
-        for (int idx : indices) {
-            float[] point = data[idx];
+        for (int i = from; i < to; i++) {
+            float[] point = rows[i];
             for (int d = 0; d < dimension; d++)
                 centroid[d] += point[d];
         }
@@ -277,6 +227,14 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         return centroid;
     }
 
+    /** Seed of the {@code child}-th child of a node seeded with {@code seed} (SplitMix64 finalizer). */
+    private static long childSeed(long seed, int child) {
+        long z = seed + (child + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     private int countLeaves(Node node) {
         if (node == null)
             return 0;
@@ -334,6 +292,146 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         return sizes;
     }
 
+    /**
+     * Points of the tree being built. Every node owns a contiguous range of {@code rows} (the input
+     * vectors) and {@code order} (their input indices); a node partitions its range by child in place,
+     * through the same range of the scratch arrays, so sibling subtrees never touch each other's data.
+     */
+    private static final class Workspace {
+        final float[][] rows;
+        final int[] order;
+        final float[][] rowsScratch;
+        final int[] orderScratch;
+        final int dimension;
+
+        Workspace(float[][] data, int dimension) {
+            int sampleCnt = data.length;
+
+            this.rows = data.clone();
+            this.order = new int[sampleCnt];
+            for (int i = 0; i < sampleCnt; i++)
+                order[i] = i;
+            this.rowsScratch = new float[sampleCnt][];
+            this.orderScratch = new int[sampleCnt];
+            this.dimension = dimension;
+        }
+    }
+
+    /**
+     * Builds the subtree over {@code [from, to)} of the workspace. Its local k-means is seeded from
+     * {@code seed} alone, and children's seeds derive from it, so the tree does not depend on which
+     * subtrees run in parallel or in what order.
+     */
+    private final class NodeTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final Workspace ws;
+        private final int from;
+        private final int to;
+        private final int level;
+        private final long seed;
+
+        NodeTask(Workspace ws, int from, int to, int level, long seed) {
+            this.ws = ws;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+            this.seed = seed;
+        }
+
+        @Override protected Node compute() {
+            int sampleCnt = to - from;
+
+            float[] centroid = computeCentroid(ws.rows, from, to, ws.dimension);
+
+            int locClusterCnt = Math.min(branchFactor, sampleCnt);
+            if (level >= maxDepth - 1 || sampleCnt < minClusterSize || locClusterCnt < 2)
+                return leaf(centroid);
+
+            // LloydKMeans indexes its input from zero; only the root's range is the whole row array.
+            float[][] subset = sampleCnt == ws.rows.length ? ws.rows : Arrays.copyOfRange(ws.rows, from, to);
+
+            // The root runs alone, so its k-means gets the threads; below it the subtrees share them.
+            LloydKMeans kmeans = new LloydKMeans(
+                locClusterCnt,
+                metricType,
+                metricEngine,
+                maxIterationsPerLevel,
+                tolerance,
+                Assignment.EXHAUSTIVE,
+                Initialization.K_MEANS_PLUS_PLUS,
+                level == 0 ? parallelism : 1,
+                new Random(seed)
+            );
+
+            int[] labels = kmeans.fit(subset).getClusterAssignments();
+
+            int[] clusterSizes = new int[locClusterCnt];
+            for (int label : labels) {
+                if (label < 0 || label >= locClusterCnt)
+                    throw new IllegalStateException("KMeans produced invalid label: " + label);
+                clusterSizes[label]++;
+            }
+
+            int nonEmptyClusterCnt = 0;
+            for (int c = 0; c < locClusterCnt; c++) {
+                if (clusterSizes[c] > 0)
+                    nonEmptyClusterCnt++;
+            }
+
+            if (nonEmptyClusterCnt <= 1)
+                return leaf(centroid);
+
+            int[] offsets = new int[locClusterCnt];
+            NodeTask[] childTasks = new NodeTask[nonEmptyClusterCnt];
+
+            int childFrom = from;
+            int childIdx = 0;
+            for (int c = 0; c < locClusterCnt; c++) {
+                if (clusterSizes[c] == 0)
+                    continue;
+
+                offsets[c] = childFrom;
+                childTasks[childIdx] = new NodeTask(ws, childFrom, childFrom + clusterSizes[c], level + 1,
+                    childSeed(seed, childIdx));
+                childFrom += clusterSizes[c];
+                childIdx++;
+            }
+
+            for (int i = 0; i < sampleCnt; i++) {
+                int pos = offsets[labels[i]]++;
+                ws.rowsScratch[pos] = ws.rows[from + i];
+                ws.orderScratch[pos] = ws.order[from + i];
+            }
+
+            System.arraycopy(ws.rowsScratch, from, ws.rows, from, sampleCnt);
+            System.arraycopy(ws.orderScratch, from, ws.order, from, sampleCnt);
+
+            boolean forking = inForkJoinPool();
+            for (NodeTask task : childTasks) {
+                if (forking && task.to - task.from >= FORK_THRESHOLD)
+                    task.fork();
+            }
+
+            Node[] children = new Node[nonEmptyClusterCnt];
+            for (int i = 0; i < nonEmptyClusterCnt; i++) {
+                NodeTask task = childTasks[i];
+                if (!forking || task.to - task.from < FORK_THRESHOLD)
+                    children[i] = task.compute();
+            }
+            for (int i = 0; i < nonEmptyClusterCnt; i++) {
+                if (children[i] == null)
+                    children[i] = childTasks[i].join();
+            }
+
+            return new Node(level, centroid, children, null);
+        }
+
+        private Node leaf(float[] centroid) {
+            return new Node(level, centroid, null, Arrays.copyOfRange(ws.order, from, to));
+        }
+    }
+
     private static final class IntWrapper {
         int val;
     }
@@ -380,7 +478,7 @@ class HierarchicalKMeans implements KMeans<HierarchicalKMeans.Result> {
         }
     }
 
-    static class Result implements ClusteringResult {
+    public static final class Result implements ClusteringResult {
         private final Node root;
         private final int[] leafAssignments;
         private final float[][] leafCentroids;
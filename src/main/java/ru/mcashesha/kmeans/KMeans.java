@@ -15,6 +15,14 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
 
     int[] predict(float[][] data, R model);
 
+    /**
+     * Moves points of {@code labels}, as returned by {@link #predict} for {@code data}, out of clusters
+     * larger than the {@link Builder#withMaxClusterSizeRatio} cap scaled to {@code data.length}, the same
+     * way {@code fit} caps its own assignments. Does nothing when there is no cap.
+     */
+    default void capClusterSizes(float[][] data, R model, int[] labels) {
+    }
+
     Metric.Type getMetricType();
 
     Metric.Engine getMetricEngine();
@@ -25,6 +33,33 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
         MINI_BATCH
     }
 
+    /** How {@link Type#LLOYD} and {@link Type#MINI_BATCH} pick their initial centroids. */
+    enum Initialization {
+        /** k-means++ over the whole data set: one pass over the data per cluster. */
+        K_MEANS_PLUS_PLUS,
+        /**
+         * k-means|| (scalable k-means++): five rounds that each oversample about {@code clusterCount / 2}
+         * candidates in one pass, then weighted k-means++ over the candidates. Fewer passes over the
+         * data than {@link #K_MEANS_PLUS_PLUS} but more distance evaluations, so it pays off with
+         * many threads.
+         */
+        K_MEANS_PARALLEL,
+        /** k-means++ over a uniform random sample of the data, 32 points per cluster but at least 4096. */
+        SAMPLED_K_MEANS_PLUS_PLUS
+    }
+
+    /** How {@link Type#LLOYD} assigns points to their nearest centroid on every iteration. */
+    enum Assignment {
+        /** Distance from every point to every centroid. */
+        EXHAUSTIVE,
+        /**
+         * Hamerly's triangle-inequality bounds: a point is only re-scanned when its distance to its
+         * centroid may exceed its distance to the second closest one. Produces the same assignments
+         * as {@link #EXHAUSTIVE}; requires {@link Metric.Type#L2SQ_DISTANCE}.
+         */
+        HAMERLY
+    }
+
     interface ClusteringResult {
         float[][] getCentroids();
 
@@ -52,6 +87,11 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
         private int maxIterationsPerLevel = 50;
         private boolean minClusterSizeOverridden;
 
+        private Assignment assignment = Assignment.EXHAUSTIVE;
+        private Initialization initialization = Initialization.K_MEANS_PLUS_PLUS;
+        private int parallelism = 1;
+        private float maxClusterSizeRatio = Float.POSITIVE_INFINITY;
+
         private Random random = new Random();
 
         private Builder(Type type,
@@ -115,6 +155,47 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
             return this;
         }
 
+        public Builder withAssignment(Assignment assignment) {
+            if (assignment == null)
+                throw new IllegalArgumentException("assignment must be non-null");
+            this.assignment = assignment;
+            return this;
+        }
+
+        public Builder withInitialization(Initialization initialization) {
+            if (initialization == null)
+                throw new IllegalArgumentException("initialization must be non-null");
+            this.initialization = initialization;
+            return this;
+        }
+
+        /**
+         * Threads {@link Type#LLOYD} fits and predicts with, and {@link Type#HIERARCHICAL} builds subtrees on.
+         * Work is split into chunks that depend only on the data size, and every tree node draws its own seed,
+         * so results for a given seed are identical for every parallelism.
+         */
+        public Builder withParallelism(int parallelism) {
+            if (parallelism <= 0)
+                throw new IllegalArgumentException("parallelism must be > 0");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Caps every {@link Type#LLOYD} and {@link Type#MINI_BATCH} cluster at {@code maxClusterSizeRatio} times
+         * the mean cluster size: after each assignment the points of overfull clusters that lose the least by
+         * moving go to their nearest cluster with room. Bounds the longest inverted list, and with it the
+         * worst-case scan per probe, at some loss. Only the fitted assignments are capped; {@code predict} still
+         * picks the nearest centroid, and {@link KMeans#capClusterSizes} caps its labels afterwards. Not available
+         * with {@link Assignment#HAMERLY}.
+         */
+        public Builder withMaxClusterSizeRatio(float maxClusterSizeRatio) {
+            if (!(maxClusterSizeRatio >= 1f))
+                throw new IllegalArgumentException("maxClusterSizeRatio must be >= 1");
+            this.maxClusterSizeRatio = maxClusterSizeRatio;
+            return this;
+        }
+
         public Builder withRandom(Random random) {
             if (random == null)
                 throw new IllegalArgumentException("random must be non-null");
@@ -131,6 +212,10 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
                         metricEngine,
                         maxIterations,
                         tolerance,
+                        assignment,
+                        initialization,
+                        parallelism,
+                        maxClusterSizeRatio,
                         random
                     );
                 }
@@ -143,6 +228,8 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
                         maxIterations,
                         tolerance,
                         maxNoImprovementIterations,
+                        initialization,
+                        maxClusterSizeRatio,
                         random
                     );
                 }
@@ -155,7 +242,8 @@ public interface KMeans<R extends KMeans.ClusteringResult> {
                         tolerance,
                         random,
                         metricType,
-                        metricEngine
+                        metricEngine,
+                        parallelism
                     );
                 }
                 default: {
@@ -2,12 +2,25 @@ package ru.mcashesha.kmeans;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
 
 class LloydKMeans implements KMeans<LloydKMeans.Result> {
+    private static final int ASSIGN_BLOCK = 256;
+    /**
+     * Relative widening of Hamerly bounds so that float rounding in the distance kernels never lets a
+     * point skip a re-scan the exhaustive assignment would have moved it in.
+     */
+    private static final double BOUND_SLACK = 1e-4;
+
     private final int clusterCnt;
     private final int maxIterations;
     private final float tolerance;
+    private final Assignment assignment;
+    private final Initialization initialization;
+    private final int parallelism;
+    private final float maxClusterSizeRatio;
     private final Metric.Type metricType;
     private final Metric.Engine metricEngine;
     private final Random random;
@@ -17,6 +30,23 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         Metric.Engine metricEngine,
         int maxIterations,
         float tolerance,
+        Assignment assignment,
+        Initialization initialization,
+        int parallelism,
+        Random random) {
+        this(clusterCnt, metricType, metricEngine, maxIterations, tolerance, assignment, initialization, parallelism,
+            Float.POSITIVE_INFINITY, random);
+    }
+
+    public LloydKMeans(int clusterCnt,
+        Metric.Type metricType,
+        Metric.Engine metricEngine,
+        int maxIterations,
+        float tolerance,
+        Assignment assignment,
+        Initialization initialization,
+        int parallelism,
+        float maxClusterSizeRatio,
         Random random) {
         if (clusterCnt <= 0)
             throw new IllegalArgumentException("clusterCount must be > 0");
@@ -26,6 +56,18 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
             throw new IllegalArgumentException("maxIterations must be > 0");
         if (tolerance < 0)
             throw new IllegalArgumentException("tolerance must be >= 0");
+        if (assignment == null)
+            throw new IllegalArgumentException("assignment must be non-null");
+        if (assignment == Assignment.HAMERLY && metricType != Metric.Type.L2SQ_DISTANCE)
+            throw new IllegalArgumentException("HAMERLY assignment requires L2SQ_DISTANCE");
+        if (initialization == null)
+            throw new IllegalArgumentException("initialization must be non-null");
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be > 0");
+        if (!(maxClusterSizeRatio >= 1f))
+            throw new IllegalArgumentException("maxClusterSizeRatio must be >= 1");
+        if (assignment == Assignment.HAMERLY && maxClusterSizeRatio != Float.POSITIVE_INFINITY)
+            throw new IllegalArgumentException("HAMERLY assignment cannot be combined with maxClusterSizeRatio");
         if (random == null)
             throw new IllegalArgumentException("random must be non-null");
 
@@ -34,6 +76,10 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         this.metricEngine = metricEngine;
         this.maxIterations = maxIterations;
         this.tolerance = tolerance;
+        this.assignment = assignment;
+        this.initialization = initialization;
+        this.parallelism = parallelism;
+        this.maxClusterSizeRatio = maxClusterSizeRatio;
         this.random = random;
     }
 
@@ -58,7 +104,21 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
             );
         }
 
-        float[][] centroids = initializeCentroidsKMeansPlusPlus(data, sampleCnt, dimension);
+        ForkJoinPool pool = newPool();
+        try {
+            return fit(data, sampleCnt, dimension, pool);
+        }
+        finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    private Result fit(float[][] data, int sampleCnt, int dimension, ForkJoinPool pool) {
+        float[] dataInverseNorms = inverseNorms(data);
+
+        float[][] centroids = new CentroidSeeding(metricType, metricEngine, random, pool)
+            .seed(initialization, data, dataInverseNorms, clusterCnt);
 
         int[] labels = new int[sampleCnt];
         Arrays.fill(labels, -1);
@@ -67,19 +127,41 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         int[] clusterSizes = new int[clusterCnt];
 
         float[] pointErrors = new float[sampleCnt];
+        float[] shifts = new float[clusterCnt];
+
+        Bounds bounds = assignment == Assignment.HAMERLY ? new Bounds(sampleCnt, clusterCnt) : null;
+
+        int capacity = ClusterCapacity.capacity(maxClusterSizeRatio, sampleCnt, clusterCnt);
+        ClusterCapacity balancer = capacity < sampleCnt ? new ClusterCapacity(metricType, metricEngine, pool) : null;
 
         int performedIterations = 0;
 
         for (int iteration = 0; iteration < maxIterations; iteration++) {
-            assignPointsToClusters(data, centroids, labels, pointErrors);
+            if (bounds == null) {
+                assignPointsToClusters(data, dataInverseNorms, centroids, labels, pointErrors, pool);
+                if (balancer != null)
+                    balancer.enforce(data, dataInverseNorms, centroids, labels, pointErrors, capacity);
+            }
+            else
+                assignPointsWithBounds(data, centroids, labels, bounds, pool);
+
+            recomputeCentroids(data, labels, newCentroids, clusterSizes, pool);
 
-            recomputeCentroids(data, labels, newCentroids, clusterSizes);
+            // Bounds do not know every point's exact error, which reseeding needs; labels stay the same.
+            if (bounds != null && hasEmptyCluster(clusterSizes))
+                assignPointsToClusters(data, dataInverseNorms, centroids, labels, pointErrors, pool);
 
             boolean changed = handleEmptyClusters(data, newCentroids, clusterSizes, labels, pointErrors);
-            if (changed)
-                recomputeCentroids(data, labels, newCentroids, clusterSizes);
+            if (changed) {
+                recomputeCentroids(data, labels, newCentroids, clusterSizes, pool);
+                if (bounds != null)
+                    bounds.initialized = false;
+            }
+
+            float maxShift = computeCentroidShifts(centroids, newCentroids, shifts);
 
-            float maxShift = computeMaxCentroidShift(centroids, newCentroids);
+            if (bounds != null && bounds.initialized)
+                updateBounds(labels, shifts, bounds);
 
             for (int c = 0; c < clusterCnt; c++)
                 System.arraycopy(newCentroids[c], 0, centroids[c], 0, dimension);
@@ -90,7 +172,9 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
                 break;
         }
 
-        float finalLoss = assignPointsToClusters(data, centroids, labels, null);
+        float finalLoss = assignPointsToClusters(data, dataInverseNorms, centroids, labels, null, pool);
+        if (balancer != null)
+            finalLoss += balancer.enforce(data, dataInverseNorms, centroids, labels, null, capacity);
         int[] finalClusterSizes = computeClusterSizes(labels, clusterCnt);
 
         return new Result(labels, centroids, performedIterations, finalLoss, finalClusterSizes);
@@ -128,11 +212,39 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
 
         int[] labels = new int[data.length];
 
-        assignPointsToClusters(data, centroids, labels, null);
+        ForkJoinPool pool = newPool();
+        try {
+            assignPointsToClusters(data, inverseNorms(data), centroids, labels, null, pool);
+        }
+        finally {
+            if (pool != null)
+                pool.shutdown();
+        }
 
         return labels;
     }
 
+    @Override public void capClusterSizes(float[][] data, Result model, int[] labels) {
+        int capacity = ClusterCapacity.capacity(maxClusterSizeRatio, data.length, clusterCnt);
+        if (capacity >= data.length)
+            return;
+
+        ForkJoinPool pool = newPool();
+        try {
+            new ClusterCapacity(metricType, metricEngine, pool)
+                .enforce(data, inverseNorms(data), model.centroids, labels, null, capacity);
+        }
+        finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    /** Pool for one fit or predict call, {@code null} when it runs on the calling thread. */
+    private ForkJoinPool newPool() {
+        return parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
     private int[] computeClusterSizes(int[] labels, int clusterCnt) {
         int[] sizes = new int[clusterCnt];
 
@@ -165,118 +277,115 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         return dimension;
     }
 
-    private float[][] initializeCentroidsKMeansPlusPlus(float[][] data,
-        int sampleCnt,
-        int dimension) {
-
-        float[][] centroids = new float[clusterCnt][dimension];
-
-        int firstIdx = random.nextInt(sampleCnt);
-        System.arraycopy(data[firstIdx], 0, centroids[0], 0, dimension);
-
-        float[] minDistances = new float[sampleCnt];
-
-        for (int i = 0; i < sampleCnt; i++) {
-            float distance = metricType.distance(metricEngine, data[i], centroids[0]);
-            minDistances[i] = distance;
-        }
-
-        for (int c = 1; c < clusterCnt; c++) {
-            float totalWeight = 0f;
-
-            for (int i = 0; i < sampleCnt; i++)
-                totalWeight += minDistances[i];
-
-            int chosenIdx;
-
-            if (totalWeight == 0f)
-                chosenIdx = random.nextInt(sampleCnt);
-            else {
-                float threshold = random.nextFloat() * totalWeight;
-                float cumulative = 0f;
-                chosenIdx = sampleCnt - 1;
-
-                for (int i = 0; i < sampleCnt; i++) {
-                    cumulative += minDistances[i];
-                    if (cumulative >= threshold) {
-                        chosenIdx = i;
-                        break;
-                    }
-                }
-            }
-
-            System.arraycopy(data[chosenIdx], 0, centroids[c], 0, dimension);
+    /** Inverse norms of {@code vectors} for cosine distance, {@code null} for the other metrics. */
+    private float[] inverseNorms(float[][] vectors) {
+        return metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorms(vectors) : null;
+    }
 
-            float[] newCentroid = centroids[c];
-            for (int i = 0; i < sampleCnt; i++) {
-                float distance = metricType.distance(metricEngine, data[i], newCentroid);
-                if (distance < minDistances[i])
-                    minDistances[i] = distance;
-            }
-        }
+    private void distanceMatrix(float[][] a,
+        float[] aInverseNorms,
+        int aOffset,
+        int aCount,
+        float[][] b,
+        float[] bInverseNorms,
+        float[] out) {
+        CentroidSeeding.distanceMatrix(metricType, metricEngine, a, aInverseNorms, aOffset, aCount, b, bInverseNorms,
+            out);
+    }
 
-        return centroids;
+    private float assignPointsToClusters(float[][] data,
+        float[] dataInverseNorms,
+        float[][] centroids,
+        int[] labels,
+        float[] pointErrors,
+        ForkJoinPool pool) {
+        float[] centroidInverseNorms = dataInverseNorms != null ? VectorNorms.inverseNorms(centroids) : null;
+
+        return ParallelChunks.forEachChunk(data.length, pool, (from, to) -> {
+            float loss = assignPointsToClusters(data, dataInverseNorms, centroids, centroidInverseNorms, labels,
+                pointErrors, from, to);
+            return new Partial(loss);
+        }, Partial::add).loss;
     }
 
     private float assignPointsToClusters(float[][] data,
+        float[] dataInverseNorms,
         float[][] centroids,
+        float[] centroidInverseNorms,
         int[] labels,
-        float[] pointErrors) {
-        int sampleCnt = data.length;
+        float[] pointErrors,
+        int from,
+        int to) {
         float loss = 0f;
 
-        for (int i = 0; i < sampleCnt; i++) {
-            float[] point = data[i];
+        float[] blockDistances = new float[Math.min(ASSIGN_BLOCK, to - from) * clusterCnt];
 
-            int nearestClusterIdx = -1;
-            float nearestDistance = Float.POSITIVE_INFINITY;
+        for (int blockStart = from; blockStart < to; blockStart += ASSIGN_BLOCK) {
+            int blockSize = Math.min(ASSIGN_BLOCK, to - blockStart);
 
-            for (int c = 0; c < clusterCnt; c++) {
-                float distance = metricType.distance(metricEngine, point, centroids[c]);
-                if (distance < nearestDistance) {
-                    nearestDistance = distance;
-                    nearestClusterIdx = c;
+            distanceMatrix(data, dataInverseNorms, blockStart, blockSize, centroids, centroidInverseNorms,
+                blockDistances);
+
+            for (int b = 0; b < blockSize; b++) {
+                int i = blockStart + b;
+                int rowOffset = b * clusterCnt;
+
+                int nearestClusterIdx = -1;
+                float nearestDistance = Float.POSITIVE_INFINITY;
+
+                for (int c = 0; c < clusterCnt; c++) {
+                    float distance = blockDistances[rowOffset + c];
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearestClusterIdx = c;
+                    }
                 }
-            }
 
-            labels[i] = nearestClusterIdx;
+                labels[i] = nearestClusterIdx;
 
-            loss += nearestDistance;
+                loss += nearestDistance;
 
-            if (pointErrors != null)
-                pointErrors[i] = nearestDistance;
+                if (pointErrors != null)
+                    pointErrors[i] = nearestDistance;
+            }
         }
 
         return loss;
     }
 
+    /** Per-chunk centroid sums, reduced in chunk order, then divided by the cluster sizes. */
     private void recomputeCentroids(float[][] data,
         int[] labels,
         float[][] newCentroids,
-        int[] clusterSizes) {
+        int[] clusterSizes,
+        ForkJoinPool pool) {
         int dimension = newCentroids[0].length;
 
-        for (int c = 0; c < clusterCnt; c++) {
-            Arrays.fill(newCentroids[c], 0);
-            clusterSizes[c] = 0;
-        }
+        Partial total = ParallelChunks.forEachChunk(data.length, pool, (from, to) -> {
+            Partial partial = new Partial(clusterCnt, dimension);
 
-        for (int i = 0; i < data.length; i++) {
-            int clusterIdx = labels[i];
-            clusterSizes[clusterIdx]++;
+            for (int i = from; i < to; i++) {
+                int clusterIdx = labels[i];
+                partial.sizes[clusterIdx]++;
 
-            float[] centroidSum = newCentroids[clusterIdx];
-            float[] point = data[i];
+                float[] centroidSum = partial.sums[clusterIdx];
+                float[] point = data[i];
 
-            for (int d = 0; d < dimension; d++)
-                centroidSum[d] += point[d];
-        }
+                for (int d = 0; d < dimension; d++)
+                    centroidSum[d] += point[d];
+            }
+
+            return partial;
+        }, Partial::add);
 
         for (int c = 0; c < clusterCnt; c++) {
-            int size = clusterSizes[c];
+            int size = total.sizes[c];
+            clusterSizes[c] = size;
+
+            float[] centroid = newCentroids[c];
+            System.arraycopy(total.sums[c], 0, centroid, 0, dimension);
             if (size > 0) {
                 float invSize = 1.0f / size;
-                float[] centroid = newCentroids[c];
                 for (int d = 0; d < dimension; d++)
                     centroid[d] *= invSize;
             }
@@ -375,12 +484,15 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         return bestIdx;
     }
 
-    private float computeMaxCentroidShift(float[][] oldCentroids,
-        float[][] newCentroids) {
+    /** Fills {@code shifts} with the distance every centroid moved and returns the largest one. */
+    private float computeCentroidShifts(float[][] oldCentroids,
+        float[][] newCentroids,
+        float[] shifts) {
         float maxShift = 0;
 
         for (int c = 0; c < clusterCnt; c++) {
             float shift = metricType.distance(metricEngine, oldCentroids[c], newCentroids[c]);
+            shifts[c] = shift;
             if (shift > maxShift)
                 maxShift = shift;
         }
@@ -388,6 +500,227 @@ class LloydKMeans implements KMeans<LloydKMeans.Result> {
         return maxShift;
     }
 
+    private boolean hasEmptyCluster(int[] clusterSizes) {
+        for (int c = 0; c < clusterCnt; c++) {
+            if (clusterSizes[c] == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hamerly's assignment step. A point keeps its label without any distance computation when its
+     * upper bound is below both its lower bound and half the distance from its centroid to the
+     * nearest other centroid; failing that, the upper bound is tightened with one distance; failing
+     * that, the point is re-scanned against every centroid exactly like the exhaustive path.
+     * Bounds are Euclidean (square roots of L2SQ), since only those obey the triangle inequality.
+     */
+    private void assignPointsWithBounds(float[][] data,
+        float[][] centroids,
+        int[] labels,
+        Bounds bounds,
+        ForkJoinPool pool) {
+        if (!bounds.initialized) {
+            ParallelChunks.forEachChunk(data.length, pool, (from, to) -> {
+                Rescan rescan = new Rescan(clusterCnt);
+                for (int blockStart = from; blockStart < to; blockStart += ASSIGN_BLOCK) {
+                    int blockSize = Math.min(ASSIGN_BLOCK, to - blockStart);
+                    for (int b = 0; b < blockSize; b++)
+                        rescan.pending[b] = blockStart + b;
+                    rescan(data, centroids, labels, bounds, rescan, blockSize);
+                }
+                return null;
+            });
+            bounds.initialized = true;
+            return;
+        }
+
+        double[] halfSeparation = halfSeparations(centroids, bounds);
+        double[] upper = bounds.upper;
+        double[] lower = bounds.lower;
+
+        ParallelChunks.forEachChunk(data.length, pool, (from, to) -> {
+            Rescan rescan = new Rescan(clusterCnt);
+
+            int pendingCnt = 0;
+            for (int i = from; i < to; i++) {
+                int label = labels[i];
+                double bound = Math.max(halfSeparation[label], lower[i]);
+                if (upper[i] < bound)
+                    continue;
+
+                upper[i] = widen(metricType.distance(metricEngine, data[i], centroids[label]));
+                if (upper[i] < bound)
+                    continue;
+
+                rescan.pending[pendingCnt++] = i;
+                if (pendingCnt == ASSIGN_BLOCK) {
+                    rescan(data, centroids, labels, bounds, rescan, pendingCnt);
+                    pendingCnt = 0;
+                }
+            }
+
+            if (pendingCnt > 0)
+                rescan(data, centroids, labels, bounds, rescan, pendingCnt);
+            return null;
+        });
+    }
+
+    /** Exhaustively assigns the first {@code pendingCnt} points of {@code rescan.pending} and resets their bounds. */
+    private void rescan(float[][] data,
+        float[][] centroids,
+        int[] labels,
+        Bounds bounds,
+        Rescan rescan,
+        int pendingCnt) {
+        float[][] rows = rescan.rows;
+        for (int p = 0; p < pendingCnt; p++)
+            rows[p] = data[rescan.pending[p]];
+
+        float[] distances = rescan.distances;
+        metricType.distanceMatrix(metricEngine, rows, 0, pendingCnt, centroids, distances);
+
+        for (int p = 0; p < pendingCnt; p++) {
+            int rowOffset = p * clusterCnt;
+
+            int nearestClusterIdx = -1;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            float secondDistance = Float.POSITIVE_INFINITY;
+
+            for (int c = 0; c < clusterCnt; c++) {
+                float distance = distances[rowOffset + c];
+                if (distance < nearestDistance) {
+                    secondDistance = nearestDistance;
+                    nearestDistance = distance;
+                    nearestClusterIdx = c;
+                }
+                else if (distance < secondDistance)
+                    secondDistance = distance;
+            }
+
+            int i = rescan.pending[p];
+            labels[i] = nearestClusterIdx;
+            bounds.upper[i] = widen(nearestDistance);
+            bounds.lower[i] = narrow(secondDistance);
+        }
+    }
+
+    /** Half of the Euclidean distance from every centroid to its nearest other centroid, narrowed. */
+    private double[] halfSeparations(float[][] centroids, Bounds bounds) {
+        float[] separations = bounds.separations;
+        metricType.distanceMatrix(metricEngine, centroids, 0, clusterCnt, centroids, separations);
+
+        double[] halfSeparation = bounds.halfSeparation;
+        for (int c = 0; c < clusterCnt; c++) {
+            float nearest = Float.POSITIVE_INFINITY;
+            for (int o = 0; o < clusterCnt; o++) {
+                if (o != c)
+                    nearest = Math.min(nearest, separations[c * clusterCnt + o]);
+            }
+            halfSeparation[c] = narrow(nearest) / 2;
+        }
+
+        return halfSeparation;
+    }
+
+    /**
+     * Loosens every point's bounds by how far the centroids moved: its own centroid's shift for the
+     * upper bound, the largest shift of any other centroid for the lower one.
+     */
+    private void updateBounds(int[] labels, float[] shifts, Bounds bounds) {
+        int farthest = -1;
+        double farthestShift = 0;
+        double secondShift = 0;
+
+        double[] moves = bounds.moves;
+        for (int c = 0; c < clusterCnt; c++) {
+            moves[c] = widen(shifts[c]);
+            if (moves[c] > farthestShift) {
+                secondShift = farthestShift;
+                farthestShift = moves[c];
+                farthest = c;
+            }
+            else if (moves[c] > secondShift)
+                secondShift = moves[c];
+        }
+
+        for (int i = 0; i < labels.length; i++) {
+            int label = labels[i];
+            bounds.upper[i] += moves[label];
+            bounds.lower[i] -= label == farthest ? secondShift : farthestShift;
+        }
+    }
+
+    private static double widen(float l2sq) {
+        return Math.sqrt(l2sq) * (1 + BOUND_SLACK);
+    }
+
+    private static double narrow(float l2sq) {
+        return Math.sqrt(l2sq) * (1 - BOUND_SLACK);
+    }
+
+    /** Per-point Hamerly bounds plus per-centroid scratch for {@link #assignPointsWithBounds}. */
+    private static final class Bounds {
+        final double[] upper;
+        final double[] lower;
+        final float[] separations;
+        final double[] halfSeparation;
+        final double[] moves;
+        boolean initialized;
+
+        Bounds(int sampleCnt, int clusterCnt) {
+            this.upper = new double[sampleCnt];
+            this.lower = new double[sampleCnt];
+            this.separations = new float[clusterCnt * clusterCnt];
+            this.halfSeparation = new double[clusterCnt];
+            this.moves = new double[clusterCnt];
+        }
+    }
+
+    /** Points of one chunk waiting for a full re-scan, batched through the distance matrix kernel. */
+    private static final class Rescan {
+        final int[] pending = new int[ASSIGN_BLOCK];
+        final float[][] rows = new float[ASSIGN_BLOCK][];
+        final float[] distances;
+
+        Rescan(int clusterCnt) {
+            this.distances = new float[ASSIGN_BLOCK * clusterCnt];
+        }
+    }
+
+    /** Partial centroid sums and sizes, or only a loss, of one chunk or of a combined range of chunks. */
+    private static final class Partial {
+        final float[][] sums;
+        final int[] sizes;
+        float loss;
+
+        Partial(int clusterCnt, int dimension) {
+            this.sums = new float[clusterCnt][dimension];
+            this.sizes = new int[clusterCnt];
+        }
+
+        Partial(float loss) {
+            this.sums = null;
+            this.sizes = null;
+            this.loss = loss;
+        }
+
+        /** Adds {@code other}, the partial of the chunks right after this one's, into this partial. */
+        Partial add(Partial other) {
+            loss += other.loss;
+            if (sums != null) {
+                for (int c = 0; c < sums.length; c++) {
+                    sizes[c] += other.sizes[c];
+                    float[] sum = sums[c];
+                    float[] otherSum = other.sums[c];
+                    for (int d = 0; d < sum.length; d++)
+                        sum[d] += otherSum[d];
+                }
+            }
+            return this;
+        }
+    }
+
     static final class Result implements ClusteringResult {
         private final int[] labels;
         private final float[][] centroids;
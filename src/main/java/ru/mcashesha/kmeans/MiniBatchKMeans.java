@@ -3,6 +3,7 @@ package ru.mcashesha.kmeans;
 import java.util.Arrays;
 import java.util.Random;
 import ru.mcashesha.metrics.Metric;
+import ru.mcashesha.metrics.VectorNorms;
 
 class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
 
@@ -11,6 +12,8 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
     private final int maxIterations;
     private final int maxNoImprovementIterations;
     private final float tolerance;
+    private final Initialization initialization;
+    private final float maxClusterSizeRatio;
     private final Metric.Type metricType;
     private final Metric.Engine metricEngine;
     private final Random random;
@@ -23,6 +26,22 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         int maxIterations,
         float tolerance,
         int maxNoImprovementIterations,
+        Initialization initialization,
+        Random random) {
+        this(clusterCnt, batchSize, metricType, metricEngine, maxIterations, tolerance, maxNoImprovementIterations,
+            initialization, Float.POSITIVE_INFINITY, random);
+    }
+
+    public MiniBatchKMeans(
+        int clusterCnt,
+        int batchSize,
+        Metric.Type metricType,
+        Metric.Engine metricEngine,
+        int maxIterations,
+        float tolerance,
+        int maxNoImprovementIterations,
+        Initialization initialization,
+        float maxClusterSizeRatio,
         Random random) {
         if (clusterCnt <= 0)
             throw new IllegalArgumentException("clusterCount must be > 0");
@@ -36,6 +55,10 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
             throw new IllegalArgumentException("maxNoImprovementIterations must be > 0");
         if (tolerance < 0.0f)
             throw new IllegalArgumentException("tolerance must be >= 0");
+        if (initialization == null)
+            throw new IllegalArgumentException("initialization must be non-null");
+        if (!(maxClusterSizeRatio >= 1f))
+            throw new IllegalArgumentException("maxClusterSizeRatio must be >= 1");
         if (random == null)
             throw new IllegalArgumentException("random must be non-null");
 
@@ -46,6 +69,8 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         this.maxIterations = maxIterations;
         this.tolerance = tolerance;
         this.maxNoImprovementIterations = maxNoImprovementIterations;
+        this.initialization = initialization;
+        this.maxClusterSizeRatio = maxClusterSizeRatio;
         this.random = random;
     }
 
@@ -70,7 +95,10 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
             );
         }
 
-        float[][] centroids = initializeCentroidsKMeansPlusPlus(data, sampleCnt, dimension);
+        float[] dataInverseNorms = inverseNorms(data);
+
+        float[][] centroids = new CentroidSeeding(metricType, metricEngine, random, null)
+            .seed(initialization, data, dataInverseNorms, clusterCnt);
 
         long[] clusterCounts = new long[clusterCnt];
 
@@ -92,7 +120,8 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
                 batchClusterCounts[c] = 0;
             }
 
-            float batchLossSum = assignMiniBatch(data, centroids, batchIndices, batchSums, batchClusterCounts);
+            float batchLossSum = assignMiniBatch(data, dataInverseNorms, centroids, batchIndices, batchSums,
+                batchClusterCounts);
             float averageBatchLoss = batchLossSum / actualBatchSize;
 
             updateCentroidsFromMiniBatch(centroids, clusterCounts, batchSums, batchClusterCounts);
@@ -116,7 +145,12 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         int[] labels = new int[sampleCnt];
         float[] pointErrors = new float[sampleCnt];
 
-        assignPointsToClusters(data, centroids, labels, pointErrors);
+        assignPointsToClusters(data, dataInverseNorms, centroids, labels, pointErrors);
+
+        int capacity = ClusterCapacity.capacity(maxClusterSizeRatio, sampleCnt, clusterCnt);
+        ClusterCapacity balancer = capacity < sampleCnt ? new ClusterCapacity(metricType, metricEngine, null) : null;
+        if (balancer != null)
+            balancer.enforce(data, dataInverseNorms, centroids, labels, pointErrors, capacity);
 
         float[][] newCentroids = new float[clusterCnt][dimension];
         int[] clusterSizes = new int[clusterCnt];
@@ -129,7 +163,11 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         for (int c = 0; c < clusterCnt; c++)
             System.arraycopy(newCentroids[c], 0, centroids[c], 0, dimension);
 
-        float finalLoss = assignPointsToClusters(data, centroids, labels, null);
+        float finalLoss = assignPointsToClusters(data, dataInverseNorms, centroids, labels, null);
+        if (balancer != null) {
+            finalLoss += balancer.enforce(data, dataInverseNorms, centroids, labels, null, capacity);
+            clusterSizes = ClusterCapacity.sizes(labels, clusterCnt);
+        }
 
         return new Result(labels, centroids, performedIterations, finalLoss, clusterSizes);
     }
@@ -165,10 +203,18 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         }
 
         int[] labels = new int[data.length];
-        assignPointsToClusters(data, centroids, labels);
+        assignPointsToClusters(data, inverseNorms(data), centroids, labels, null);
         return labels;
     }
 
+    @Override public void capClusterSizes(float[][] data, Result model, int[] labels) {
+        int capacity = ClusterCapacity.capacity(maxClusterSizeRatio, data.length, clusterCnt);
+        if (capacity < data.length) {
+            new ClusterCapacity(metricType, metricEngine, null)
+                .enforce(data, inverseNorms(data), model.centroids, labels, null, capacity);
+        }
+    }
+
     private int validateAndGetDimension(float[][] data) {
         if (data[0] == null)
             throw new IllegalArgumentException("points must be non-null");
@@ -186,61 +232,27 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         return dimension;
     }
 
-    private float[][] initializeCentroidsKMeansPlusPlus(float[][] data,
-        int sampleCnt,
-        int dimension) {
-
-        float[][] centroids = new float[clusterCnt][dimension];
-
-        int firstIdx = random.nextInt(sampleCnt);
-        System.arraycopy(data[firstIdx], 0, centroids[0], 0, dimension);
-
-        float[] minDistances = new float[sampleCnt];
-
-        for (int i = 0; i < sampleCnt; i++) {
-            float dist = metricType.distance(metricEngine, data[i], centroids[0]);
-            minDistances[i] = dist;
-        }
-
-        for (int c = 1; c < clusterCnt; c++) {
-            float totalDistance = 0.0f;
-
-            for (int i = 0; i < sampleCnt; i++)
-                totalDistance += minDistances[i];
-
-            int chosenIdx;
-
-            if (totalDistance == 0.0f)
-                chosenIdx = random.nextInt(sampleCnt);
-            else {
-                float r = random.nextFloat() * totalDistance;
-                float cumulative = 0.0f;
-
-                chosenIdx = sampleCnt - 1;
-
-                for (int i = 0; i < sampleCnt; i++) {
-                    cumulative += minDistances[i];
-                    if (cumulative >= r) {
-                        chosenIdx = i;
-                        break;
-                    }
-                }
-            }
-
-            System.arraycopy(data[chosenIdx], 0, centroids[c], 0, dimension);
-
-            float[] newCentroid = centroids[c];
-            for (int i = 0; i < sampleCnt; i++) {
-                float dist = metricType.distance(metricEngine, data[i], newCentroid);
-                if (dist < minDistances[i])
-                    minDistances[i] = dist;
-            }
-        }
+    /** Inverse norms of {@code vectors} for cosine distance, {@code null} for the other metrics. */
+    private float[] inverseNorms(float[][] vectors) {
+        return metricType == Metric.Type.COSINE_DISTANCE ? VectorNorms.inverseNorms(vectors) : null;
+    }
 
-        return centroids;
+    /** With cached inverse norms a cosine distance is a single dot product. */
+    private float distance(float[] point,
+        float[] pointInverseNorms,
+        int pointIdx,
+        float[] centroid,
+        float[] centroidInverseNorms,
+        int centroidIdx) {
+        if (pointInverseNorms == null)
+            return metricType.distance(metricEngine, point, centroid);
+
+        float dot = Metric.Type.DOT_PRODUCT.distance(metricEngine, point, centroid);
+        return VectorNorms.cosineDistance(dot, pointInverseNorms[pointIdx], centroidInverseNorms[centroidIdx]);
     }
 
     private float assignMiniBatch(float[][] data,
+        float[] dataInverseNorms,
         float[][] centroids,
         int[] batchIndices,
         float[][] batchSums,
@@ -248,6 +260,8 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         int dimension = centroids[0].length;
         float batchLoss = 0.0f;
 
+        float[] centroidInverseNorms = dataInverseNorms != null ? VectorNorms.inverseNorms(centroids) : null;
+
         for (int sampleIdx : batchIndices) {
             float[] point = data[sampleIdx];
 
@@ -255,7 +269,7 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
             float nearestDistance = Float.POSITIVE_INFINITY;
 
             for (int c = 0; c < clusterCnt; c++) {
-                float distance = metricType.distance(metricEngine, point, centroids[c]);
+                float distance = distance(point, dataInverseNorms, sampleIdx, centroids[c], centroidInverseNorms, c);
                 if (distance < nearestDistance) {
                     nearestDistance = distance;
                     nearestClusterIdx = c;
@@ -300,12 +314,15 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
     }
 
     private float assignPointsToClusters(float[][] data,
+        float[] dataInverseNorms,
         float[][] centroids,
         int[] labels,
         float[] pointErrors) {
         int sampleCnt = data.length;
         float loss = 0.0f;
 
+        float[] centroidInverseNorms = dataInverseNorms != null ? VectorNorms.inverseNorms(centroids) : null;
+
         for (int i = 0; i < sampleCnt; i++) {
             float[] point = data[i];
 
@@ -313,7 +330,7 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
             float nearestDistance = Float.POSITIVE_INFINITY;
 
             for (int c = 0; c < clusterCnt; c++) {
-                float distance = metricType.distance(metricEngine, point, centroids[c]);
+                float distance = distance(point, dataInverseNorms, i, centroids[c], centroidInverseNorms, c);
                 if (distance < nearestDistance) {
                     nearestDistance = distance;
                     nearestClusterIdx = c;
@@ -331,12 +348,6 @@ class MiniBatchKMeans implements KMeans<MiniBatchKMeans.Result> {
         return loss;
     }
 
-    private void assignPointsToClusters(float[][] data,
-        float[][] centroids,
-        int[] labels) {
-        assignPointsToClusters(data, centroids, labels, null);
-    }
-
     private void recomputeCentroids(float[][] data,
         int[] labels,
         float[][] newCentroids,
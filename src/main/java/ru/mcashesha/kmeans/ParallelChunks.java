@@ -0,0 +1,92 @@
+package ru.mcashesha.kmeans;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Sweeps {@code [0, sampleCnt)} in chunks on a {@link ForkJoinPool}, or on the calling thread when
+ * the pool is null. Chunks hold at least {@link #MIN_CHUNK} points and there are at most
+ * {@link #MAX_CHUNKS} of them; both depend only on the sample count, and per-chunk results are
+ * combined pairwise in a fixed tree order, so float reductions come out bit-identical whatever the
+ * parallelism.
+ */
+final class ParallelChunks {
+    static final int MIN_CHUNK = 4096;
+    static final int MAX_CHUNKS = 64;
+
+    private ParallelChunks() {
+    }
+
+    @FunctionalInterface
+    interface ChunkWork<T> {
+        /** Processes points {@code [from, to)}; returns their partial result, or {@code null} if there is none. */
+        T run(int from, int to);
+    }
+
+    /** Runs {@code work} over every chunk; {@code combiner} merges a range's result into the one just before it. */
+    static <T> T forEachChunk(int sampleCnt, ForkJoinPool pool, ChunkWork<T> work, BinaryOperator<T> combiner) {
+        int chunkSize = Math.max(MIN_CHUNK, (sampleCnt + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        int chunkCnt = (sampleCnt + chunkSize - 1) / chunkSize;
+
+        ChunkTask<T> task = new ChunkTask<>(work, combiner, sampleCnt, chunkSize, 0, chunkCnt, pool != null);
+        return pool != null ? pool.invoke(task) : task.compute();
+    }
+
+    static void forEachChunk(int sampleCnt, ForkJoinPool pool, ChunkWork<?> work) {
+        forEachChunk(sampleCnt, pool, work, (left, right) -> null);
+    }
+
+    private static final class ChunkTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkWork<? extends T> work;
+        private final BinaryOperator<T> combiner;
+        private final int sampleCnt;
+        private final int chunkSize;
+        private final int fromChunk;
+        private final int toChunk;
+        private final boolean fork;
+
+        ChunkTask(ChunkWork<? extends T> work,
+            BinaryOperator<T> combiner,
+            int sampleCnt,
+            int chunkSize,
+            int fromChunk,
+            int toChunk,
+            boolean fork) {
+            this.work = work;
+            this.combiner = combiner;
+            this.sampleCnt = sampleCnt;
+            this.chunkSize = chunkSize;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.fork = fork;
+        }
+
+        @Override protected T compute() {
+            if (toChunk - fromChunk <= 1)
+                return work.run(fromChunk * chunkSize, Math.min(sampleCnt, toChunk * chunkSize));
+
+            int mid = (fromChunk + toChunk) >>> 1;
+            ChunkTask<T> left = new ChunkTask<>(work, combiner, sampleCnt, chunkSize, fromChunk, mid, fork);
+            ChunkTask<T> right = new ChunkTask<>(work, combiner, sampleCnt, chunkSize, mid, toChunk, fork);
+
+            T leftResult;
+            T rightResult;
+            if (fork) {
+                left.fork();
+                rightResult = right.compute();
+                leftResult = left.join();
+            }
+            else {
+                leftResult = left.compute();
+                rightResult = right.compute();
+            }
+
+            if (leftResult == null)
+                return rightResult;
+            return rightResult == null ? leftResult : combiner.apply(leftResult, rightResult);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package ru.mcashesha.metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Forwards every call to the fastest available engine for the kernel and dimension at hand.
+ *
+ * <p>Candidates are the other engines that work in this process: SIMSIMD only when the native
+ * library loads and SimSIMD's runtime dispatch found a SIMD family beyond {@code serial},
+ * SIMSIMD_FFM only when native access is enabled, and VECTOR_API only when the preferred float
+ * species is at least 128 bits wide. The first call for a (kernel, dimension) pair queues a
+ * selection that times every candidate on synthetic data on a background daemon thread, and the
+ * calls are served by the default engine (VECTOR_API when it is a candidate, else SCALAR) until the
+ * winner is known, so no caller waits on the timing. {@link #resolve} waits for the selection
+ * instead, which is how to pick engines eagerly, e.g. right after startup. SCALAR is the fallback
+ * that always works.
+ */
+class AutoMetric implements Metric {
+    private static final long ROUND_NANOS = 5_000_000L;
+    private static final long BUDGET_NANOS = 500_000_000L;
+    private static final int STABLE_ROUNDS = 3;
+    /** Kernel calls before a timing is trusted, comfortably past HotSpot's C2 compile threshold. */
+    private static final long MIN_WARMUP_CALLS = 20_000L;
+    private static final int PROBE_VECTORS = 64;
+    /** Rows of a in a matrix probe; b is all {@link #PROBE_VECTORS} rows. */
+    private static final int PROBE_MATRIX_ROWS = 8;
+
+    /** One thread so selections do not time their candidates against each other. */
+    private static final ExecutorService SELECTIONS = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "auto-metric-selection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Kernel, Selector> selectors = new EnumMap<>(Kernel.class);
+
+    AutoMetric() {
+        for (Kernel kernel : Kernel.values())
+            selectors.put(kernel, new Selector(kernel));
+    }
+
+    /** Engine AUTO forwards {@code kernel} calls of the given dimension to, waiting for its selection. */
+    Metric.Engine resolve(Kernel kernel, int dimension) {
+        return selectors.get(kernel).selected(dimension);
+    }
+
+    private Metric metric(Kernel kernel, int dimension) {
+        return selectors.get(kernel).engine(dimension).getMetric();
+    }
+
+    static boolean isAvailable(Metric.Engine engine) {
+        return engine == Metric.Engine.AUTO || Candidates.ENGINES.contains(engine);
+    }
+
+    @Override public float l2Distance(float[] a, float[] b) {
+        return metric(Kernel.L2, a.length).l2Distance(a, b);
+    }
+
+    @Override public float dotProduct(float[] a, float[] b) {
+        return metric(Kernel.DOT, a.length).dotProduct(a, b);
+    }
+
+    @Override public float cosineDistance(float[] a, float[] b) {
+        return metric(Kernel.COSINE, a.length).cosineDistance(a, b);
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, byte[] b) {
+        return metric(Kernel.HAMMING, a.length).hammingDistanceB8(a, b);
+    }
+
+    @Override public float l2Distance(float[] a, ByteBuffer b, int bOffset) {
+        return metric(Kernel.L2, a.length).l2Distance(a, b, bOffset);
+    }
+
+    @Override public float dotProduct(float[] a, ByteBuffer b, int bOffset) {
+        return metric(Kernel.DOT, a.length).dotProduct(a, b, bOffset);
+    }
+
+    @Override public float cosineDistance(float[] a, ByteBuffer b, int bOffset) {
+        return metric(Kernel.COSINE, a.length).cosineDistance(a, b, bOffset);
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset) {
+        return metric(Kernel.HAMMING, a.length).hammingDistanceB8(a, b, bOffset);
+    }
+
+    @Override public void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        metric(Kernel.L2_BATCH, a.length).l2Distances(a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        metric(Kernel.DOT_BATCH, a.length).dotProducts(a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset) {
+        metric(Kernel.COSINE_BATCH, a.length).cosineDistances(a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        if (b.length > 0)
+            metric(Kernel.L2_MATRIX, b[0].length).l2DistanceMatrix(a, aOffset, aCount, b, out);
+    }
+
+    @Override public void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        if (b.length > 0)
+            metric(Kernel.DOT_MATRIX, b[0].length).dotProductMatrix(a, aOffset, aCount, b, out);
+    }
+
+    @Override public void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        if (b.length > 0)
+            metric(Kernel.COSINE_MATRIX, b[0].length).cosineDistanceMatrix(a, aOffset, aCount, b, out);
+    }
+
+    @Override public float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return metric(Kernel.DOT_I8, length).dotProductI8(a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return metric(Kernel.L2_F16, length).l2DistanceF16(a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return metric(Kernel.DOT_F16, length).dotProductF16(a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return metric(Kernel.COSINE_F16, length).cosineDistanceF16(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Kernel families selected independently. Pairwise array and buffer calls share a choice, while
+     * one-to-many and matrix calls are timed on their own since engines implement them differently
+     * (the native engines copy b on every matrix call); {@link #probe} runs one call against
+     * {@link #PROBE_VECTORS} vectors and returns a value that keeps the work observable.
+     */
+    enum Kernel {
+        L2 {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (float[] row : data.rows)
+                    sink += metric.l2Distance(data.query, row);
+                return sink;
+            }
+        },
+        DOT {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (float[] row : data.rows)
+                    sink += metric.dotProduct(data.query, row);
+                return sink;
+            }
+        },
+        COSINE {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (float[] row : data.rows)
+                    sink += metric.cosineDistance(data.query, row);
+                return sink;
+            }
+        },
+        L2_BATCH {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.l2Distances(data.query, data.floats, 0, PROBE_VECTORS, data.out, 0);
+                return data.out[PROBE_VECTORS - 1];
+            }
+        },
+        DOT_BATCH {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.dotProducts(data.query, data.floats, 0, PROBE_VECTORS, data.out, 0);
+                return data.out[PROBE_VECTORS - 1];
+            }
+        },
+        COSINE_BATCH {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.cosineDistances(data.query, data.floats, 0, PROBE_VECTORS, data.out, 0);
+                return data.out[PROBE_VECTORS - 1];
+            }
+        },
+        L2_MATRIX {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.l2DistanceMatrix(data.rows, 0, PROBE_MATRIX_ROWS, data.rows, data.matrixOut);
+                return data.matrixOut[data.matrixOut.length - 1];
+            }
+        },
+        DOT_MATRIX {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.dotProductMatrix(data.rows, 0, PROBE_MATRIX_ROWS, data.rows, data.matrixOut);
+                return data.matrixOut[data.matrixOut.length - 1];
+            }
+        },
+        COSINE_MATRIX {
+            @Override double probe(Metric metric, ProbeData data) {
+                metric.cosineDistanceMatrix(data.rows, 0, PROBE_MATRIX_ROWS, data.rows, data.matrixOut);
+                return data.matrixOut[data.matrixOut.length - 1];
+            }
+        },
+        HAMMING {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (byte[] row : data.byteRows)
+                    sink += metric.hammingDistanceB8(data.byteQuery, row);
+                return sink;
+            }
+        },
+        DOT_I8 {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (int i = 1; i <= PROBE_VECTORS; i++)
+                    sink += metric.dotProductI8(data.bytes, 0, data.bytes, i * data.dimension, data.dimension);
+                return sink;
+            }
+        },
+        L2_F16 {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (int i = 1; i <= PROBE_VECTORS; i++)
+                    sink += metric.l2DistanceF16(data.halves, 0, data.halves, i * data.halfBytes, data.dimension);
+                return sink;
+            }
+        },
+        DOT_F16 {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (int i = 1; i <= PROBE_VECTORS; i++)
+                    sink += metric.dotProductF16(data.halves, 0, data.halves, i * data.halfBytes, data.dimension);
+                return sink;
+            }
+        },
+        COSINE_F16 {
+            @Override double probe(Metric metric, ProbeData data) {
+                double sink = 0;
+                for (int i = 1; i <= PROBE_VECTORS; i++)
+                    sink += metric.cosineDistanceF16(data.halves, 0, data.halves, i * data.halfBytes, data.dimension);
+                return sink;
+            }
+        };
+
+        abstract double probe(Metric metric, ProbeData data);
+    }
+
+    private static Metric.Engine select(Kernel kernel, int dimension) {
+        List<Metric.Engine> engines = Candidates.ENGINES;
+        if (engines.size() == 1 || dimension <= 0)
+            return engines.get(0);
+
+        ProbeData data = new ProbeData(dimension);
+
+        Metric.Engine best = Metric.Engine.SCALAR;
+        double bestNanos = Double.POSITIVE_INFINITY;
+        for (Metric.Engine engine : engines) {
+            double nanos = time(kernel, engine.getMetric(), data);
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                best = engine;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Best nanoseconds per probe call, or infinity if the engine fails. Timing runs in short rounds
+     * until enough calls were made for JIT compilation (the Vector API in particular is slow until
+     * C2 kicks in) and the best round stopped improving, bounded by {@link #BUDGET_NANOS}.
+     */
+    private static double time(Kernel kernel, Metric metric, ProbeData data) {
+        try {
+            double sink = 0;
+            double best = Double.POSITIVE_INFINITY;
+            long calls = 0;
+            int stable = 0;
+
+            long deadline = System.nanoTime() + BUDGET_NANOS;
+            while ((stable < STABLE_ROUNDS || calls * PROBE_VECTORS < MIN_WARMUP_CALLS)
+                && System.nanoTime() < deadline) {
+                long roundCalls = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    sink += kernel.probe(metric, data);
+                    roundCalls++;
+                    elapsed = System.nanoTime() - start;
+                }
+                while (elapsed < ROUND_NANOS);
+
+                calls += roundCalls;
+                double nanos = (double)elapsed / roundCalls;
+                stable = nanos < best * 0.95 ? 0 : stable + 1;
+                best = Math.min(best, nanos);
+            }
+
+            data.sink += sink;
+
+            return best;
+        }
+        catch (LinkageError | RuntimeException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private static final class Selector {
+        private final Kernel kernel;
+        private final ConcurrentHashMap<Integer, CompletableFuture<Metric.Engine>> selections =
+            new ConcurrentHashMap<>();
+        private volatile Choice last = new Choice(-1, null);
+
+        Selector(Kernel kernel) {
+            this.kernel = kernel;
+        }
+
+        /** Selected engine, or the default one while the selection for {@code dimension} is running. */
+        Metric.Engine engine(int dimension) {
+            Choice locLast = last;
+            if (locLast.dimension == dimension)
+                return locLast.engine;
+
+            Metric.Engine engine = selection(dimension).getNow(null);
+            if (engine == null)
+                return Candidates.DEFAULT;
+
+            last = new Choice(dimension, engine);
+            return engine;
+        }
+
+        Metric.Engine selected(int dimension) {
+            return selection(dimension).join();
+        }
+
+        private CompletableFuture<Metric.Engine> selection(int dimension) {
+            CompletableFuture<Metric.Engine> selection = selections.get(dimension);
+            if (selection != null)
+                return selection;
+
+            return selections.computeIfAbsent(dimension,
+                d -> CompletableFuture.supplyAsync(() -> select(kernel, d), SELECTIONS));
+        }
+    }
+
+    private static final class Choice {
+        final int dimension;
+        final Metric.Engine engine;
+
+        Choice(int dimension, Metric.Engine engine) {
+            this.dimension = dimension;
+            this.engine = engine;
+        }
+    }
+
+    /** Engines usable in this process, SCALAR first; resolved on first use, after {@link Metric.Engine} exists. */
+    private static final class Candidates {
+        static final List<Metric.Engine> ENGINES = probeEngines();
+        /** Engine serving calls whose selection has not finished. */
+        static final Metric.Engine DEFAULT =
+            ENGINES.contains(Metric.Engine.VECTOR_API) ? Metric.Engine.VECTOR_API : Metric.Engine.SCALAR;
+
+        private static List<Metric.Engine> probeEngines() {
+            List<Metric.Engine> result = new ArrayList<>();
+            result.add(Metric.Engine.SCALAR);
+
+            if (vectorApiUseful() && works(Metric.Engine.VECTOR_API))
+                result.add(Metric.Engine.VECTOR_API);
+
+            if (simsimdUseful()) {
+                if (works(Metric.Engine.SIMSIMD))
+                    result.add(Metric.Engine.SIMSIMD);
+                if (works(Metric.Engine.SIMSIMD_FFM))
+                    result.add(Metric.Engine.SIMSIMD_FFM);
+            }
+
+            return result;
+        }
+
+        private static boolean vectorApiUseful() {
+            try {
+                return VectorAPI.floatSpecies.vectorBitSize() >= 128;
+            }
+            catch (LinkageError e) {
+                return false;
+            }
+        }
+
+        private static boolean simsimdUseful() {
+            if (!SimSIMD.isLoaded())
+                return false;
+
+            try {
+                for (String capability : SimSIMD.capabilities().split(",")) {
+                    if (!capability.isEmpty() && !capability.equals("serial"))
+                        return true;
+                }
+                return false;
+            }
+            catch (LinkageError e) {
+                return false;
+            }
+        }
+
+        private static boolean works(Metric.Engine engine) {
+            float[] a = {1f, 2f, 3f};
+            float[] b = {3f, 2f, 1f};
+            try {
+                return engine.getMetric().l2Distance(a, b) == 8f;
+            }
+            catch (LinkageError | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    static final class ProbeData {
+        final int dimension;
+        final int halfBytes;
+        final float[] query;
+        final float[][] rows;
+        final ByteBuffer floats;
+        final float[] out = new float[PROBE_VECTORS];
+        final float[] matrixOut = new float[PROBE_MATRIX_ROWS * PROBE_VECTORS];
+        final byte[] byteQuery;
+        final byte[][] byteRows;
+        final ByteBuffer bytes;
+        final ByteBuffer halves;
+        double sink;
+
+        ProbeData(int dimension) {
+            Random random = new Random(dimension);
+
+            this.dimension = dimension;
+            this.halfBytes = dimension * Short.BYTES;
+
+            this.query = randomVector(random, dimension);
+            this.rows = new float[PROBE_VECTORS][];
+            for (int i = 0; i < PROBE_VECTORS; i++)
+                rows[i] = randomVector(random, dimension);
+
+            this.floats = ByteBuffer.allocateDirect(PROBE_VECTORS * dimension * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            for (float[] row : rows) {
+                for (float v : row)
+                    floats.putFloat(v);
+            }
+
+            this.byteQuery = new byte[dimension];
+            random.nextBytes(byteQuery);
+            this.byteRows = new byte[PROBE_VECTORS][dimension];
+            for (byte[] row : byteRows)
+                random.nextBytes(row);
+
+            // Slot 0 holds the query and slots 1..PROBE_VECTORS the candidates.
+            this.bytes = ByteBuffer.allocateDirect((PROBE_VECTORS + 1) * dimension).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < bytes.capacity(); i++)
+                bytes.put(i, (byte)(random.nextInt(255) - 127));
+
+            this.halves = ByteBuffer.allocateDirect((PROBE_VECTORS + 1) * halfBytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < (PROBE_VECTORS + 1) * dimension; i++)
+                halves.putShort(i * Short.BYTES, Float16.fromFloat(random.nextFloat() * 2 - 1));
+        }
+
+        private static float[] randomVector(Random random, int dimension) {
+            float[] vector = new float[dimension];
+            for (int d = 0; d < dimension; d++)
+                vector[d] = random.nextFloat() * 2 - 1;
+            return vector;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package ru.mcashesha.metrics;
+
+public final class Float16 {
+
+    private Float16() {
+    }
+
+    public static short fromFloat(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF)
+            return (short)(sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F)
+            return (short)(sign | 0x7C00);
+
+        if (halfExponent <= 0) {
+            if (halfExponent < -10)
+                return (short)sign;
+
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0))
+                half++;
+
+            return (short)(sign | half);
+        }
+
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0))
+            half++;
+
+        return (short)(sign | half);
+    }
+
+    public static float toFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+
+        if ((bits & 0x7C00) == 0x7C00)
+            return Float.intBitsToFloat(sign | 0x7F800000 | ((bits & 0x3FF) << 13));
+
+        float magnitude = Float.intBitsToFloat((bits & 0x7FFF) << 13) * 0x1p112f;
+
+        return sign != 0 ? -magnitude : magnitude;
+    }
+
+}
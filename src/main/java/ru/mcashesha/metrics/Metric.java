@@ -1,5 +1,8 @@
 package ru.mcashesha.metrics;
 
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
 public interface Metric {
 
     float l2Distance(float[] a, float[] b);
@@ -10,39 +13,207 @@ public interface Metric {
 
     long hammingDistanceB8(byte[] a, byte[] b);
 
+    /**
+     * Buffer arguments must be direct little-endian buffers; offsets are absolute byte offsets that ignore the
+     * buffer position. The SimSIMD engine throws IllegalArgumentException for a heap buffer or a range past the
+     * buffer capacity.
+     */
+    float l2Distance(float[] a, ByteBuffer b, int bOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float dotProduct(float[] a, ByteBuffer b, int bOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float cosineDistance(float[] a, ByteBuffer b, int bOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset);
+
+    void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out);
+
+    void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out);
+
+    void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    /** Same buffer contract as {@link #l2Distance(float[], ByteBuffer, int)}. */
+    float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
     enum Type {
         L2SQ_DISTANCE() {
             @Override public float distance(Engine engine, float[] a, float[] b) {
                 return engine.getMetric().l2Distance(a, b);
             }
+
+            @Override public float distance(Engine engine, float[] a, ByteBuffer b, int bOffset) {
+                return engine.getMetric().l2Distance(a, b, bOffset);
+            }
+
+            @Override public float distanceF16(Engine engine, ByteBuffer a, int aOffset, ByteBuffer b, int bOffset,
+                int length) {
+                return engine.getMetric().l2DistanceF16(a, aOffset, b, bOffset, length);
+            }
+
+            @Override public void distances(Engine engine, float[] a, ByteBuffer b, int bOffset, int count,
+                float[] out, int outOffset) {
+                engine.getMetric().l2Distances(a, b, bOffset, count, out, outOffset);
+            }
+
+            @Override public void distanceMatrix(Engine engine, float[][] a, int aOffset, int aCount, float[][] b,
+                float[] out) {
+                engine.getMetric().l2DistanceMatrix(a, aOffset, aCount, b, out);
+            }
         },
         DOT_PRODUCT {
             @Override public float distance(Engine engine, float[] a, float[] b) {
                 return engine.getMetric().dotProduct(a, b);
             }
+
+            @Override public float distance(Engine engine, float[] a, ByteBuffer b, int bOffset) {
+                return engine.getMetric().dotProduct(a, b, bOffset);
+            }
+
+            @Override public float distanceF16(Engine engine, ByteBuffer a, int aOffset, ByteBuffer b, int bOffset,
+                int length) {
+                return engine.getMetric().dotProductF16(a, aOffset, b, bOffset, length);
+            }
+
+            @Override public void distances(Engine engine, float[] a, ByteBuffer b, int bOffset, int count,
+                float[] out, int outOffset) {
+                engine.getMetric().dotProducts(a, b, bOffset, count, out, outOffset);
+            }
+
+            @Override public void distanceMatrix(Engine engine, float[][] a, int aOffset, int aCount, float[][] b,
+                float[] out) {
+                engine.getMetric().dotProductMatrix(a, aOffset, aCount, b, out);
+            }
         },
         COSINE_DISTANCE {
             @Override public float distance(Engine engine, float[] a, float[] b) {
                 return engine.getMetric().cosineDistance(a, b);
             }
+
+            @Override public float distance(Engine engine, float[] a, ByteBuffer b, int bOffset) {
+                return engine.getMetric().cosineDistance(a, b, bOffset);
+            }
+
+            @Override public float distanceF16(Engine engine, ByteBuffer a, int aOffset, ByteBuffer b, int bOffset,
+                int length) {
+                return engine.getMetric().cosineDistanceF16(a, aOffset, b, bOffset, length);
+            }
+
+            @Override public void distances(Engine engine, float[] a, ByteBuffer b, int bOffset, int count,
+                float[] out, int outOffset) {
+                engine.getMetric().cosineDistances(a, b, bOffset, count, out, outOffset);
+            }
+
+            @Override public void distanceMatrix(Engine engine, float[][] a, int aOffset, int aCount, float[][] b,
+                float[] out) {
+                engine.getMetric().cosineDistanceMatrix(a, aOffset, aCount, b, out);
+            }
         };
 
         public abstract float distance(Engine engine, float[] a, float[] b);
+
+        public abstract float distance(Engine engine, float[] a, ByteBuffer b, int bOffset);
+
+        public abstract float distanceF16(Engine engine, ByteBuffer a, int aOffset, ByteBuffer b, int bOffset,
+            int length);
+
+        /**
+         * Distances from {@code a} to {@code count} vectors of {@code a.length} floats stored back to
+         * back in {@code b} from byte offset {@code bOffset}, written to
+         * {@code out[outOffset .. outOffset + count)}.
+         */
+        public abstract void distances(Engine engine, float[] a, ByteBuffer b, int bOffset, int count,
+            float[] out, int outOffset);
+
+        /**
+         * Distances from rows {@code a[aOffset .. aOffset + aCount)} to every row of {@code b},
+         * written row-major: the distance from {@code a[aOffset + i]} to {@code b[j]} lands in
+         * {@code out[i * b.length + j]}.
+         */
+        public abstract void distanceMatrix(Engine engine, float[][] a, int aOffset, int aCount, float[][] b,
+            float[] out);
     }
 
+    /**
+     * Distance engines. Each engine's implementation is created on the first {@link #getMetric()}
+     * call, so the native library behind SIMSIMD and SIMSIMD_FFM is only loaded by their users.
+     */
     enum Engine {
-        SCALAR(new Scalar()),
-        VECTOR_API(new VectorAPI()),
-        SIMSIMD(new SimSIMD());
+        SCALAR(Scalar::new),
+        VECTOR_API(VectorAPI::new),
+        SIMSIMD(SimSIMD::new),
+        SIMSIMD_FFM(SimSIMDForeign::new),
+        /**
+         * Picks the fastest available engine per kernel and dimension. The pick is timed in the
+         * background from the first use on, with a default engine serving calls meanwhile; see
+         * {@link #resolve(Type, int)} to pick eagerly.
+         */
+        AUTO(AutoMetric::new);
+
+        private final Supplier<Metric> factory;
+        private volatile Metric metric;
 
-        final Metric metric;
+        Engine(Supplier<Metric> factory) {
+            this.factory = factory;
+        }
+
+        /** @throws UnsatisfiedLinkError for a native engine whose library cannot be loaded. */
+        public Metric getMetric() {
+            Metric locMetric = metric;
+            if (locMetric == null) {
+                synchronized (this) {
+                    locMetric = metric;
+                    if (locMetric == null)
+                        metric = locMetric = factory.get();
+                }
+            }
+            return locMetric;
+        }
 
-        Engine(Metric metric) {
-            this.metric = metric;
+        /** Whether this engine's kernels can run in this process, e.g. its native library loaded. */
+        public boolean isAvailable() {
+            return AutoMetric.isAvailable(this);
         }
 
-        Metric getMetric() {
-            return metric;
+        /**
+         * Engine that computes single-pair {@code type} distances of the given dimension: the engine
+         * AUTO selected for them, or this engine itself. For AUTO this waits until the selection has
+         * finished, so calling it at startup keeps the timing off the first searches.
+         */
+        public Engine resolve(Type type, int dimension) {
+            if (this != AUTO)
+                return this;
+
+            switch (type) {
+                case L2SQ_DISTANCE:
+                    return ((AutoMetric)getMetric()).resolve(AutoMetric.Kernel.L2, dimension);
+                case DOT_PRODUCT:
+                    return ((AutoMetric)getMetric()).resolve(AutoMetric.Kernel.DOT, dimension);
+                case COSINE_DISTANCE:
+                    return ((AutoMetric)getMetric()).resolve(AutoMetric.Kernel.COSINE, dimension);
+                default:
+                    throw new IllegalStateException("Unsupported metric type: " + type);
+            }
         }
     }
 
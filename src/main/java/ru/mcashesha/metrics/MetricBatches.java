@@ -0,0 +1,53 @@
+package ru.mcashesha.metrics;
+
+final class MetricBatches {
+    private static final int ROW_BLOCK = 16;
+    private static final int COLUMN_BLOCK = 64;
+
+    private MetricBatches() {
+    }
+
+    @FunctionalInterface
+    interface PairKernel {
+        float apply(float[] a, float[] b);
+    }
+
+    // Tiles rows of a against blocks of b so that a block of b stays cache resident while every
+    // row of the current row block is compared against it.
+    static void matrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out, PairKernel kernel) {
+        int columns = b.length;
+
+        for (int rowBlock = 0; rowBlock < aCount; rowBlock += ROW_BLOCK) {
+            int rowEnd = Math.min(rowBlock + ROW_BLOCK, aCount);
+            for (int columnBlock = 0; columnBlock < columns; columnBlock += COLUMN_BLOCK) {
+                int columnEnd = Math.min(columnBlock + COLUMN_BLOCK, columns);
+                for (int i = rowBlock; i < rowEnd; i++) {
+                    float[] row = a[aOffset + i];
+                    int outRow = i * columns;
+                    for (int j = columnBlock; j < columnEnd; j++)
+                        out[outRow + j] = kernel.apply(row, b[j]);
+                }
+            }
+        }
+    }
+
+    // Every norm is computed once instead of once per pair; only dot products remain in the
+    // quadratic part.
+    static void cosineMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out, Metric metric) {
+        int columns = b.length;
+
+        matrix(a, aOffset, aCount, b, out, metric::dotProduct);
+
+        double[] normsB = new double[columns];
+        for (int j = 0; j < columns; j++)
+            normsB[j] = Math.sqrt(metric.dotProduct(b[j], b[j]));
+
+        for (int i = 0; i < aCount; i++) {
+            float[] row = a[aOffset + i];
+            double normA = Math.sqrt(metric.dotProduct(row, row));
+            int outRow = i * columns;
+            for (int j = 0; j < columns; j++)
+                out[outRow + j] = 1 - (float)(out[outRow + j] / (normA * normsB[j]));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.mcashesha.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * Loads the {@code simsimd_jni} library once per JVM, on first use by {@link SimSIMD} or
+ * {@link SimSIMDForeign}.
+ *
+ * <p>A library on {@code java.library.path} wins, so a freshly built {@code src/main/native/build}
+ * can still be tried without repackaging. Otherwise the copy bundled in the jar under
+ * {@code native/<os>-<arch>/} is extracted to {@code java.io.tmpdir} and loaded from there.
+ */
+final class NativeLibrary {
+    static final String NAME = "simsimd_jni";
+
+    private static final UnsatisfiedLinkError LOAD_ERROR = load();
+
+    private NativeLibrary() {
+    }
+
+    /** Whether the library is loaded; never throws. */
+    static boolean isLoaded() {
+        return LOAD_ERROR == null;
+    }
+
+    /** Throws the load failure, if any, so callers fail with the original cause. */
+    static void ensureLoaded() {
+        if (LOAD_ERROR != null)
+            throw LOAD_ERROR;
+    }
+
+    /** Bundled library for this OS and architecture, e.g. {@code /native/linux-x86_64/libsimsimd_jni.so}. */
+    static String resourcePath() {
+        return "/native/" + platform() + "/" + System.mapLibraryName(NAME);
+    }
+
+    private static UnsatisfiedLinkError load() {
+        try {
+            System.loadLibrary(NAME);
+            return null;
+        }
+        catch (UnsatisfiedLinkError e) {
+            try {
+                System.load(extract().toString());
+                return null;
+            }
+            catch (IOException | UnsatisfiedLinkError | SecurityException bundled) {
+                UnsatisfiedLinkError error = new UnsatisfiedLinkError("Cannot load " + NAME + " from java.library.path "
+                    + "or from the bundled resource " + resourcePath() + ": " + bundled);
+                error.addSuppressed(e);
+                return error;
+            }
+        }
+    }
+
+    private static Path extract() throws IOException {
+        String resource = resourcePath();
+
+        try (InputStream in = NativeLibrary.class.getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IOException("no bundled library for " + platform());
+
+            String fileName = System.mapLibraryName(NAME);
+            int dot = fileName.lastIndexOf('.');
+            Path file = Files.createTempFile(fileName.substring(0, dot) + "-", fileName.substring(dot));
+            file.toFile().deleteOnExit();
+
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        }
+    }
+
+    /** Same {@code <os>-<arch>} naming as the native-platform profiles in the pom. */
+    static String platform() {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        String arch = System.getProperty("os.arch", "").toLowerCase(Locale.ROOT);
+
+        if (os.startsWith("linux"))
+            os = "linux";
+        else if (os.startsWith("mac") || os.startsWith("darwin"))
+            os = "osx";
+        else if (os.startsWith("windows"))
+            os = "windows";
+
+        if (arch.equals("amd64") || arch.equals("x86_64") || arch.equals("x64"))
+            arch = "x86_64";
+        else if (arch.equals("aarch64") || arch.equals("arm64"))
+            arch = "aarch64";
+
+        return os + "-" + arch;
+    }
+}
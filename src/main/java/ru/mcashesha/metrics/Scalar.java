@@ -1,5 +1,7 @@
 package ru.mcashesha.metrics;
 
+import java.nio.ByteBuffer;
+
 class Scalar implements Metric {
 
     @Override public float l2Distance(float[] a, float[] b) {
@@ -41,7 +43,56 @@ class Scalar implements Metric {
         long distance = 0;
 
         for (int i = 0; i < a.length; i++) {
-            int xorVal = a[i] ^ b[i] & 0xFF;
+            int xorVal = (a[i] ^ b[i]) & 0xFF;
+
+            distance += Integer.bitCount(xorVal);
+        }
+
+        return distance;
+    }
+
+    @Override public float l2Distance(float[] a, ByteBuffer b, int bOffset) {
+        float sumSq = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            float diff = a[i] - b.getFloat(bOffset + i * Float.BYTES);
+
+            sumSq += diff * diff;
+        }
+
+        return sumSq;
+    }
+
+    @Override public float dotProduct(float[] a, ByteBuffer b, int bOffset) {
+        float sum = 0;
+
+        for (int i = 0; i < a.length; i++)
+            sum += a[i] * b.getFloat(bOffset + i * Float.BYTES);
+
+        return sum;
+    }
+
+    @Override public float cosineDistance(float[] a, ByteBuffer b, int bOffset) {
+        float dot = 0, sumA = 0, sumB = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            float bi = b.getFloat(bOffset + i * Float.BYTES);
+
+            dot += a[i] * bi;
+
+            sumA += a[i] * a[i];
+
+            sumB += bi * bi;
+        }
+
+        return 1 - (float)(dot / (Math.sqrt(sumA) * Math.sqrt(sumB)));
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset) {
+        long distance = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            int xorVal = (a[i] ^ b.get(bOffset + i)) & 0xFF;
 
             distance += Integer.bitCount(xorVal);
         }
@@ -49,4 +100,184 @@ class Scalar implements Metric {
         return distance;
     }
 
+    @Override public float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int sum = 0;
+
+        for (int i = 0; i < length; i++)
+            sum += a.get(aOffset + i) * b.get(bOffset + i);
+
+        return sum;
+    }
+
+    @Override public float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        float sumSq = 0;
+
+        for (int i = 0; i < length; i++) {
+            float diff = Float16.toFloat(a.getShort(aOffset + i * Short.BYTES))
+                - Float16.toFloat(b.getShort(bOffset + i * Short.BYTES));
+
+            sumSq += diff * diff;
+        }
+
+        return sumSq;
+    }
+
+    @Override public float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+            sum += Float16.toFloat(a.getShort(aOffset + i * Short.BYTES))
+                * Float16.toFloat(b.getShort(bOffset + i * Short.BYTES));
+
+        return sum;
+    }
+
+    @Override public float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        float dot = 0, sumA = 0, sumB = 0;
+
+        for (int i = 0; i < length; i++) {
+            float ai = Float16.toFloat(a.getShort(aOffset + i * Short.BYTES));
+
+            float bi = Float16.toFloat(b.getShort(bOffset + i * Short.BYTES));
+
+            dot += ai * bi;
+
+            sumA += ai * ai;
+
+            sumB += bi * bi;
+        }
+
+        return 1 - (float)(dot / (Math.sqrt(sumA) * Math.sqrt(sumB)));
+    }
+
+    // One-to-many kernels walk four consecutive vectors of b per pass, so every element of a is read once for all
+    // four; the vectors left over after the last full group use the pair kernels.
+    @Override public void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        int stride = a.length * Float.BYTES;
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+            for (int i = 0; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                float d0 = a[i] - b.getFloat(offset0 + byteIndex);
+                float d1 = a[i] - b.getFloat(offset1 + byteIndex);
+                float d2 = a[i] - b.getFloat(offset2 + byteIndex);
+                float d3 = a[i] - b.getFloat(offset3 + byteIndex);
+
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+
+            out[outOffset + j] = s0;
+            out[outOffset + j + 1] = s1;
+            out[outOffset + j + 2] = s2;
+            out[outOffset + j + 3] = s3;
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = l2Distance(a, b, bOffset + j * stride);
+    }
+
+    @Override public void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        int stride = a.length * Float.BYTES;
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+            for (int i = 0; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                s0 += a[i] * b.getFloat(offset0 + byteIndex);
+                s1 += a[i] * b.getFloat(offset1 + byteIndex);
+                s2 += a[i] * b.getFloat(offset2 + byteIndex);
+                s3 += a[i] * b.getFloat(offset3 + byteIndex);
+            }
+
+            out[outOffset + j] = s0;
+            out[outOffset + j + 1] = s1;
+            out[outOffset + j + 2] = s2;
+            out[outOffset + j + 3] = s3;
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = dotProduct(a, b, bOffset + j * stride);
+    }
+
+    // The norm of a is computed once per call; each vector of b only adds its own norm to the dot product.
+    @Override public void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset) {
+        int stride = a.length * Float.BYTES;
+
+        double normA = Math.sqrt(dotProduct(a, a));
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            float n0 = 0, n1 = 0, n2 = 0, n3 = 0;
+
+            for (int i = 0; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                float b0 = b.getFloat(offset0 + byteIndex);
+                float b1 = b.getFloat(offset1 + byteIndex);
+                float b2 = b.getFloat(offset2 + byteIndex);
+                float b3 = b.getFloat(offset3 + byteIndex);
+
+                d0 += a[i] * b0;
+                d1 += a[i] * b1;
+                d2 += a[i] * b2;
+                d3 += a[i] * b3;
+
+                n0 += b0 * b0;
+                n1 += b1 * b1;
+                n2 += b2 * b2;
+                n3 += b3 * b3;
+            }
+
+            out[outOffset + j] = 1 - (float)(d0 / (normA * Math.sqrt(n0)));
+            out[outOffset + j + 1] = 1 - (float)(d1 / (normA * Math.sqrt(n1)));
+            out[outOffset + j + 2] = 1 - (float)(d2 / (normA * Math.sqrt(n2)));
+            out[outOffset + j + 3] = 1 - (float)(d3 / (normA * Math.sqrt(n3)));
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = cosineDistance(a, b, bOffset + j * stride);
+    }
+
+    @Override public void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.matrix(a, aOffset, aCount, b, out, this::l2Distance);
+    }
+
+    @Override public void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.matrix(a, aOffset, aCount, b, out, this::dotProduct);
+    }
+
+    @Override public void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.cosineMatrix(a, aOffset, aCount, b, out, this);
+    }
+
 }
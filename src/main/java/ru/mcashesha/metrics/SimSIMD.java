@@ -1,11 +1,21 @@
 package ru.mcashesha.metrics;
 
+import java.nio.ByteBuffer;
+
 class SimSIMD implements Metric {
 
-    static {
-        System.loadLibrary("simsimd_jni");
+    /** Loads the native library on first use of this engine, failing with the load error if it is missing. */
+    SimSIMD() {
+        NativeLibrary.ensureLoaded();
+    }
+
+    static boolean isLoaded() {
+        return NativeLibrary.isLoaded();
     }
 
+    /** Comma-separated SIMD families SimSIMD dispatches to on this CPU, e.g. {@code "serial,haswell,skylake"}. */
+    static native String capabilities();
+
     @Override public native float l2Distance(float[] a, float[] b);
 
     @Override public native float dotProduct(float[] a, float[] b);
@@ -14,4 +24,53 @@ class SimSIMD implements Metric {
 
     @Override public native long hammingDistanceB8(byte[] a, byte[] b);
 
+    @Override public float l2Distance(float[] a, ByteBuffer b, int bOffset) {
+        return l2DistanceBuffer(a, b, bOffset);
+    }
+
+    @Override public float dotProduct(float[] a, ByteBuffer b, int bOffset) {
+        return dotProductBuffer(a, b, bOffset);
+    }
+
+    @Override public float cosineDistance(float[] a, ByteBuffer b, int bOffset) {
+        return cosineDistanceBuffer(a, b, bOffset);
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset) {
+        return hammingDistanceB8Buffer(a, b, bOffset);
+    }
+
+    @Override public native float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    @Override public native float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    @Override public native float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+    @Override public native float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset,
+        int length);
+
+    @Override public native void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset);
+
+    @Override public native void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset);
+
+    @Override public native void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset);
+
+    @Override public native void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out);
+
+    @Override public native void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out);
+
+    @Override public native void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b,
+        float[] out);
+
+    private native float l2DistanceBuffer(float[] a, ByteBuffer b, int bOffset);
+
+    private native float dotProductBuffer(float[] a, ByteBuffer b, int bOffset);
+
+    private native float cosineDistanceBuffer(float[] a, ByteBuffer b, int bOffset);
+
+    private native long hammingDistanceB8Buffer(byte[] a, ByteBuffer b, int bOffset);
+
 }
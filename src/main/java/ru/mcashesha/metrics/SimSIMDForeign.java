@@ -0,0 +1,316 @@
+package ru.mcashesha.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.SymbolLookup;
+
+/**
+ * SimSIMD kernels bound through the incubating Foreign Function &amp; Memory API instead of JNI.
+ *
+ * <p>Direct and mapped {@link ByteBuffer}s are handed to native code by address, without pinning
+ * or copying. Java 17 cannot pass heap memory to a downcall, so {@code float[]} and
+ * {@code byte[]} operands are copied into per-thread native scratch segments first; the batch
+ * kernels copy the query once per batch.
+ *
+ * <p>Binding the downcalls is a restricted operation: run with
+ * {@code --enable-native-access=ALL-UNNAMED} (and {@code --add-modules jdk.incubator.foreign}).
+ */
+class SimSIMDForeign implements Metric {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static double call(MethodHandle kernel, MemoryAddress a, MemoryAddress b, long n) {
+        try {
+            return (double)kernel.invokeExact(a, b, n);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("SimSIMD downcall failed", e);
+        }
+    }
+
+    private static void callBatch(MethodHandle kernel,
+        MemoryAddress a,
+        MemoryAddress b,
+        long n,
+        long count,
+        MemoryAddress out) {
+        try {
+            kernel.invokeExact(a, b, n, count, out);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("SimSIMD downcall failed", e);
+        }
+    }
+
+    /** Address of absolute byte {@code offset}; the buffer's segment starts at its position. */
+    private static MemoryAddress address(ByteBuffer buffer, int offset) {
+        return MemorySegment.ofByteBuffer(buffer).address().addOffset(offset - buffer.position());
+    }
+
+    private static float pairwise(MethodHandle kernel, float[] a, float[] b) {
+        Scratch scratch = SCRATCH.get();
+        MemorySegment segmentA = scratch.first(a);
+        MemorySegment segmentB = scratch.second(b);
+
+        return (float)call(kernel, segmentA.address(), segmentB.address(), a.length);
+    }
+
+    private static float toBuffer(MethodHandle kernel, float[] a, ByteBuffer b, int bOffset) {
+        MemorySegment segmentA = SCRATCH.get().first(a);
+
+        float distance = (float)call(kernel, segmentA.address(), address(b, bOffset), a.length);
+        Reference.reachabilityFence(b);
+
+        return distance;
+    }
+
+    private static float betweenBuffers(MethodHandle kernel,
+        ByteBuffer a,
+        int aOffset,
+        ByteBuffer b,
+        int bOffset,
+        int length) {
+        float distance = (float)call(kernel, address(a, aOffset), address(b, bOffset), length);
+        Reference.reachabilityFence(a);
+        Reference.reachabilityFence(b);
+
+        return distance;
+    }
+
+    private static void batch(MethodHandle kernel,
+        float[] a,
+        ByteBuffer b,
+        int bOffset,
+        int count,
+        float[] out,
+        int outOffset) {
+        if (count <= 0)
+            return;
+
+        Scratch scratch = SCRATCH.get();
+        MemorySegment segmentA = scratch.first(a);
+        MemorySegment segmentOut = scratch.out(count);
+
+        callBatch(kernel, segmentA.address(), address(b, bOffset), a.length, count, segmentOut.address());
+        Reference.reachabilityFence(b);
+
+        copyOut(segmentOut, count, out, outOffset);
+    }
+
+    private static void matrix(MethodHandle kernel,
+        float[][] a,
+        int aOffset,
+        int aCount,
+        float[][] b,
+        float[] out) {
+        int columns = b.length;
+        if (aCount <= 0 || columns == 0)
+            return;
+
+        int dimension = b[0].length;
+        long rowBytes = (long)dimension * Float.BYTES;
+
+        Scratch scratch = SCRATCH.get();
+        MemorySegment block = scratch.block(columns * rowBytes);
+        for (int j = 0; j < columns; j++)
+            block.asSlice(j * rowBytes, rowBytes).copyFrom(MemorySegment.ofArray(b[j]));
+
+        MemorySegment segmentOut = scratch.out(columns);
+        for (int i = 0; i < aCount; i++) {
+            MemorySegment segmentA = scratch.first(a[aOffset + i]);
+            callBatch(kernel, segmentA.address(), block.address(), dimension, columns, segmentOut.address());
+            copyOut(segmentOut, columns, out, i * columns);
+        }
+    }
+
+    private static void copyOut(MemorySegment segmentOut, int count, float[] out, int outOffset) {
+        long bytes = (long)count * Float.BYTES;
+        MemorySegment.ofArray(out)
+            .asSlice((long)outOffset * Float.BYTES, bytes)
+            .copyFrom(segmentOut.asSlice(0, bytes));
+    }
+
+    @Override public float l2Distance(float[] a, float[] b) {
+        return pairwise(Kernels.L2SQ_F32, a, b);
+    }
+
+    @Override public float dotProduct(float[] a, float[] b) {
+        return pairwise(Kernels.DOT_F32, a, b);
+    }
+
+    @Override public float cosineDistance(float[] a, float[] b) {
+        return pairwise(Kernels.COS_F32, a, b);
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, byte[] b) {
+        Scratch scratch = SCRATCH.get();
+        MemorySegment segmentA = scratch.first(a);
+        MemorySegment segmentB = scratch.second(b);
+
+        return (long)call(Kernels.HAMMING_B8, segmentA.address(), segmentB.address(), a.length);
+    }
+
+    @Override public float l2Distance(float[] a, ByteBuffer b, int bOffset) {
+        return toBuffer(Kernels.L2SQ_F32, a, b, bOffset);
+    }
+
+    @Override public float dotProduct(float[] a, ByteBuffer b, int bOffset) {
+        return toBuffer(Kernels.DOT_F32, a, b, bOffset);
+    }
+
+    @Override public float cosineDistance(float[] a, ByteBuffer b, int bOffset) {
+        return toBuffer(Kernels.COS_F32, a, b, bOffset);
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset) {
+        MemorySegment segmentA = SCRATCH.get().first(a);
+
+        long distance = (long)call(Kernels.HAMMING_B8, segmentA.address(), address(b, bOffset), a.length);
+        Reference.reachabilityFence(b);
+
+        return distance;
+    }
+
+    @Override public void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        batch(Kernels.L2SQ_F32_BATCH, a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        batch(Kernels.DOT_F32_BATCH, a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset) {
+        batch(Kernels.COS_F32_BATCH, a, b, bOffset, count, out, outOffset);
+    }
+
+    @Override public void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        matrix(Kernels.L2SQ_F32_BATCH, a, aOffset, aCount, b, out);
+    }
+
+    @Override public void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        matrix(Kernels.DOT_F32_BATCH, a, aOffset, aCount, b, out);
+    }
+
+    @Override public void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        matrix(Kernels.COS_F32_BATCH, a, aOffset, aCount, b, out);
+    }
+
+    @Override public float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return betweenBuffers(Kernels.DOT_I8, a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return betweenBuffers(Kernels.L2SQ_F16, a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return betweenBuffers(Kernels.DOT_F16, a, aOffset, b, bOffset, length);
+    }
+
+    @Override public float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        return betweenBuffers(Kernels.COS_F16, a, aOffset, b, bOffset, length);
+    }
+
+    /** Downcall handles, bound on first use so a library without the FFM exports only breaks this engine. */
+    private static final class Kernels {
+        static {
+            NativeLibrary.ensureLoaded();
+        }
+
+        private static final MethodHandle L2SQ_F32 = kernel("simsimd_ffm_l2sq_f32");
+        private static final MethodHandle DOT_F32 = kernel("simsimd_ffm_dot_f32");
+        private static final MethodHandle COS_F32 = kernel("simsimd_ffm_cos_f32");
+        private static final MethodHandle L2SQ_F16 = kernel("simsimd_ffm_l2sq_f16");
+        private static final MethodHandle DOT_F16 = kernel("simsimd_ffm_dot_f16");
+        private static final MethodHandle COS_F16 = kernel("simsimd_ffm_cos_f16");
+        private static final MethodHandle DOT_I8 = kernel("simsimd_ffm_dot_i8");
+        private static final MethodHandle HAMMING_B8 = kernel("simsimd_ffm_hamming_b8");
+
+        private static final MethodHandle L2SQ_F32_BATCH = batchKernel("simsimd_ffm_l2sq_f32_batch");
+        private static final MethodHandle DOT_F32_BATCH = batchKernel("simsimd_ffm_dot_f32_batch");
+        private static final MethodHandle COS_F32_BATCH = batchKernel("simsimd_ffm_cos_f32_batch");
+
+        private static MemoryAddress symbol(String name) {
+            return SymbolLookup.loaderLookup()
+                .lookup(name)
+                .orElseThrow(() -> new UnsatisfiedLinkError("symbol " + name + " not found in simsimd_jni"));
+        }
+
+        private static MethodHandle kernel(String name) {
+            return CLinker.getInstance().downcallHandle(
+                symbol(name),
+                MethodType.methodType(double.class, MemoryAddress.class, MemoryAddress.class, long.class),
+                FunctionDescriptor.of(CLinker.C_DOUBLE, CLinker.C_POINTER, CLinker.C_POINTER, CLinker.C_LONG_LONG)
+            );
+        }
+
+        private static MethodHandle batchKernel(String name) {
+            return CLinker.getInstance().downcallHandle(
+                symbol(name),
+                MethodType.methodType(void.class, MemoryAddress.class, MemoryAddress.class, long.class, long.class,
+                    MemoryAddress.class),
+                FunctionDescriptor.ofVoid(CLinker.C_POINTER, CLinker.C_POINTER, CLinker.C_LONG_LONG, CLinker.C_LONG_LONG,
+                    CLinker.C_POINTER)
+            );
+        }
+    }
+
+    private static final class Scratch {
+        private MemorySegment first = allocate(0);
+        private MemorySegment second = allocate(0);
+        private MemorySegment out = allocate(0);
+        private MemorySegment block = allocate(0);
+
+        private static MemorySegment allocate(long bytes) {
+            return MemorySegment.allocateNative(Math.max(bytes, Float.BYTES), Float.BYTES,
+                ResourceScope.newImplicitScope());
+        }
+
+        MemorySegment first(float[] values) {
+            first = ensure(first, (long)values.length * Float.BYTES);
+            first.copyFrom(MemorySegment.ofArray(values));
+            return first;
+        }
+
+        MemorySegment first(byte[] values) {
+            first = ensure(first, values.length);
+            first.copyFrom(MemorySegment.ofArray(values));
+            return first;
+        }
+
+        MemorySegment second(float[] values) {
+            second = ensure(second, (long)values.length * Float.BYTES);
+            second.copyFrom(MemorySegment.ofArray(values));
+            return second;
+        }
+
+        MemorySegment second(byte[] values) {
+            second = ensure(second, values.length);
+            second.copyFrom(MemorySegment.ofArray(values));
+            return second;
+        }
+
+        MemorySegment out(int count) {
+            out = ensure(out, (long)count * Float.BYTES);
+            return out;
+        }
+
+        MemorySegment block(long bytes) {
+            block = ensure(block, bytes);
+            return block;
+        }
+
+        private static MemorySegment ensure(MemorySegment segment, long bytes) {
+            return segment.byteSize() >= bytes ? segment : allocate(bytes);
+        }
+    }
+
+}
@@ -1,34 +1,127 @@
 package ru.mcashesha.metrics;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 
 class VectorAPI implements Metric {
 
     static final VectorSpecies<Float> floatSpecies = FloatVector.SPECIES_PREFERRED;
 
+    private static final int POPCOUNT_BLOCK = 31;
+
     static final VectorSpecies<Byte> byteSpecies = ByteVector.SPECIES_PREFERRED;
 
+    static final VectorSpecies<Long> longSpecies = VectorSpecies.of(long.class, byteSpecies.vectorShape());
+
+    static final VectorSpecies<Integer> intSpecies = VectorSpecies.of(int.class, floatSpecies.vectorShape());
+
+    // Narrow species with the same lane count as floatSpecies, used to widen fp16 and int8 lanes; null when the
+    // required shape does not exist and the kernels fall back to their scalar tail loops.
+    static final VectorSpecies<Short> halfSpecies = narrowSpecies(short.class, 2);
+
+    static final VectorSpecies<Byte> quarterSpecies = narrowSpecies(byte.class, 4);
+
+    private static <E> VectorSpecies<E> narrowSpecies(Class<E> elementType, int ratio) {
+        int bitSize = floatSpecies.vectorBitSize() / ratio;
+        if (bitSize < 64)
+            return null;
+        return VectorSpecies.of(elementType, VectorShape.forBitSize(bitSize));
+    }
+
+    private static int loopBound(VectorSpecies<?> species, int length) {
+        return species == null ? 0 : species.loopBound(length);
+    }
+
+    // Exact for zero, subnormal and normal halves; the index never stores infinities or NaNs.
+    private static FloatVector halfToFloat(ShortVector halves) {
+        IntVector bits = (IntVector)halves.convertShape(VectorOperators.S2I, intSpecies, 0);
+
+        IntVector magnitude = bits.and(0x7FFF).lanewise(VectorOperators.LSHL, 13);
+
+        IntVector sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+
+        FloatVector value = magnitude.reinterpretAsFloats().mul(0x1p112f);
+
+        return value.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
+    // Float kernels keep four independent accumulators (two triples for cosine) so consecutive FMAs do not wait on
+    // each other; the accumulators are summed and reduced once, after the loop.
+    private static int unrolledBound(int length) {
+        int block = 4 * floatSpecies.length();
+        return length - length % block;
+    }
+
+    // SWAR popcount of every byte of every lane; there is no lanewise BIT_COUNT before JDK 19.
+    private static LongVector bytePopCounts(LongVector bits) {
+        LongVector counts = bits.sub(bits.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+
+        counts = counts.and(0x3333333333333333L)
+            .add(counts.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+
+        return counts.add(counts.lanewise(VectorOperators.LSHR, 4)).and(0x0F0F0F0F0F0F0F0FL);
+    }
+
+    // Folds per-byte counts into one count per long lane; bytes hold at most 8 * POPCOUNT_BLOCK, so they do not carry.
+    private static LongVector sumByteCounts(LongVector byteCounts) {
+        LongVector sums = byteCounts.and(0x00FF00FF00FF00FFL)
+            .add(byteCounts.lanewise(VectorOperators.LSHR, 8).and(0x00FF00FF00FF00FFL));
+
+        sums = sums.and(0x0000FFFF0000FFFFL).add(sums.lanewise(VectorOperators.LSHR, 16).and(0x0000FFFF0000FFFFL));
+
+        return sums.and(0x00000000FFFFFFFFL).add(sums.lanewise(VectorOperators.LSHR, 32));
+    }
+
     @Override public float l2Distance(float[] a, float[] b) {
-        FloatVector vectorSumSquares = FloatVector.zero(floatSpecies);
+        FloatVector sum0 = FloatVector.zero(floatSpecies);
+        FloatVector sum1 = FloatVector.zero(floatSpecies);
+        FloatVector sum2 = FloatVector.zero(floatSpecies);
+        FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+        int step = floatSpecies.length();
 
         int index = 0;
 
-        int upperBound = floatSpecies.loopBound(a.length);
+        int unrolledBound = unrolledBound(a.length);
 
-        for (; index < upperBound; index += floatSpecies.length()) {
-            FloatVector vectorA = FloatVector.fromArray(floatSpecies, a, index);
+        for (; index < unrolledBound; index += 4 * step) {
+            FloatVector diff0 = FloatVector.fromArray(floatSpecies, a, index)
+                .sub(FloatVector.fromArray(floatSpecies, b, index));
 
-            FloatVector vectorB = FloatVector.fromArray(floatSpecies, b, index);
+            FloatVector diff1 = FloatVector.fromArray(floatSpecies, a, index + step)
+                .sub(FloatVector.fromArray(floatSpecies, b, index + step));
 
-            FloatVector vectorDiff = vectorA.sub(vectorB);
+            FloatVector diff2 = FloatVector.fromArray(floatSpecies, a, index + 2 * step)
+                .sub(FloatVector.fromArray(floatSpecies, b, index + 2 * step));
 
-            vectorSumSquares = vectorDiff.fma(vectorDiff, vectorSumSquares);
+            FloatVector diff3 = FloatVector.fromArray(floatSpecies, a, index + 3 * step)
+                .sub(FloatVector.fromArray(floatSpecies, b, index + 3 * step));
+
+            sum0 = diff0.fma(diff0, sum0);
+            sum1 = diff1.fma(diff1, sum1);
+            sum2 = diff2.fma(diff2, sum2);
+            sum3 = diff3.fma(diff3, sum3);
         }
 
-        float sumSquares = vectorSumSquares.reduceLanes(VectorOperators.ADD);
+        int upperBound = floatSpecies.loopBound(a.length);
+
+        for (; index < upperBound; index += step) {
+            FloatVector diff = FloatVector.fromArray(floatSpecies, a, index)
+                .sub(FloatVector.fromArray(floatSpecies, b, index));
+
+            sum0 = diff.fma(diff, sum0);
+        }
+
+        float sumSquares = sum0.add(sum1).add(sum2.add(sum3)).reduceLanes(VectorOperators.ADD);
 
         for (; index < a.length; index++) {
             float diff = a[index] - b[index];
@@ -40,22 +133,38 @@ class VectorAPI implements Metric {
     }
 
     @Override public float dotProduct(float[] a, float[] b) {
-        float sum = 0;
+        FloatVector sum0 = FloatVector.zero(floatSpecies);
+        FloatVector sum1 = FloatVector.zero(floatSpecies);
+        FloatVector sum2 = FloatVector.zero(floatSpecies);
+        FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+        int step = floatSpecies.length();
 
         int i = 0;
 
-        int upperBound = floatSpecies.loopBound(a.length);
+        int unrolledBound = unrolledBound(a.length);
 
-        for (; i < upperBound; i += floatSpecies.length()) {
-            FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+        for (; i < unrolledBound; i += 4 * step) {
+            sum0 = FloatVector.fromArray(floatSpecies, a, i)
+                .fma(FloatVector.fromArray(floatSpecies, b, i), sum0);
 
-            FloatVector vb = FloatVector.fromArray(floatSpecies, b, i);
+            sum1 = FloatVector.fromArray(floatSpecies, a, i + step)
+                .fma(FloatVector.fromArray(floatSpecies, b, i + step), sum1);
 
-            float partialDot = va.mul(vb).reduceLanes(VectorOperators.ADD);
+            sum2 = FloatVector.fromArray(floatSpecies, a, i + 2 * step)
+                .fma(FloatVector.fromArray(floatSpecies, b, i + 2 * step), sum2);
 
-            sum += partialDot;
+            sum3 = FloatVector.fromArray(floatSpecies, a, i + 3 * step)
+                .fma(FloatVector.fromArray(floatSpecies, b, i + 3 * step), sum3);
         }
 
+        int upperBound = floatSpecies.loopBound(a.length);
+
+        for (; i < upperBound; i += step)
+            sum0 = FloatVector.fromArray(floatSpecies, a, i).fma(FloatVector.fromArray(floatSpecies, b, i), sum0);
+
+        float sum = sum0.add(sum1).add(sum2.add(sum3)).reduceLanes(VectorOperators.ADD);
+
         for (; i < a.length; i++)
             sum += a[i] * b[i];
 
@@ -63,22 +172,49 @@ class VectorAPI implements Metric {
     }
 
     @Override public float cosineDistance(float[] a, float[] b) {
-        float dot = 0, sumA = 0, sumB = 0;
+        FloatVector dot0 = FloatVector.zero(floatSpecies);
+        FloatVector dot1 = FloatVector.zero(floatSpecies);
+        FloatVector sumA0 = FloatVector.zero(floatSpecies);
+        FloatVector sumA1 = FloatVector.zero(floatSpecies);
+        FloatVector sumB0 = FloatVector.zero(floatSpecies);
+        FloatVector sumB1 = FloatVector.zero(floatSpecies);
 
-        int i = 0, bound = floatSpecies.loopBound(a.length);
+        int step = floatSpecies.length();
 
-        for (; i < bound; i += floatSpecies.length()) {
-            FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+        int i = 0, pairedBound = floatSpecies.loopBound(a.length / 2) * 2;
 
-            FloatVector vb = FloatVector.fromArray(floatSpecies, b, i);
+        for (; i < pairedBound; i += 2 * step) {
+            FloatVector va0 = FloatVector.fromArray(floatSpecies, a, i);
+            FloatVector vb0 = FloatVector.fromArray(floatSpecies, b, i);
 
-            dot += va.mul(vb).reduceLanes(VectorOperators.ADD);
+            FloatVector va1 = FloatVector.fromArray(floatSpecies, a, i + step);
+            FloatVector vb1 = FloatVector.fromArray(floatSpecies, b, i + step);
 
-            sumA += va.mul(va).reduceLanes(VectorOperators.ADD);
+            dot0 = va0.fma(vb0, dot0);
+            sumA0 = va0.fma(va0, sumA0);
+            sumB0 = vb0.fma(vb0, sumB0);
 
-            sumB += vb.mul(vb).reduceLanes(VectorOperators.ADD);
+            dot1 = va1.fma(vb1, dot1);
+            sumA1 = va1.fma(va1, sumA1);
+            sumB1 = vb1.fma(vb1, sumB1);
         }
 
+        int bound = floatSpecies.loopBound(a.length);
+
+        for (; i < bound; i += step) {
+            FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+            FloatVector vb = FloatVector.fromArray(floatSpecies, b, i);
+
+            dot0 = va.fma(vb, dot0);
+            sumA0 = va.fma(va, sumA0);
+            sumB0 = vb.fma(vb, sumB0);
+        }
+
+        float dot = dot0.add(dot1).reduceLanes(VectorOperators.ADD);
+        float sumA = sumA0.add(sumA1).reduceLanes(VectorOperators.ADD);
+        float sumB = sumB0.add(sumB1).reduceLanes(VectorOperators.ADD);
+
         for (; i < a.length; i++) {
             dot += a[i] * b[i];
 
@@ -88,32 +224,233 @@ class VectorAPI implements Metric {
         }
 
         return 1 - (float)(dot / (Math.sqrt(sumA) * Math.sqrt(sumB)));
-
     }
 
     @Override public long hammingDistanceB8(byte[] a, byte[] b) {
-        long distance = 0;
+        LongVector total = LongVector.zero(longSpecies);
 
         int index = 0;
 
         int upperBound = byteSpecies.loopBound(a.length);
 
-        for (; index < upperBound; index += byteSpecies.length()) {
-            ByteVector vectorA = ByteVector.fromArray(byteSpecies, a, index);
+        while (index < upperBound) {
+            LongVector byteCounts = LongVector.zero(longSpecies);
+
+            int blockBound = Math.min(upperBound, index + POPCOUNT_BLOCK * byteSpecies.length());
+
+            for (; index < blockBound; index += byteSpecies.length()) {
+                ByteVector vectorXor = ByteVector.fromArray(byteSpecies, a, index)
+                    .lanewise(VectorOperators.XOR, ByteVector.fromArray(byteSpecies, b, index));
+
+                byteCounts = byteCounts.add(bytePopCounts(vectorXor.reinterpretAsLongs()));
+            }
+
+            total = total.add(sumByteCounts(byteCounts));
+        }
+
+        long distance = total.reduceLanes(VectorOperators.ADD);
+
+        for (; index < a.length; index++) {
+            int xorValue = (a[index] ^ b[index]) & 0xFF;
+
+            distance += Integer.bitCount(xorValue);
+        }
+
+        return distance;
+    }
+
+    @Override public float l2Distance(float[] a, ByteBuffer b, int bOffset) {
+        FloatVector sum0 = FloatVector.zero(floatSpecies);
+        FloatVector sum1 = FloatVector.zero(floatSpecies);
+        FloatVector sum2 = FloatVector.zero(floatSpecies);
+        FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int index = 0;
+
+        int unrolledBound = unrolledBound(a.length);
+
+        for (; index < unrolledBound; index += 4 * step) {
+            int offset = bOffset + index * Float.BYTES;
+
+            FloatVector diff0 = FloatVector.fromArray(floatSpecies, a, index)
+                .sub(FloatVector.fromByteBuffer(floatSpecies, b, offset, order));
+
+            FloatVector diff1 = FloatVector.fromArray(floatSpecies, a, index + step)
+                .sub(FloatVector.fromByteBuffer(floatSpecies, b, offset + step * Float.BYTES, order));
+
+            FloatVector diff2 = FloatVector.fromArray(floatSpecies, a, index + 2 * step)
+                .sub(FloatVector.fromByteBuffer(floatSpecies, b, offset + 2 * step * Float.BYTES, order));
+
+            FloatVector diff3 = FloatVector.fromArray(floatSpecies, a, index + 3 * step)
+                .sub(FloatVector.fromByteBuffer(floatSpecies, b, offset + 3 * step * Float.BYTES, order));
+
+            sum0 = diff0.fma(diff0, sum0);
+            sum1 = diff1.fma(diff1, sum1);
+            sum2 = diff2.fma(diff2, sum2);
+            sum3 = diff3.fma(diff3, sum3);
+        }
+
+        int upperBound = floatSpecies.loopBound(a.length);
+
+        for (; index < upperBound; index += step) {
+            FloatVector diff = FloatVector.fromArray(floatSpecies, a, index)
+                .sub(FloatVector.fromByteBuffer(floatSpecies, b, bOffset + index * Float.BYTES, order));
+
+            sum0 = diff.fma(diff, sum0);
+        }
+
+        float sumSquares = sum0.add(sum1).add(sum2.add(sum3)).reduceLanes(VectorOperators.ADD);
+
+        for (; index < a.length; index++) {
+            float diff = a[index] - b.getFloat(bOffset + index * Float.BYTES);
+
+            sumSquares += diff * diff;
+        }
+
+        return sumSquares;
+    }
+
+    @Override public float dotProduct(float[] a, ByteBuffer b, int bOffset) {
+        FloatVector sum0 = FloatVector.zero(floatSpecies);
+        FloatVector sum1 = FloatVector.zero(floatSpecies);
+        FloatVector sum2 = FloatVector.zero(floatSpecies);
+        FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int i = 0;
+
+        int unrolledBound = unrolledBound(a.length);
+
+        for (; i < unrolledBound; i += 4 * step) {
+            int offset = bOffset + i * Float.BYTES;
+
+            sum0 = FloatVector.fromArray(floatSpecies, a, i)
+                .fma(FloatVector.fromByteBuffer(floatSpecies, b, offset, order), sum0);
+
+            sum1 = FloatVector.fromArray(floatSpecies, a, i + step)
+                .fma(FloatVector.fromByteBuffer(floatSpecies, b, offset + step * Float.BYTES, order), sum1);
+
+            sum2 = FloatVector.fromArray(floatSpecies, a, i + 2 * step)
+                .fma(FloatVector.fromByteBuffer(floatSpecies, b, offset + 2 * step * Float.BYTES, order), sum2);
+
+            sum3 = FloatVector.fromArray(floatSpecies, a, i + 3 * step)
+                .fma(FloatVector.fromByteBuffer(floatSpecies, b, offset + 3 * step * Float.BYTES, order), sum3);
+        }
+
+        int upperBound = floatSpecies.loopBound(a.length);
+
+        for (; i < upperBound; i += step) {
+            FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+            FloatVector vb = FloatVector.fromByteBuffer(floatSpecies, b, bOffset + i * Float.BYTES, order);
+
+            sum0 = va.fma(vb, sum0);
+        }
+
+        float sum = sum0.add(sum1).add(sum2.add(sum3)).reduceLanes(VectorOperators.ADD);
+
+        for (; i < a.length; i++)
+            sum += a[i] * b.getFloat(bOffset + i * Float.BYTES);
+
+        return sum;
+    }
+
+    @Override public float cosineDistance(float[] a, ByteBuffer b, int bOffset) {
+        FloatVector dot0 = FloatVector.zero(floatSpecies);
+        FloatVector dot1 = FloatVector.zero(floatSpecies);
+        FloatVector sumA0 = FloatVector.zero(floatSpecies);
+        FloatVector sumA1 = FloatVector.zero(floatSpecies);
+        FloatVector sumB0 = FloatVector.zero(floatSpecies);
+        FloatVector sumB1 = FloatVector.zero(floatSpecies);
+
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int i = 0, pairedBound = floatSpecies.loopBound(a.length / 2) * 2;
+
+        for (; i < pairedBound; i += 2 * step) {
+            int offset = bOffset + i * Float.BYTES;
+
+            FloatVector va0 = FloatVector.fromArray(floatSpecies, a, i);
+            FloatVector vb0 = FloatVector.fromByteBuffer(floatSpecies, b, offset, order);
+
+            FloatVector va1 = FloatVector.fromArray(floatSpecies, a, i + step);
+            FloatVector vb1 = FloatVector.fromByteBuffer(floatSpecies, b, offset + step * Float.BYTES, order);
+
+            dot0 = va0.fma(vb0, dot0);
+            sumA0 = va0.fma(va0, sumA0);
+            sumB0 = vb0.fma(vb0, sumB0);
+
+            dot1 = va1.fma(vb1, dot1);
+            sumA1 = va1.fma(va1, sumA1);
+            sumB1 = vb1.fma(vb1, sumB1);
+        }
+
+        int bound = floatSpecies.loopBound(a.length);
+
+        for (; i < bound; i += step) {
+            FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+            FloatVector vb = FloatVector.fromByteBuffer(floatSpecies, b, bOffset + i * Float.BYTES, order);
+
+            dot0 = va.fma(vb, dot0);
+            sumA0 = va.fma(va, sumA0);
+            sumB0 = vb.fma(vb, sumB0);
+        }
+
+        float dot = dot0.add(dot1).reduceLanes(VectorOperators.ADD);
+        float sumA = sumA0.add(sumA1).reduceLanes(VectorOperators.ADD);
+        float sumB = sumB0.add(sumB1).reduceLanes(VectorOperators.ADD);
+
+        for (; i < a.length; i++) {
+            float bi = b.getFloat(bOffset + i * Float.BYTES);
+
+            dot += a[i] * bi;
+
+            sumA += a[i] * a[i];
+
+            sumB += bi * bi;
+        }
+
+        return 1 - (float)(dot / (Math.sqrt(sumA) * Math.sqrt(sumB)));
+    }
+
+    @Override public long hammingDistanceB8(byte[] a, ByteBuffer b, int bOffset) {
+        LongVector total = LongVector.zero(longSpecies);
+
+        ByteOrder order = ByteOrder.nativeOrder();
 
-            ByteVector vectorB = ByteVector.fromArray(byteSpecies, b, index);
+        int index = 0;
+
+        int upperBound = byteSpecies.loopBound(a.length);
 
-            ByteVector vectorXor = vectorA.lanewise(VectorOperators.XOR, vectorB);
+        while (index < upperBound) {
+            LongVector byteCounts = LongVector.zero(longSpecies);
 
-            for (int lane = 0; lane < byteSpecies.length(); lane++) {
-                int xorValue = vectorXor.lane(lane);
+            int blockBound = Math.min(upperBound, index + POPCOUNT_BLOCK * byteSpecies.length());
 
-                distance += Integer.bitCount(xorValue);
+            for (; index < blockBound; index += byteSpecies.length()) {
+                ByteVector vectorXor = ByteVector.fromArray(byteSpecies, a, index)
+                    .lanewise(VectorOperators.XOR, ByteVector.fromByteBuffer(byteSpecies, b, bOffset + index, order));
+
+                byteCounts = byteCounts.add(bytePopCounts(vectorXor.reinterpretAsLongs()));
             }
+
+            total = total.add(sumByteCounts(byteCounts));
         }
 
+        long distance = total.reduceLanes(VectorOperators.ADD);
+
         for (; index < a.length; index++) {
-            int xorValue = a[index] ^ b[index];
+            int xorValue = (a[index] ^ b.get(bOffset + index)) & 0xFF;
 
             distance += Integer.bitCount(xorValue);
         }
@@ -121,4 +458,363 @@ class VectorAPI implements Metric {
         return distance;
     }
 
+    @Override public float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        IntVector vectorSum = IntVector.zero(intSpecies);
+
+        ByteOrder order = ByteOrder.nativeOrder();
+
+        int i = 0;
+
+        int upperBound = loopBound(quarterSpecies, length);
+
+        for (; i < upperBound; i += quarterSpecies.length()) {
+            ByteVector va = ByteVector.fromByteBuffer(quarterSpecies, a, aOffset + i, order);
+
+            ByteVector vb = ByteVector.fromByteBuffer(quarterSpecies, b, bOffset + i, order);
+
+            IntVector wa = (IntVector)va.convertShape(VectorOperators.B2I, intSpecies, 0);
+
+            IntVector wb = (IntVector)vb.convertShape(VectorOperators.B2I, intSpecies, 0);
+
+            vectorSum = wa.mul(wb).add(vectorSum);
+        }
+
+        int sum = vectorSum.reduceLanes(VectorOperators.ADD);
+
+        for (; i < length; i++)
+            sum += a.get(aOffset + i) * b.get(bOffset + i);
+
+        return sum;
+    }
+
+    @Override public float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        FloatVector vectorSumSquares = FloatVector.zero(floatSpecies);
+
+        int index = 0;
+
+        int upperBound = loopBound(halfSpecies, length);
+
+        for (; index < upperBound; index += halfSpecies.length()) {
+            FloatVector vectorA = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, a, aOffset + index * Short.BYTES, a.order()));
+
+            FloatVector vectorB = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, b, bOffset + index * Short.BYTES, b.order()));
+
+            FloatVector vectorDiff = vectorA.sub(vectorB);
+
+            vectorSumSquares = vectorDiff.fma(vectorDiff, vectorSumSquares);
+        }
+
+        float sumSquares = vectorSumSquares.reduceLanes(VectorOperators.ADD);
+
+        for (; index < length; index++) {
+            float diff = Float16.toFloat(a.getShort(aOffset + index * Short.BYTES))
+                - Float16.toFloat(b.getShort(bOffset + index * Short.BYTES));
+
+            sumSquares += diff * diff;
+        }
+
+        return sumSquares;
+    }
+
+    @Override public float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        FloatVector vectorSum = FloatVector.zero(floatSpecies);
+
+        int i = 0;
+
+        int upperBound = loopBound(halfSpecies, length);
+
+        for (; i < upperBound; i += halfSpecies.length()) {
+            FloatVector va = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, a, aOffset + i * Short.BYTES, a.order()));
+
+            FloatVector vb = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, b, bOffset + i * Short.BYTES, b.order()));
+
+            vectorSum = va.fma(vb, vectorSum);
+        }
+
+        float sum = vectorSum.reduceLanes(VectorOperators.ADD);
+
+        for (; i < length; i++)
+            sum += Float16.toFloat(a.getShort(aOffset + i * Short.BYTES))
+                * Float16.toFloat(b.getShort(bOffset + i * Short.BYTES));
+
+        return sum;
+    }
+
+    @Override public float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        FloatVector vectorDot = FloatVector.zero(floatSpecies);
+        FloatVector vectorSumA = FloatVector.zero(floatSpecies);
+        FloatVector vectorSumB = FloatVector.zero(floatSpecies);
+
+        int i = 0, bound = loopBound(halfSpecies, length);
+
+        for (; i < bound; i += halfSpecies.length()) {
+            FloatVector va = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, a, aOffset + i * Short.BYTES, a.order()));
+
+            FloatVector vb = halfToFloat(
+                ShortVector.fromByteBuffer(halfSpecies, b, bOffset + i * Short.BYTES, b.order()));
+
+            vectorDot = va.fma(vb, vectorDot);
+
+            vectorSumA = va.fma(va, vectorSumA);
+
+            vectorSumB = vb.fma(vb, vectorSumB);
+        }
+
+        float dot = vectorDot.reduceLanes(VectorOperators.ADD);
+        float sumA = vectorSumA.reduceLanes(VectorOperators.ADD);
+        float sumB = vectorSumB.reduceLanes(VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            float ai = Float16.toFloat(a.getShort(aOffset + i * Short.BYTES));
+
+            float bi = Float16.toFloat(b.getShort(bOffset + i * Short.BYTES));
+
+            dot += ai * bi;
+
+            sumA += ai * ai;
+
+            sumB += bi * bi;
+        }
+
+        return 1 - (float)(dot / (Math.sqrt(sumA) * Math.sqrt(sumB)));
+    }
+
+    // One-to-many kernels score four consecutive vectors of b per pass: every lane block of a is loaded once and
+    // feeds one accumulator per vector, and the vectors left over after the last full group use the pair kernels.
+    @Override public void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int stride = a.length * Float.BYTES;
+
+        int bound = floatSpecies.loopBound(a.length);
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            FloatVector sum0 = FloatVector.zero(floatSpecies);
+            FloatVector sum1 = FloatVector.zero(floatSpecies);
+            FloatVector sum2 = FloatVector.zero(floatSpecies);
+            FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+            int i = 0;
+
+            for (; i < bound; i += step) {
+                int byteIndex = i * Float.BYTES;
+
+                FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+                FloatVector diff0 = va.sub(FloatVector.fromByteBuffer(floatSpecies, b, offset0 + byteIndex, order));
+                FloatVector diff1 = va.sub(FloatVector.fromByteBuffer(floatSpecies, b, offset1 + byteIndex, order));
+                FloatVector diff2 = va.sub(FloatVector.fromByteBuffer(floatSpecies, b, offset2 + byteIndex, order));
+                FloatVector diff3 = va.sub(FloatVector.fromByteBuffer(floatSpecies, b, offset3 + byteIndex, order));
+
+                sum0 = diff0.fma(diff0, sum0);
+                sum1 = diff1.fma(diff1, sum1);
+                sum2 = diff2.fma(diff2, sum2);
+                sum3 = diff3.fma(diff3, sum3);
+            }
+
+            float s0 = sum0.reduceLanes(VectorOperators.ADD);
+            float s1 = sum1.reduceLanes(VectorOperators.ADD);
+            float s2 = sum2.reduceLanes(VectorOperators.ADD);
+            float s3 = sum3.reduceLanes(VectorOperators.ADD);
+
+            for (; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                float d0 = a[i] - b.getFloat(offset0 + byteIndex);
+                float d1 = a[i] - b.getFloat(offset1 + byteIndex);
+                float d2 = a[i] - b.getFloat(offset2 + byteIndex);
+                float d3 = a[i] - b.getFloat(offset3 + byteIndex);
+
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+
+            out[outOffset + j] = s0;
+            out[outOffset + j + 1] = s1;
+            out[outOffset + j + 2] = s2;
+            out[outOffset + j + 3] = s3;
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = l2Distance(a, b, bOffset + j * stride);
+    }
+
+    @Override public void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset) {
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int stride = a.length * Float.BYTES;
+
+        int bound = floatSpecies.loopBound(a.length);
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            FloatVector sum0 = FloatVector.zero(floatSpecies);
+            FloatVector sum1 = FloatVector.zero(floatSpecies);
+            FloatVector sum2 = FloatVector.zero(floatSpecies);
+            FloatVector sum3 = FloatVector.zero(floatSpecies);
+
+            int i = 0;
+
+            for (; i < bound; i += step) {
+                int byteIndex = i * Float.BYTES;
+
+                FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+                sum0 = va.fma(FloatVector.fromByteBuffer(floatSpecies, b, offset0 + byteIndex, order), sum0);
+                sum1 = va.fma(FloatVector.fromByteBuffer(floatSpecies, b, offset1 + byteIndex, order), sum1);
+                sum2 = va.fma(FloatVector.fromByteBuffer(floatSpecies, b, offset2 + byteIndex, order), sum2);
+                sum3 = va.fma(FloatVector.fromByteBuffer(floatSpecies, b, offset3 + byteIndex, order), sum3);
+            }
+
+            float s0 = sum0.reduceLanes(VectorOperators.ADD);
+            float s1 = sum1.reduceLanes(VectorOperators.ADD);
+            float s2 = sum2.reduceLanes(VectorOperators.ADD);
+            float s3 = sum3.reduceLanes(VectorOperators.ADD);
+
+            for (; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                s0 += a[i] * b.getFloat(offset0 + byteIndex);
+                s1 += a[i] * b.getFloat(offset1 + byteIndex);
+                s2 += a[i] * b.getFloat(offset2 + byteIndex);
+                s3 += a[i] * b.getFloat(offset3 + byteIndex);
+            }
+
+            out[outOffset + j] = s0;
+            out[outOffset + j + 1] = s1;
+            out[outOffset + j + 2] = s2;
+            out[outOffset + j + 3] = s3;
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = dotProduct(a, b, bOffset + j * stride);
+    }
+
+    // The norm of a is computed once per call; each vector of b only adds its own norm to the dot product.
+    @Override public void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out,
+        int outOffset) {
+        ByteOrder order = b.order();
+
+        int step = floatSpecies.length();
+
+        int stride = a.length * Float.BYTES;
+
+        int bound = floatSpecies.loopBound(a.length);
+
+        double normA = Math.sqrt(dotProduct(a, a));
+
+        int j = 0;
+
+        for (; j + 4 <= count; j += 4) {
+            int offset0 = bOffset + j * stride;
+            int offset1 = offset0 + stride;
+            int offset2 = offset1 + stride;
+            int offset3 = offset2 + stride;
+
+            FloatVector dot0 = FloatVector.zero(floatSpecies);
+            FloatVector dot1 = FloatVector.zero(floatSpecies);
+            FloatVector dot2 = FloatVector.zero(floatSpecies);
+            FloatVector dot3 = FloatVector.zero(floatSpecies);
+            FloatVector sumB0 = FloatVector.zero(floatSpecies);
+            FloatVector sumB1 = FloatVector.zero(floatSpecies);
+            FloatVector sumB2 = FloatVector.zero(floatSpecies);
+            FloatVector sumB3 = FloatVector.zero(floatSpecies);
+
+            int i = 0;
+
+            for (; i < bound; i += step) {
+                int byteIndex = i * Float.BYTES;
+
+                FloatVector va = FloatVector.fromArray(floatSpecies, a, i);
+
+                FloatVector vb0 = FloatVector.fromByteBuffer(floatSpecies, b, offset0 + byteIndex, order);
+                FloatVector vb1 = FloatVector.fromByteBuffer(floatSpecies, b, offset1 + byteIndex, order);
+                FloatVector vb2 = FloatVector.fromByteBuffer(floatSpecies, b, offset2 + byteIndex, order);
+                FloatVector vb3 = FloatVector.fromByteBuffer(floatSpecies, b, offset3 + byteIndex, order);
+
+                dot0 = va.fma(vb0, dot0);
+                dot1 = va.fma(vb1, dot1);
+                dot2 = va.fma(vb2, dot2);
+                dot3 = va.fma(vb3, dot3);
+
+                sumB0 = vb0.fma(vb0, sumB0);
+                sumB1 = vb1.fma(vb1, sumB1);
+                sumB2 = vb2.fma(vb2, sumB2);
+                sumB3 = vb3.fma(vb3, sumB3);
+            }
+
+            float d0 = dot0.reduceLanes(VectorOperators.ADD);
+            float d1 = dot1.reduceLanes(VectorOperators.ADD);
+            float d2 = dot2.reduceLanes(VectorOperators.ADD);
+            float d3 = dot3.reduceLanes(VectorOperators.ADD);
+            float n0 = sumB0.reduceLanes(VectorOperators.ADD);
+            float n1 = sumB1.reduceLanes(VectorOperators.ADD);
+            float n2 = sumB2.reduceLanes(VectorOperators.ADD);
+            float n3 = sumB3.reduceLanes(VectorOperators.ADD);
+
+            for (; i < a.length; i++) {
+                int byteIndex = i * Float.BYTES;
+
+                float b0 = b.getFloat(offset0 + byteIndex);
+                float b1 = b.getFloat(offset1 + byteIndex);
+                float b2 = b.getFloat(offset2 + byteIndex);
+                float b3 = b.getFloat(offset3 + byteIndex);
+
+                d0 += a[i] * b0;
+                d1 += a[i] * b1;
+                d2 += a[i] * b2;
+                d3 += a[i] * b3;
+
+                n0 += b0 * b0;
+                n1 += b1 * b1;
+                n2 += b2 * b2;
+                n3 += b3 * b3;
+            }
+
+            out[outOffset + j] = 1 - (float)(d0 / (normA * Math.sqrt(n0)));
+            out[outOffset + j + 1] = 1 - (float)(d1 / (normA * Math.sqrt(n1)));
+            out[outOffset + j + 2] = 1 - (float)(d2 / (normA * Math.sqrt(n2)));
+            out[outOffset + j + 3] = 1 - (float)(d3 / (normA * Math.sqrt(n3)));
+        }
+
+        for (; j < count; j++)
+            out[outOffset + j] = cosineDistance(a, b, bOffset + j * stride);
+    }
+
+    @Override public void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.matrix(a, aOffset, aCount, b, out, this::l2Distance);
+    }
+
+    @Override public void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.matrix(a, aOffset, aCount, b, out, this::dotProduct);
+    }
+
+    @Override public void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out) {
+        MetricBatches.cosineMatrix(a, aOffset, aCount, b, out, this);
+    }
+
 }
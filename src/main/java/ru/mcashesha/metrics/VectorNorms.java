@@ -0,0 +1,78 @@
+package ru.mcashesha.metrics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Inverse L2 norms for cosine distance. With both inverse norms cached, the cosine distance of a
+ * pair is {@code 1 - dot(a, b) * invNorm(a) * invNorm(b)}, so callers can score candidates with a
+ * single dot product instead of recomputing both norms per pair. A zero vector has inverse norm
+ * {@code 0} and is at distance {@code 1} from everything.
+ */
+public final class VectorNorms {
+
+    private VectorNorms() {
+    }
+
+    public static float inverseNorm(float[] vector) {
+        float sumSquares = 0f;
+        for (float v : vector)
+            sumSquares += v * v;
+
+        return inverse(sumSquares);
+    }
+
+    public static float inverseNorm(ByteBuffer vectors, int offset, int dimension) {
+        float sumSquares = 0f;
+        for (int d = 0; d < dimension; d++) {
+            float v = vectors.getFloat(offset + d * Float.BYTES);
+            sumSquares += v * v;
+        }
+
+        return inverse(sumSquares);
+    }
+
+    public static float[] inverseNorms(float[][] vectors) {
+        float[] result = new float[vectors.length];
+        for (int i = 0; i < vectors.length; i++)
+            result[i] = inverseNorm(vectors[i]);
+        return result;
+    }
+
+    public static float cosineDistance(float dot, float aInverseNorm, float bInverseNorm) {
+        return 1 - dot * aInverseNorm * bInverseNorm;
+    }
+
+    /**
+     * Turns {@code dots[offset .. offset + count)}, the dot products of one vector with inverse norm
+     * {@code aInverseNorm} against vectors with inverse norms {@code bInverseNorms[bOffset ..)}, into
+     * cosine distances in place.
+     */
+    public static void cosineDistances(float[] dots,
+        int offset,
+        int count,
+        float aInverseNorm,
+        float[] bInverseNorms,
+        int bOffset) {
+        for (int i = 0; i < count; i++)
+            dots[offset + i] = 1 - dots[offset + i] * aInverseNorm * bInverseNorms[bOffset + i];
+    }
+
+    /**
+     * Same as {@link #cosineDistances(float[], int, int, float, float[], int)} with the inverse norms
+     * read as floats from {@code bInverseNorms} starting at byte {@code bOffset}.
+     */
+    public static void cosineDistances(float[] dots,
+        int offset,
+        int count,
+        float aInverseNorm,
+        ByteBuffer bInverseNorms,
+        int bOffset) {
+        for (int i = 0; i < count; i++)
+            dots[offset + i] = 1 - dots[offset + i] * aInverseNorm * bInverseNorms.getFloat(bOffset + i * Float.BYTES);
+    }
+
+    private static float inverse(float sumSquares) {
+        return sumSquares == 0f ? 0f : (float)(1 / Math.sqrt(sumSquares));
+    }
+
+}
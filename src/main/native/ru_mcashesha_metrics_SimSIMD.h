@@ -39,6 +39,126 @@ JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_cosineDistance
 JNIEXPORT jlong JNICALL Java_ru_mcashesha_metrics_SimSIMD_hammingDistanceB8
   (JNIEnv *, jclass, jbyteArray, jbyteArray);
 
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    l2DistanceBuffer
+ * Signature: ([FLjava/nio/ByteBuffer;I)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_l2DistanceBuffer
+  (JNIEnv *, jclass, jfloatArray, jobject, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    dotProductBuffer
+ * Signature: ([FLjava/nio/ByteBuffer;I)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_dotProductBuffer
+  (JNIEnv *, jclass, jfloatArray, jobject, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    cosineDistanceBuffer
+ * Signature: ([FLjava/nio/ByteBuffer;I)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceBuffer
+  (JNIEnv *, jclass, jfloatArray, jobject, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    hammingDistanceB8Buffer
+ * Signature: ([BLjava/nio/ByteBuffer;I)J
+ */
+JNIEXPORT jlong JNICALL Java_ru_mcashesha_metrics_SimSIMD_hammingDistanceB8Buffer
+  (JNIEnv *, jclass, jbyteArray, jobject, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    dotProductI8
+ * Signature: (Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_dotProductI8
+  (JNIEnv *, jclass, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    l2DistanceF16
+ * Signature: (Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_l2DistanceF16
+  (JNIEnv *, jclass, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    dotProductF16
+ * Signature: (Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_dotProductF16
+  (JNIEnv *, jclass, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    cosineDistanceF16
+ * Signature: (Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)F
+ */
+JNIEXPORT jfloat JNICALL Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceF16
+  (JNIEnv *, jclass, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    l2Distances
+ * Signature: ([FLjava/nio/ByteBuffer;II[FI)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_l2Distances
+  (JNIEnv *, jclass, jfloatArray, jobject, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    dotProducts
+ * Signature: ([FLjava/nio/ByteBuffer;II[FI)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_dotProducts
+  (JNIEnv *, jclass, jfloatArray, jobject, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    cosineDistances
+ * Signature: ([FLjava/nio/ByteBuffer;II[FI)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_cosineDistances
+  (JNIEnv *, jclass, jfloatArray, jobject, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    l2DistanceMatrix
+ * Signature: ([[FII[[F[F)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_l2DistanceMatrix
+  (JNIEnv *, jclass, jobjectArray, jint, jint, jobjectArray, jfloatArray);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    dotProductMatrix
+ * Signature: ([[FII[[F[F)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_dotProductMatrix
+  (JNIEnv *, jclass, jobjectArray, jint, jint, jobjectArray, jfloatArray);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    cosineDistanceMatrix
+ * Signature: ([[FII[[F[F)V
+ */
+JNIEXPORT void JNICALL Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceMatrix
+  (JNIEnv *, jclass, jobjectArray, jint, jint, jobjectArray, jfloatArray);
+
+/*
+ * Class:     ru_mcashesha_metrics_SimSIMD
+ * Method:    capabilities
+ * Signature: ()Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_ru_mcashesha_metrics_SimSIMD_capabilities
+  (JNIEnv *, jclass);
+
 #ifdef __cplusplus
 }
 #endif
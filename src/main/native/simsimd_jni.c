@@ -2,6 +2,212 @@
 
 #include <simsimd/simsimd.h>
 #include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+typedef void (*simsimd_f32_kernel_t)(
+    simsimd_f32_t const *,
+    simsimd_f32_t const *,
+    simsimd_size_t,
+    simsimd_distance_t *);
+
+static void throwNew(JNIEnv *env, const char *className, const char *message)
+{
+    jclass type = (*env)->FindClass(env, className);
+    if (type != NULL)
+    {
+        (*env)->ThrowNew(env, type, message);
+    }
+}
+
+/*
+ * Address of bytes [offset .. offset + bytes) of direct buffer b, or NULL with a pending
+ * IllegalArgumentException when b is a heap buffer or the range falls outside its capacity.
+ */
+static jbyte *directRange(JNIEnv *env, jobject b, jint offset, jlong bytes)
+{
+    jbyte *base = (*env)->GetDirectBufferAddress(env, b);
+    if (base == NULL)
+    {
+        throwNew(env, "java/lang/IllegalArgumentException", "buffer must be a direct buffer");
+        return NULL;
+    }
+
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, b);
+    if (offset < 0 || bytes < 0 || (jlong) offset + bytes > capacity)
+    {
+        throwNew(env, "java/lang/IllegalArgumentException", "buffer range is out of bounds");
+        return NULL;
+    }
+
+    return base + offset;
+}
+
+/*
+ * Distances from query a to count vectors stored back to back in direct buffer b,
+ * written to out[outOffset .. outOffset + count). A heap buffer or a range outside b or out
+ * throws IllegalArgumentException.
+ */
+static void distancesToBuffer(
+    JNIEnv *env,
+    simsimd_f32_kernel_t kernel,
+    jfloatArray a,
+    jobject b,
+    jint bOffset,
+    jint count,
+    jfloatArray out,
+    jint outOffset)
+{
+    jsize len = (*env)->GetArrayLength(env, a);
+
+    if (count < 0 || outOffset < 0 || (jlong) outOffset + count > (*env)->GetArrayLength(env, out))
+    {
+        throwNew(env, "java/lang/IllegalArgumentException", "out range is out of bounds");
+        return;
+    }
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) count * len * (jlong) sizeof(jfloat));
+    if (baseB == NULL || count == 0)
+    {
+        return;
+    }
+
+    jfloat *ptrA = (*env)->GetPrimitiveArrayCritical(env, a, NULL);
+    jfloat *ptrOut = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+
+    if (ptrA == NULL || ptrOut == NULL)
+    {
+        if (ptrA != NULL)
+        {
+            (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+        }
+        if (ptrOut != NULL)
+        {
+            (*env)->ReleasePrimitiveArrayCritical(env, out, ptrOut, JNI_ABORT);
+        }
+        return;
+    }
+
+    simsimd_f32_t const *vectors = (simsimd_f32_t const *) baseB;
+
+    for (jint i = 0; i < count; i++)
+    {
+        simsimd_distance_t distance = 0.0;
+        kernel(
+            (simsimd_f32_t const *) ptrA,
+            vectors + (size_t) i * (size_t) len,
+            (simsimd_size_t) len,
+            &distance);
+        ptrOut[outOffset + i] = (jfloat) distance;
+    }
+
+    (*env)->ReleasePrimitiveArrayCritical(env, out, ptrOut, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+}
+
+/*
+ * Distances from rows a[aOffset .. aOffset + aCount) to every row of b, written row-major to
+ * out[i * b.length + j]. Rows of b are copied once per call into a native block so that each
+ * query row costs a single copy in and a single copy out; callers scoring one query against a
+ * fixed set of rows should pack those rows into a direct buffer once and use the batch kernels.
+ * A null row throws NullPointerException.
+ */
+static void distanceMatrix(
+    JNIEnv *env,
+    simsimd_f32_kernel_t kernel,
+    jobjectArray a,
+    jint aOffset,
+    jint aCount,
+    jobjectArray b,
+    jfloatArray out)
+{
+    jsize rows = (*env)->GetArrayLength(env, b);
+    if (rows == 0 || aCount <= 0)
+    {
+        return;
+    }
+
+    jfloatArray first = (*env)->GetObjectArrayElement(env, b, 0);
+    if (first == NULL)
+    {
+        if (!(*env)->ExceptionCheck(env))
+        {
+            throwNew(env, "java/lang/NullPointerException", "b[0] is null");
+        }
+        return;
+    }
+    jsize dim = (*env)->GetArrayLength(env, first);
+    (*env)->DeleteLocalRef(env, first);
+
+    simsimd_f32_t *vectors = malloc((size_t) rows * (size_t) dim * sizeof(simsimd_f32_t));
+    simsimd_f32_t *query = malloc((size_t) dim * sizeof(simsimd_f32_t));
+    jfloat *row = malloc((size_t) rows * sizeof(jfloat));
+
+    if (vectors == NULL || query == NULL || row == NULL)
+    {
+        free(vectors);
+        free(query);
+        free(row);
+        throwNew(env, "java/lang/OutOfMemoryError", "cannot allocate distance matrix buffers");
+        return;
+    }
+
+    for (jsize j = 0; j < rows; j++)
+    {
+        jfloatArray vector = (*env)->GetObjectArrayElement(env, b, j);
+        if (vector == NULL)
+        {
+            if (!(*env)->ExceptionCheck(env))
+            {
+                throwNew(env, "java/lang/NullPointerException", "row of b is null");
+            }
+            goto cleanup;
+        }
+        (*env)->GetFloatArrayRegion(env, vector, 0, dim, vectors + (size_t) j * (size_t) dim);
+        (*env)->DeleteLocalRef(env, vector);
+        if ((*env)->ExceptionCheck(env))
+        {
+            goto cleanup;
+        }
+    }
+
+    for (jint i = 0; i < aCount; i++)
+    {
+        jfloatArray vector = (*env)->GetObjectArrayElement(env, a, aOffset + i);
+        if (vector == NULL)
+        {
+            if (!(*env)->ExceptionCheck(env))
+            {
+                throwNew(env, "java/lang/NullPointerException", "row of a is null");
+            }
+            goto cleanup;
+        }
+        (*env)->GetFloatArrayRegion(env, vector, 0, dim, query);
+        (*env)->DeleteLocalRef(env, vector);
+        if ((*env)->ExceptionCheck(env))
+        {
+            goto cleanup;
+        }
+
+        for (jsize j = 0; j < rows; j++)
+        {
+            simsimd_distance_t distance = 0.0;
+            kernel(query, vectors + (size_t) j * (size_t) dim, (simsimd_size_t) dim, &distance);
+            row[j] = (jfloat) distance;
+        }
+
+        (*env)->SetFloatArrayRegion(env, out, (jsize) i * rows, rows, row);
+        if ((*env)->ExceptionCheck(env))
+        {
+            goto cleanup;
+        }
+    }
+
+cleanup:
+    free(vectors);
+    free(query);
+    free(row);
+}
 
 /* ======================== L2 distance ======================== */
 /*
@@ -178,3 +384,523 @@ Java_ru_mcashesha_metrics_SimSIMD_hammingDistanceB8(
 
     return (jlong) distance;
 }
+
+/* ======================== L2 distance (direct buffer) ======================== */
+/*
+ * float l2DistanceBuffer(float[] a, ByteBuffer b, int bOffset)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_l2DistanceBuffer(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset)
+{
+    (void) clazz;
+
+    jsize len = (*env)->GetArrayLength(env, a);
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) len * (jlong) sizeof(jfloat));
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    jfloat *ptrA = (*env)->GetPrimitiveArrayCritical(env, a, NULL);
+    if (ptrA == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t distSq = 0.0;
+    simsimd_l2sq_f32(
+        (simsimd_f32_t const *) ptrA,
+        (simsimd_f32_t const *) baseB,
+        (simsimd_size_t) len,
+        &distSq);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+
+    return (jfloat) distSq;
+}
+
+/* ======================== dot product (direct buffer) ======================== */
+/*
+ * float dotProductBuffer(float[] a, ByteBuffer b, int bOffset)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_dotProductBuffer(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset)
+{
+    (void) clazz;
+
+    jsize len = (*env)->GetArrayLength(env, a);
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) len * (jlong) sizeof(jfloat));
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    jfloat *ptrA = (*env)->GetPrimitiveArrayCritical(env, a, NULL);
+    if (ptrA == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t product = 0.0;
+    simsimd_dot_f32(
+        (simsimd_f32_t const *) ptrA,
+        (simsimd_f32_t const *) baseB,
+        (simsimd_size_t) len,
+        &product);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+
+    return (jfloat) product;
+}
+
+/* ======================== cosine distance (direct buffer) ======================== */
+/*
+ * float cosineDistanceBuffer(float[] a, ByteBuffer b, int bOffset)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceBuffer(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset)
+{
+    (void) clazz;
+
+    jsize len = (*env)->GetArrayLength(env, a);
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) len * (jlong) sizeof(jfloat));
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    jfloat *ptrA = (*env)->GetPrimitiveArrayCritical(env, a, NULL);
+    if (ptrA == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t distance = 0.0;
+    simsimd_cos_f32(
+        (simsimd_f32_t const *) ptrA,
+        (simsimd_f32_t const *) baseB,
+        (simsimd_size_t) len,
+        &distance);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+
+    return (jfloat) distance;
+}
+
+/* ======================== hamming B8 (direct buffer) ======================== */
+/*
+ * long hammingDistanceB8Buffer(byte[] a, ByteBuffer b, int bOffset)
+ */
+JNIEXPORT jlong JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_hammingDistanceB8Buffer(
+    JNIEnv *env,
+    jclass clazz,
+    jbyteArray a,
+    jobject b,
+    jint bOffset)
+{
+    (void) clazz;
+
+    jsize len = (*env)->GetArrayLength(env, a);
+
+    jbyte *baseB = directRange(env, b, bOffset, len);
+    if (baseB == NULL)
+    {
+        return 0L;
+    }
+
+    jbyte *ptrA = (*env)->GetPrimitiveArrayCritical(env, a, NULL);
+    if (ptrA == NULL)
+    {
+        return 0L;
+    }
+
+    simsimd_distance_t distance = 0.0;
+    simsimd_hamming_b8(
+        (simsimd_b8_t const *) ptrA,
+        (simsimd_b8_t const *) baseB,
+        (simsimd_size_t) len,
+        &distance);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, a, ptrA, JNI_ABORT);
+
+    return (jlong) distance;
+}
+
+/* ======================== int8 dot product (direct buffers) ======================== */
+/*
+ * float dotProductI8(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_dotProductI8(
+    JNIEnv *env,
+    jclass clazz,
+    jobject a,
+    jint aOffset,
+    jobject b,
+    jint bOffset,
+    jint length)
+{
+    (void) clazz;
+
+    jbyte *baseA = directRange(env, a, aOffset, (jlong) length);
+    if (baseA == NULL)
+    {
+        return 0.0f;
+    }
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) length);
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t product = 0.0;
+    simsimd_dot_i8(
+        (simsimd_i8_t const *) baseA,
+        (simsimd_i8_t const *) baseB,
+        (simsimd_size_t) length,
+        &product);
+
+    return (jfloat) product;
+}
+
+/* ======================== fp16 L2 squared distance (direct buffers) ======================== */
+/*
+ * float l2DistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_l2DistanceF16(
+    JNIEnv *env,
+    jclass clazz,
+    jobject a,
+    jint aOffset,
+    jobject b,
+    jint bOffset,
+    jint length)
+{
+    (void) clazz;
+
+    jbyte *baseA = directRange(env, a, aOffset, (jlong) length * 2);
+    if (baseA == NULL)
+    {
+        return 0.0f;
+    }
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) length * 2);
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t distSq = 0.0;
+    simsimd_l2sq_f16(
+        (simsimd_f16_t const *) baseA,
+        (simsimd_f16_t const *) baseB,
+        (simsimd_size_t) length,
+        &distSq);
+
+    return (jfloat) distSq;
+}
+
+/* ======================== fp16 dot product (direct buffers) ======================== */
+/*
+ * float dotProductF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_dotProductF16(
+    JNIEnv *env,
+    jclass clazz,
+    jobject a,
+    jint aOffset,
+    jobject b,
+    jint bOffset,
+    jint length)
+{
+    (void) clazz;
+
+    jbyte *baseA = directRange(env, a, aOffset, (jlong) length * 2);
+    if (baseA == NULL)
+    {
+        return 0.0f;
+    }
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) length * 2);
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t product = 0.0;
+    simsimd_dot_f16(
+        (simsimd_f16_t const *) baseA,
+        (simsimd_f16_t const *) baseB,
+        (simsimd_size_t) length,
+        &product);
+
+    return (jfloat) product;
+}
+
+/* ======================== fp16 cosine distance (direct buffers) ======================== */
+/*
+ * float cosineDistanceF16(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length)
+ */
+JNIEXPORT jfloat JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceF16(
+    JNIEnv *env,
+    jclass clazz,
+    jobject a,
+    jint aOffset,
+    jobject b,
+    jint bOffset,
+    jint length)
+{
+    (void) clazz;
+
+    jbyte *baseA = directRange(env, a, aOffset, (jlong) length * 2);
+    if (baseA == NULL)
+    {
+        return 0.0f;
+    }
+
+    jbyte *baseB = directRange(env, b, bOffset, (jlong) length * 2);
+    if (baseB == NULL)
+    {
+        return 0.0f;
+    }
+
+    simsimd_distance_t distance = 0.0;
+    simsimd_cos_f16(
+        (simsimd_f16_t const *) baseA,
+        (simsimd_f16_t const *) baseB,
+        (simsimd_size_t) length,
+        &distance);
+
+    return (jfloat) distance;
+}
+
+/* ======================== L2 distances (one to many, direct buffer) ======================== */
+/*
+ * void l2Distances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_l2Distances(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset,
+    jint count,
+    jfloatArray out,
+    jint outOffset)
+{
+    (void) clazz;
+
+    distancesToBuffer(env, simsimd_l2sq_f32, a, b, bOffset, count, out, outOffset);
+}
+
+/* ======================== dot products (one to many, direct buffer) ======================== */
+/*
+ * void dotProducts(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_dotProducts(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset,
+    jint count,
+    jfloatArray out,
+    jint outOffset)
+{
+    (void) clazz;
+
+    distancesToBuffer(env, simsimd_dot_f32, a, b, bOffset, count, out, outOffset);
+}
+
+/* ======================== cosine distances (one to many, direct buffer) ======================== */
+/*
+ * void cosineDistances(float[] a, ByteBuffer b, int bOffset, int count, float[] out, int outOffset)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_cosineDistances(
+    JNIEnv *env,
+    jclass clazz,
+    jfloatArray a,
+    jobject b,
+    jint bOffset,
+    jint count,
+    jfloatArray out,
+    jint outOffset)
+{
+    (void) clazz;
+
+    distancesToBuffer(env, simsimd_cos_f32, a, b, bOffset, count, out, outOffset);
+}
+
+/* ======================== L2 distance matrix ======================== */
+/*
+ * void l2DistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_l2DistanceMatrix(
+    JNIEnv *env,
+    jclass clazz,
+    jobjectArray a,
+    jint aOffset,
+    jint aCount,
+    jobjectArray b,
+    jfloatArray out)
+{
+    (void) clazz;
+
+    distanceMatrix(env, simsimd_l2sq_f32, a, aOffset, aCount, b, out);
+}
+
+/* ======================== dot product matrix ======================== */
+/*
+ * void dotProductMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_dotProductMatrix(
+    JNIEnv *env,
+    jclass clazz,
+    jobjectArray a,
+    jint aOffset,
+    jint aCount,
+    jobjectArray b,
+    jfloatArray out)
+{
+    (void) clazz;
+
+    distanceMatrix(env, simsimd_dot_f32, a, aOffset, aCount, b, out);
+}
+
+/* ======================== cosine distance matrix ======================== */
+/*
+ * void cosineDistanceMatrix(float[][] a, int aOffset, int aCount, float[][] b, float[] out)
+ */
+JNIEXPORT void JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_cosineDistanceMatrix(
+    JNIEnv *env,
+    jclass clazz,
+    jobjectArray a,
+    jint aOffset,
+    jint aCount,
+    jobjectArray b,
+    jfloatArray out)
+{
+    (void) clazz;
+
+    distanceMatrix(env, simsimd_cos_f32, a, aOffset, aCount, b, out);
+}
+
+/* ======================== runtime capabilities ======================== */
+/*
+ * static String capabilities()
+ *
+ * Comma-separated names of the SIMD families SimSIMD dispatches to on this CPU.
+ */
+static void appendCapability(
+    char *names,
+    size_t size,
+    simsimd_capability_t caps,
+    simsimd_capability_t cap,
+    char const *name)
+{
+    if ((caps & cap) == 0)
+    {
+        return;
+    }
+    if (names[0] != '\0')
+    {
+        strncat(names, ",", size - strlen(names) - 1);
+    }
+    strncat(names, name, size - strlen(names) - 1);
+}
+
+JNIEXPORT jstring JNICALL
+Java_ru_mcashesha_metrics_SimSIMD_capabilities(
+    JNIEnv *env,
+    jclass clazz)
+{
+    (void) clazz;
+
+    simsimd_capability_t caps = simsimd_capabilities();
+    char names[128] = "";
+
+    appendCapability(names, sizeof(names), caps, simsimd_cap_serial_k, "serial");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_neon_k, "neon");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_sve_k, "sve");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_haswell_k, "haswell");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_skylake_k, "skylake");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_ice_k, "ice");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_genoa_k, "genoa");
+    appendCapability(names, sizeof(names), caps, simsimd_cap_sapphire_k, "sapphire");
+
+    return (*env)->NewStringUTF(env, names);
+}
+
+/* ======================== plain C entry points for the FFM engine ======================== */
+/*
+ * Exported without the JNI calling convention so that SimSIMDForeign can bind them with
+ * jdk.incubator.foreign downcall handles and pass off-heap addresses directly.
+ */
+#define SIMSIMD_FFM_KERNEL(name, type)                                       \
+    JNIEXPORT double simsimd_ffm_##name(                                     \
+        type const *a,                                                       \
+        type const *b,                                                       \
+        simsimd_size_t n)                                                    \
+    {                                                                        \
+        simsimd_distance_t distance = 0.0;                                   \
+        simsimd_##name(a, b, n, &distance);                                  \
+        return distance;                                                     \
+    }
+
+#define SIMSIMD_FFM_BATCH_KERNEL(name)                                       \
+    JNIEXPORT void simsimd_ffm_##name##_batch(                               \
+        simsimd_f32_t const *a,                                              \
+        simsimd_f32_t const *b,                                              \
+        simsimd_size_t n,                                                    \
+        simsimd_size_t count,                                                \
+        float *out)                                                          \
+    {                                                                        \
+        for (simsimd_size_t i = 0; i < count; i++)                           \
+        {                                                                    \
+            simsimd_distance_t distance = 0.0;                               \
+            simsimd_##name(a, b + i * n, n, &distance);                      \
+            out[i] = (float) distance;                                       \
+        }                                                                    \
+    }
+
+SIMSIMD_FFM_KERNEL(l2sq_f32, simsimd_f32_t)
+SIMSIMD_FFM_KERNEL(dot_f32, simsimd_f32_t)
+SIMSIMD_FFM_KERNEL(cos_f32, simsimd_f32_t)
+SIMSIMD_FFM_KERNEL(l2sq_f16, simsimd_f16_t)
+SIMSIMD_FFM_KERNEL(dot_f16, simsimd_f16_t)
+SIMSIMD_FFM_KERNEL(cos_f16, simsimd_f16_t)
+SIMSIMD_FFM_KERNEL(dot_i8, simsimd_i8_t)
+SIMSIMD_FFM_KERNEL(hamming_b8, simsimd_b8_t)
+
+SIMSIMD_FFM_BATCH_KERNEL(l2sq_f32)
+SIMSIMD_FFM_BATCH_KERNEL(dot_f32)
+SIMSIMD_FFM_BATCH_KERNEL(cos_f32)
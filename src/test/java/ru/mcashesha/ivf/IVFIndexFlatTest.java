@@ -0,0 +1,108 @@
+package ru.mcashesha.ivf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import ru.mcashesha.kmeans.KMeans;
+import ru.mcashesha.metrics.Metric;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IVFIndexFlatTest {
+    private static final int CLUSTER_CNT = 16;
+    private static final int TOP_K = 10;
+    /** Header offsets of the cluster count and of the metric type name length, right after the fixed prefix. */
+    private static final int CLUSTER_CNT_OFFSET = 24;
+    private static final int NAME_LENGTH_OFFSET = 28;
+
+    private static float[][] gaussian(int vectorCnt, int dimension, Random random) {
+        float[][] vectors = new float[vectorCnt][dimension];
+        for (float[] vector : vectors) {
+            for (int d = 0; d < dimension; d++)
+                vector[d] = (float)random.nextGaussian();
+        }
+        return vectors;
+    }
+
+    private static int[] ids(List<IVFIndex.SearchResult> results) {
+        int[] ids = new int[results.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = results.get(i).id;
+        return ids;
+    }
+
+    /**
+     * BINARY scores are whole Hamming counts, so many candidates tie; which of them reach the
+     * re-rank must not depend on the order a search path scans them in.
+     */
+    @Test
+    void searchPathsAgreeOnTiedQuantizedScores() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (VectorEncoding encoding : VectorEncoding.values()) {
+                for (int dimension : new int[] {32, 256}) {
+                    Random random = new Random(dimension);
+                    float[][] vectors = gaussian(3000, dimension, random);
+                    float[][] queries = gaussian(20, dimension, random);
+
+                    IVFIndexFlat index = new IVFIndexFlat(
+                        KMeans.newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, Metric.Engine.SCALAR)
+                            .withClusterCount(CLUSTER_CNT)
+                            .withMaxIterations(10)
+                            .withRandom(new Random(3))
+                            .build(),
+                        null, encoding, 4);
+                    index.build(vectors);
+
+                    List<List<IVFIndex.SearchResult>> batch = index.searchBatch(queries, TOP_K, CLUSTER_CNT);
+                    for (int q = 0; q < queries.length; q++) {
+                        int[] serial = ids(index.search(queries[q], TOP_K, CLUSTER_CNT));
+                        assertArrayEquals(serial, ids(batch.get(q)));
+                        assertArrayEquals(serial, ids(index.search(queries[q], TOP_K, CLUSTER_CNT, pool)));
+                    }
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void openRejectsMalformedHeaders() throws IOException {
+        IVFIndexFlat index = new IVFIndexFlat(
+            KMeans.newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, Metric.Engine.SCALAR)
+                .withClusterCount(4)
+                .withRandom(new Random(3))
+                .build());
+        index.build(gaussian(500, 8, new Random(1)));
+
+        Path path = Files.createTempFile("ivf", ".idx");
+        try {
+            index.save(path);
+            byte[] saved = Files.readAllBytes(path);
+
+            for (short nameLength : new short[] {-1, Short.MAX_VALUE}) {
+                byte[] corrupt = saved.clone();
+                ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putShort(NAME_LENGTH_OFFSET, nameLength);
+                Files.write(path, corrupt);
+                assertThrows(IOException.class, () -> IVFIndexFlat.open(path));
+            }
+
+            byte[] corrupt = saved.clone();
+            ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(CLUSTER_CNT_OFFSET, Integer.MAX_VALUE);
+            Files.write(path, corrupt);
+            assertThrows(IOException.class, () -> IVFIndexFlat.open(path));
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ru.mcashesha.kmeans;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import ru.mcashesha.metrics.Metric;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HierarchicalKMeansTest {
+
+    private static HierarchicalKMeans.Result fit(float[][] data, Metric.Type metricType, int parallelism) {
+        return (HierarchicalKMeans.Result)KMeans.newBuilder(KMeans.Type.HIERARCHICAL, metricType, Metric.Engine.SCALAR)
+            .withBranchFactor(4)
+            .withMaxDepth(4)
+            .withParallelism(parallelism)
+            .withRandom(new Random(11))
+            .build()
+            .fit(data);
+    }
+
+    private static void assertSameTree(HierarchicalKMeans.Node expected, HierarchicalKMeans.Node actual) {
+        assertEquals(expected.getLeafId(), actual.getLeafId());
+        assertArrayEquals(expected.getCentroid(), actual.getCentroid(), 0f);
+        assertArrayEquals(expected.getPointIndices(), actual.getPointIndices());
+
+        assertEquals(expected.isLeaf(), actual.isLeaf());
+        if (expected.isLeaf())
+            return;
+
+        HierarchicalKMeans.Node[] expectedChildren = expected.getChildren();
+        HierarchicalKMeans.Node[] actualChildren = actual.getChildren();
+        assertEquals(expectedChildren.length, actualChildren.length);
+        for (int k = 0; k < expectedChildren.length; k++)
+            assertSameTree(expectedChildren[k], actualChildren[k]);
+    }
+
+    @Test
+    void treeDoesNotDependOnParallelism() {
+        float[][] data = LloydKMeansTest.blobs(20000, 8, 60, 4);
+
+        for (Metric.Type metricType : new Metric.Type[] {Metric.Type.L2SQ_DISTANCE, Metric.Type.COSINE_DISTANCE}) {
+            HierarchicalKMeans.Result serial = fit(data, metricType, 1);
+            HierarchicalKMeans.Result parallel = fit(data, metricType, 4);
+
+            assertSameTree(serial.getRoot(), parallel.getRoot());
+            assertArrayEquals(serial.getClusterAssignments(), parallel.getClusterAssignments());
+            assertArrayEquals(serial.getClusterSizes(), parallel.getClusterSizes());
+            assertEquals(serial.getLoss(), parallel.getLoss());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.mcashesha.kmeans;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import ru.mcashesha.metrics.Metric;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LloydKMeansTest {
+    private static final int CLUSTER_CNT = 24;
+
+    /** Points around {@code blobCnt} random centres, so clusterings converge instead of drifting. */
+    static float[][] blobs(int pointCnt, int dimension, int blobCnt, long seed) {
+        Random random = new Random(seed);
+        float[][] centres = new float[blobCnt][dimension];
+        for (float[] centre : centres) {
+            for (int d = 0; d < dimension; d++)
+                centre[d] = random.nextFloat() * 20 - 10;
+        }
+
+        float[][] points = new float[pointCnt][dimension];
+        for (int i = 0; i < pointCnt; i++) {
+            float[] centre = centres[random.nextInt(blobCnt)];
+            for (int d = 0; d < dimension; d++)
+                points[i][d] = centre[d] + (float)random.nextGaussian();
+        }
+        return points;
+    }
+
+    private static KMeans.ClusteringResult fit(float[][] data,
+        KMeans.Assignment assignment,
+        KMeans.Initialization initialization,
+        int parallelism) {
+        return KMeans.newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, Metric.Engine.SCALAR)
+            .withClusterCount(CLUSTER_CNT)
+            .withMaxIterations(50)
+            .withAssignment(assignment)
+            .withInitialization(initialization)
+            .withParallelism(parallelism)
+            .withRandom(new Random(7))
+            .build()
+            .fit(data);
+    }
+
+    private static void assertSameClustering(KMeans.ClusteringResult expected, KMeans.ClusteringResult actual) {
+        assertArrayEquals(expected.getClusterAssignments(), actual.getClusterAssignments());
+        assertArrayEquals(expected.getClusterSizes(), actual.getClusterSizes());
+
+        float[][] expectedCentroids = expected.getCentroids();
+        float[][] actualCentroids = actual.getCentroids();
+        assertEquals(expectedCentroids.length, actualCentroids.length);
+        for (int c = 0; c < expectedCentroids.length; c++)
+            assertArrayEquals(expectedCentroids[c], actualCentroids[c], 0f);
+    }
+
+    @Test
+    void hamerlyMatchesExhaustiveAssignment() {
+        float[][] data = blobs(6000, 12, 40, 1);
+
+        KMeans.ClusteringResult exhaustive =
+            fit(data, KMeans.Assignment.EXHAUSTIVE, KMeans.Initialization.K_MEANS_PLUS_PLUS, 1);
+        KMeans.ClusteringResult hamerly =
+            fit(data, KMeans.Assignment.HAMERLY, KMeans.Initialization.K_MEANS_PLUS_PLUS, 1);
+
+        assertSameClustering(exhaustive, hamerly);
+    }
+
+    @Test
+    void fitDoesNotDependOnParallelism() {
+        float[][] data = blobs(20000, 8, 40, 2);
+
+        for (KMeans.Assignment assignment : KMeans.Assignment.values()) {
+            KMeans.ClusteringResult serial = fit(data, assignment, KMeans.Initialization.K_MEANS_PLUS_PLUS, 1);
+            KMeans.ClusteringResult parallel = fit(data, assignment, KMeans.Initialization.K_MEANS_PLUS_PLUS, 4);
+
+            assertSameClustering(serial, parallel);
+            assertEquals(serial.getLoss(), parallel.getLoss());
+        }
+    }
+
+    @Test
+    void predictDoesNotDependOnParallelism() {
+        float[][] data = blobs(20000, 8, 40, 3);
+
+        @SuppressWarnings("unchecked")
+        KMeans<KMeans.ClusteringResult> serial = (KMeans<KMeans.ClusteringResult>)KMeans
+            .newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, Metric.Engine.SCALAR)
+            .withClusterCount(CLUSTER_CNT)
+            .withRandom(new Random(7))
+            .build();
+        @SuppressWarnings("unchecked")
+        KMeans<KMeans.ClusteringResult> parallel = (KMeans<KMeans.ClusteringResult>)KMeans
+            .newBuilder(KMeans.Type.LLOYD, Metric.Type.L2SQ_DISTANCE, Metric.Engine.SCALAR)
+            .withClusterCount(CLUSTER_CNT)
+            .withParallelism(4)
+            .withRandom(new Random(7))
+            .build();
+
+        KMeans.ClusteringResult model = serial.fit(data);
+        assertArrayEquals(serial.predict(data, model), parallel.predict(data, model));
+    }
+
+    @Test
+    void seedingDoesNotDependOnParallelism() {
+        float[][] data = blobs(20000, 8, 40, 5);
+
+        for (KMeans.Initialization initialization : KMeans.Initialization.values()) {
+            KMeans.ClusteringResult serial = fit(data, KMeans.Assignment.EXHAUSTIVE, initialization, 1);
+            KMeans.ClusteringResult parallel = fit(data, KMeans.Assignment.EXHAUSTIVE, initialization, 4);
+
+            assertSameClustering(serial, parallel);
+            assertEquals(serial.getLoss(), parallel.getLoss());
+        }
+    }
+}